@@ -0,0 +1,206 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+
+/**
+ * Per-country admission control for outgoing DC queries and incoming DP requests. Each (direction, country)
+ * pair has a token bucket limiting the request rate and a cap on concurrent requests. Excess interactive
+ * requests are rejected at once instead of queueing, so latency stays bounded when one peer or a traffic
+ * spike overloads us. Bulk callers may instead wait for a token and a slot until a deadline of their own.
+ *
+ * Limits are read from toop.admission.{dc|dp}.{rate|burst|concurrency}, and can be overridden per country
+ * with toop.admission.{dc|dp}.{countrycode}.{rate|burst|concurrency}. A rate or concurrency of 0 or less
+ * disables that limit. Requests from senders we can't place in a country, or with anything else than a
+ * two-letter country code, share the limits of the "unknown" country, so a peer can't create limiters or
+ * metric series at will.
+ */
+@Component
+public class AdmissionHandler {
+    private static final double DEFAULT_RATE = 20.0;
+    private static final double DEFAULT_BURST = 40.0;
+    private static final int DEFAULT_DC_CONCURRENCY = 50;
+    private static final int DEFAULT_DP_CONCURRENCY = 20;
+    private static final String UNKNOWN_COUNTRY = "unknown";
+    private static final Pattern COUNTRY_CODE_PATTERN = Pattern.compile("[A-Z]{2}");
+
+    public enum Direction {DC, DP}
+
+    public enum Rejection {RATE_LIMITED, CONCURRENCY_LIMITED}
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public static class Admission {
+        private static final Admission UNLIMITED = new Admission(null, null);
+
+        private final Semaphore semaphore;
+        private final Rejection rejection;
+        private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+        private Admission(final Semaphore semaphore, final Rejection rejection) {
+            this.semaphore = semaphore;
+            this.rejection = rejection;
+        }
+
+        public boolean isAdmitted() {
+            return rejection == null;
+        }
+
+        public Rejection getRejection() {
+            return rejection;
+        }
+
+        /**
+         * Gives back the concurrency slot of an admitted request. Safe to call more than once.
+         */
+        public void release() {
+            if (semaphore!=null && isAdmitted() && isReleased.compareAndSet(false, true)) {
+                semaphore.release();
+            }
+        }
+    }
+
+    private static class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long lastRefill;
+
+        public TokenBucket(final double rate, final double burst) {
+            this.rate = rate;
+            this.burst = Math.max(1.0, burst);
+            this.tokens = this.burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Takes a token and returns 0, or returns the nanoseconds until the next token is available.
+         */
+        public synchronized long tryConsume() {
+            final long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+            if (tokens < 1.0) {
+                return Math.max(1L, (long) Math.ceil((1.0 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+            }
+            tokens -= 1.0;
+            return 0L;
+        }
+    }
+
+    private static class Limits {
+        private final TokenBucket tokenBucket;
+        private final Semaphore semaphore;
+
+        public Limits(final TokenBucket tokenBucket, final Semaphore semaphore) {
+            this.tokenBucket = tokenBucket;
+            this.semaphore = semaphore;
+        }
+    }
+
+    private final Map<String,Limits> limits = new ConcurrentHashMap<>();
+
+
+    /**
+     * Admits the request at once, or rejects it.
+     */
+    public Admission admit(final Direction direction, final String country) {
+        return admit(direction, country, System.nanoTime());
+    }
+
+    /**
+     * Admits the request, waiting for a token and a concurrency slot until the deadline (System.nanoTime).
+     * Rejects it if it cannot be admitted by then, or if the thread is interrupted while waiting.
+     */
+    public Admission admit(final Direction direction, final String country, final long deadline) {
+        final String countryKey = getCountryKey(country);
+        final Limits countryLimits = limits.computeIfAbsent(direction.name()+"|"+countryKey, key -> createLimits(direction, countryKey));
+        final long started = System.nanoTime();
+
+        try {
+            if (countryLimits.tokenBucket != null) {
+                long waitNanos;
+                while ((waitNanos = countryLimits.tokenBucket.tryConsume()) > 0) {
+                    if (System.nanoTime() + waitNanos - deadline > 0) {
+                        return reject(direction, countryKey, Rejection.RATE_LIMITED);
+                    }
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            }
+            if (countryLimits.semaphore == null) {
+                return admitted(direction, countryKey, started, Admission.UNLIMITED);
+            }
+            if (!countryLimits.semaphore.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return reject(direction, countryKey, Rejection.CONCURRENCY_LIMITED);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return reject(direction, countryKey, Rejection.CONCURRENCY_LIMITED);
+        }
+        return admitted(direction, countryKey, started, new Admission(countryLimits.semaphore, null));
+    }
+
+    private Admission admitted(final Direction direction, final String country, final long started, final Admission admission) {
+        count("toop.admission.admitted", direction, country, null);
+        final long waitedNanos = System.nanoTime() - started;
+        if (waitedNanos > TimeUnit.MILLISECONDS.toNanos(1)) {
+            meterRegistry.timer("toop.admission.wait", "direction", direction.name()).record(waitedNanos, TimeUnit.NANOSECONDS);
+        }
+        return admission;
+    }
+
+    private static String getCountryKey(final String country) {
+        if (country == null) {
+            return UNKNOWN_COUNTRY;
+        }
+        final String countryKey = country.trim().toUpperCase(Locale.ROOT);
+        return COUNTRY_CODE_PATTERN.matcher(countryKey).matches() ? countryKey : UNKNOWN_COUNTRY;
+    }
+
+    private Admission reject(final Direction direction, final String country, final Rejection rejection) {
+        count("toop.admission.rejected", direction, country, rejection);
+        return new Admission(null, rejection);
+    }
+
+    private void count(final String name, final Direction direction, final String country, final Rejection rejection) {
+        if (rejection == null) {
+            meterRegistry.counter(name, "direction", direction.name(), "country", country).increment();
+        } else {
+            meterRegistry.counter(name, "direction", direction.name(), "country", country, "reason", rejection.name()).increment();
+        }
+    }
+
+    private Limits createLimits(final Direction direction, final String country) {
+        final String prefix = "toop.admission." + direction.name().toLowerCase(Locale.ROOT);
+        final int defaultConcurrency = direction==Direction.DC ? DEFAULT_DC_CONCURRENCY : DEFAULT_DP_CONCURRENCY;
+
+        final double rate = getProperty(prefix, country, "rate", Double.class, DEFAULT_RATE);
+        final double burst = getProperty(prefix, country, "burst", Double.class, DEFAULT_BURST);
+        final int concurrency = getProperty(prefix, country, "concurrency", Integer.class, defaultConcurrency);
+        return new Limits(rate>0 ? new TokenBucket(rate, burst) : null,
+                          concurrency>0 ? new Semaphore(concurrency) : null);
+    }
+
+    private <T> T getProperty(final String prefix, final String country, final String name, final Class<T> type, final T defaultValue) {
+        final T countryValue = environment.getProperty(prefix + "." + country + "." + name, type);
+        return countryValue!=null ? countryValue : environment.getProperty(prefix + "." + name, type, defaultValue);
+    }
+
+}
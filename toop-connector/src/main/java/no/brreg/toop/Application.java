@@ -22,6 +22,9 @@ import org.springframework.context.annotation.ComponentScan;
 import javax.annotation.PreDestroy;
 import javax.servlet.ServletContext;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 @SpringBootApplication
@@ -41,9 +44,21 @@ public class Application {
     @Autowired
     private BrregIncomingHandler brregIncomingHandler;
 
+    @Autowired
+    private StartupReadinessIndicator startupReadinessIndicator;
+
+    @Autowired
+    private EdmSerializer edmSerializer;
+
     @Autowired
     private ServletContext servletContext;
 
+    private final ExecutorService startupExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "startup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Bean
     public ServletRegistrationBean as4Bean() {
         initializeApplication();
@@ -54,8 +69,20 @@ public class Application {
     }
 
     public void initializeApplication() {
+        //The directory lookup runs in parallel with the connector initialization and is not waited for.
+        //Readiness stays OUT_OF_SERVICE until the country table has been fetched or restored from a snapshot,
+        //and the EDM writers have been warmed up.
+        CompletableFuture.runAsync(countryCodeCache::update, startupExecutor)
+                         .whenComplete((result, e) -> {
+                             if (e != null) {
+                                 LOGGER.error("Initial CountryCode cache update failed: ", e);
+                             }
+                             startupReadinessIndicator.isReady();
+                         });
+        CompletableFuture.runAsync(edmSerializer::warmUp, startupExecutor)
+                         .whenComplete((result, e) -> startupReadinessIndicator.isReady());
         initializeToopConnector();
-        countryCodeCache.update();
+        startupReadinessIndicator.markToopConnectorInitialized();
     }
     private void initializeToopConnector() {
         LOGGER.info("Initializing toop connector");
@@ -65,6 +92,7 @@ public class Application {
 
     @PreDestroy
     public void shutdownApplication() {
+        startupExecutor.shutdownNow();
         TCInit.shutdownGlobally(servletContext);
         WebScopeManager.onGlobalEnd();
         Unirest.shutDown();
@@ -0,0 +1,316 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+
+/**
+ * Fans a list of DC queries out concurrently. Each query is sent as soon as its destination country has
+ * a free slot, and the answers are collected from the pending-request futures in BrregIncomingHandler,
+ * so a batch takes roughly one round trip per MAX_CONCURRENT_PER_COUNTRY queries to the same country.
+ * Queries turned away by admission control or the pending-request quota are re-queued after a backoff
+ * until the batch deadline, rather than being rejected when interactive traffic has used up the capacity
+ * for a moment. The send threads never wait for admission, so a throttled country holds at most its
+ * MAX_CONCURRENT_PER_COUNTRY slots, and cannot stall the queries to other countries.
+ */
+@Component
+public class BatchQueryHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchQueryHandler.class);
+
+    public static final int MAX_BATCH_SIZE = 500;
+    private static final int MAX_CONCURRENT_PER_COUNTRY = 10;
+    private static final int SEND_THREADS = 16;
+    private static final long MIN_RETRY_DELAY_MILLIS = 50;
+    private static final long MAX_RETRY_DELAY_MILLIS = 1000;
+    public static final Duration BATCH_TIMEOUT = Duration.ofMinutes(2);
+
+    @Autowired
+    private BrregIncomingHandler brregIncomingHandler;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    public static class Query {
+        private final String countrycode;
+        private final String identifier;
+        private final Map<String,Object> properties;
+        private final boolean isLegalPerson;
+        private final DcResultCache.CacheControl cacheControl;
+        private final DcSendScheduler.Priority priority;
+
+        public Query(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson,
+                     final DcResultCache.CacheControl cacheControl, final DcSendScheduler.Priority priority) {
+            this.countrycode = countrycode;
+            this.identifier = identifier;
+            this.properties = properties;
+            this.isLegalPerson = isLegalPerson;
+            this.cacheControl = cacheControl;
+            this.priority = priority;
+        }
+
+        public String getCountrycode() {
+            return countrycode;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public Map<String,Object> getProperties() {
+            return properties;
+        }
+
+        public boolean isLegalPerson() {
+            return isLegalPerson;
+        }
+
+        public DcResultCache.CacheControl getCacheControl() {
+            return cacheControl;
+        }
+
+        public DcSendScheduler.Priority getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * A query of a batch. The future is what the caller sees, and may be completed early by the batch deadline or
+     * cancelled by the caller. Settled completes when the query no longer needs its slot of the country.
+     */
+    private static class Item {
+        private final Query query;
+        private final CompletableFuture<BrregIncomingHandler.ToopResponse> future = new CompletableFuture<>();
+        private final CompletableFuture<Void> settled = new CompletableFuture<>();
+
+        private Item(final Query query) {
+            this.query = query;
+        }
+
+        private void complete(final BrregIncomingHandler.ToopResponse response) {
+            future.complete(response);
+            settled.complete(null);
+        }
+    }
+
+    /**
+     * Limits the number of outstanding queries per destination country, across all running batches.
+     * Queries over the limit wait in a queue and are sent as earlier queries complete.
+     */
+    private class CountryLimiter {
+        private int inFlight = 0;
+        private final Deque<Task> waiting = new ArrayDeque<>();
+
+        private class Task implements Runnable {
+            private final Supplier<CompletableFuture<?>> supplier;
+            private final Runnable onRejected;
+
+            private Task(final Supplier<CompletableFuture<?>> supplier, final Runnable onRejected) {
+                this.supplier = supplier;
+                this.onRejected = onRejected;
+            }
+
+            @Override
+            public void run() {
+                CompletableFuture<?> future;
+                try {
+                    future = supplier.get();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Batch query failed: ", e);
+                    future = CompletableFuture.completedFuture(null);
+                }
+                future.whenComplete((result, e) -> release());
+            }
+        }
+
+        /**
+         * Runs the task when the country has a free slot. If the send executor refuses it, onRejected is
+         * called instead and the slot is passed on.
+         */
+        public void submit(final Supplier<CompletableFuture<?>> supplier, final Runnable onRejected) {
+            final Task task = new Task(supplier, onRejected);
+            synchronized(this) {
+                if (inFlight >= MAX_CONCURRENT_PER_COUNTRY) {
+                    waiting.add(task);
+                    return;
+                }
+                inFlight++;
+            }
+            start(task);
+        }
+
+        private void release() {
+            final Task next = pollOrRelease();
+            if (next != null) {
+                start(next);
+            }
+        }
+
+        private void start(Task task) {
+            //A loop rather than recursion through release(), since a shut down executor rejects every waiting task
+            while (task != null) {
+                if (execute(task)) {
+                    return;
+                }
+                task.onRejected.run();
+                task = pollOrRelease();
+            }
+        }
+
+        private synchronized Task pollOrRelease() {
+            final Task next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+            }
+            return next;
+        }
+    }
+
+    private final Map<String,CountryLimiter> countryLimiters = new ConcurrentHashMap<>();
+
+    private final ExecutorService sendExecutor = Executors.newFixedThreadPool(SEND_THREADS, r -> {
+        Thread thread = new Thread(r, "dc-batch-send");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Wakes queries up for another admission attempt, and answers them at the batch deadline.
+    //The attempts themselves run on the send executor
+    private final ScheduledExecutorService timerExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dc-batch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    @PreDestroy
+    public void shutdown() {
+        timerExecutor.shutdownNow();
+        sendExecutor.shutdownNow();
+    }
+
+    public List<BrregIncomingHandler.ToopResponse> query(final List<Query> queries) {
+        final long deadline = System.nanoTime() + BATCH_TIMEOUT.toNanos();
+
+        final List<BrregIncomingHandler.ToopResponse> responses = new ArrayList<>();
+        for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : submit(queries, deadline)) {
+            responses.add(await(future, deadline));
+        }
+        return responses;
+    }
+
+    /**
+     * Queues all queries and returns one future per query, in the same order. Queries not answered when the
+     * deadline (System.nanoTime) passes are completed with GATEWAY_TIMEOUT, and are not sent if they are still
+     * waiting for a free slot. A future cancelled by the caller before its query is sent is skipped.
+     */
+    public List<CompletableFuture<BrregIncomingHandler.ToopResponse>> submit(final List<Query> queries, final long deadline) {
+        loggerHandler.log(LoggerHandler.Level.INFO, "Got batch query with " + queries.size() + " items");
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = new ArrayList<>();
+        for (Query query : queries) {
+            final Item item = new Item(query);
+            futures.add(item.future);
+            getCountryLimiter(query.getCountrycode()).submit(() -> {
+                send(item, deadline, MIN_RETRY_DELAY_MILLIS);
+                return item.settled;
+            }, () -> item.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, "Shutting down")));
+        }
+
+        try {
+            timerExecutor.schedule(() -> {
+                for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : futures) {
+                    future.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.GATEWAY_TIMEOUT, "Batch deadline exceeded"));
+                }
+            }, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.info("Batch deadline rejected: " + e.getMessage());
+        }
+        return futures;
+    }
+
+    /**
+     * Sends the query without waiting for admission. If it is turned away, it is tried again after retryDelayMillis,
+     * doubling the delay up to MAX_RETRY_DELAY_MILLIS, for as long as the next attempt would start before the deadline.
+     */
+    private void send(final Item item, final long deadline, final long retryDelayMillis) {
+        if (item.future.isDone()) {
+            item.settled.complete(null); //Cancelled by the caller, or answered by the batch deadline
+            return;
+        }
+        if (System.nanoTime() - deadline >= 0) {
+            item.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.GATEWAY_TIMEOUT, "Batch deadline exceeded"));
+            return;
+        }
+        final Query query = item.query;
+        brregIncomingHandler.queryByIdentifier(query.getCountrycode(), query.getIdentifier(), query.getProperties(), query.isLegalPerson(), query.getCacheControl(),
+                                               query.getPriority(), System.nanoTime())
+                .whenComplete((response, e) -> {
+                    if (e != null) {
+                        item.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.INTERNAL_SERVER_ERROR, "Request failed: " + e.getMessage()));
+                    } else if (response!=null && response.isRetryable() && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMillis) - deadline < 0) {
+                        retry(item, deadline, retryDelayMillis, response);
+                    } else {
+                        item.complete(response);
+                    }
+                });
+    }
+
+    private void retry(final Item item, final long deadline, final long retryDelayMillis, final BrregIncomingHandler.ToopResponse rejectedResponse) {
+        final Runnable attempt = () -> {
+            try {
+                send(item, deadline, Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS));
+            } catch (RuntimeException e) {
+                LOGGER.error("Batch query failed: ", e);
+                item.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.INTERNAL_SERVER_ERROR, "Request failed: " + e.getMessage()));
+            }
+        };
+        try {
+            timerExecutor.schedule(() -> {
+                if (!execute(attempt)) {
+                    item.complete(rejectedResponse);
+                }
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.info("Batch query retry rejected: " + e.getMessage());
+            item.complete(rejectedResponse);
+        }
+    }
+
+    private BrregIncomingHandler.ToopResponse await(final CompletableFuture<BrregIncomingHandler.ToopResponse> future, final long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return new BrregIncomingHandler.ToopResponse(HttpStatus.GATEWAY_TIMEOUT, "Batch deadline exceeded");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new BrregIncomingHandler.ToopResponse(HttpStatus.GATEWAY_TIMEOUT, "Request timed out");
+        } catch (ExecutionException e) {
+            return new BrregIncomingHandler.ToopResponse(HttpStatus.INTERNAL_SERVER_ERROR, "Request failed: " + e.getCause().getMessage());
+        }
+    }
+
+    private CountryLimiter getCountryLimiter(final String countrycode) {
+        return countryLimiters.computeIfAbsent(countrycode==null ? "" : countrycode, key -> new CountryLimiter());
+    }
+
+    private boolean execute(final Runnable runnable) {
+        try {
+            sendExecutor.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.info("Batch query rejected: " + e.getMessage());
+            return false;
+        }
+    }
+
+}
@@ -2,15 +2,11 @@ package no.brreg.toop;
 
 // This code is Public Domain. See LICENSE
 
-import com.helger.commons.collection.impl.CommonsArrayList;
-import com.helger.dns.dnsjava.DnsjavaInit;
-import com.helger.dns.ip.IPV4Addr;
 import com.helger.peppol.smp.ESMPTransportProfile;
 import com.helger.peppolid.IDocumentTypeIdentifier;
 import com.helger.peppolid.IParticipantIdentifier;
 import com.helger.peppolid.IProcessIdentifier;
 import com.helger.peppolid.factory.SimpleIdentifierFactory;
-import com.helger.xsds.bdxr.smp1.EndpointType;
 import eu.toop.commons.codelist.EPredefinedDocumentTypeIdentifier;
 import eu.toop.commons.codelist.EPredefinedProcessIdentifier;
 import eu.toop.connector.api.me.incoming.*;
@@ -30,6 +26,7 @@ import eu.toop.edm.request.IEDMRequestPayloadConcepts;
 import eu.toop.edm.response.IEDMResponsePayloadConcepts;
 import eu.toop.edm.response.IEDMResponsePayloadProvider;
 import eu.toop.regrep.ERegRepResponseStatus;
+import io.micrometer.core.instrument.MeterRegistry;
 import no.brreg.toop.generated.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,37 +35,130 @@ import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 @Component
 public class BrregIncomingHandler implements IMEIncomingHandler {
     private static final Logger LOGGER = LoggerFactory.getLogger(BrregIncomingHandler.class);
-    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(28);
-    private static final String NORWEGIAN_COUNTRYCODE = "NO";
-    private static final InetAddress[] dnsServers = {IPV4Addr.getAsInetAddress (1, 1, 1, 1),
-                                                     IPV4Addr.getAsInetAddress (8, 8, 8, 8),
-                                                     IPV4Addr.getAsInetAddress (1, 0, 0, 1),
-                                                     IPV4Addr.getAsInetAddress (8, 8, 4, 4)};
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(28);
+    public static final String NORWEGIAN_COUNTRYCODE = "NO";
+    public static final String CONCEPTS_PROPERTY = "concepts";
+    private static final String UNKNOWN_SENDER_COUNTRY = "unknown";
+    private static final int MAX_CONCURRENT_OVERLOAD_ANSWERS = 2;
+
+    //The REGISTERED_ORGANIZATION concepts we ask for as DC, unless the caller selects a subset
+    public static final Set<EToopConcept> SUPPORTED_CONCEPTS = Collections.unmodifiableSet(EnumSet.of(EToopConcept.COMPANY_NAME,
+                                                                                                     EToopConcept.REGISTRATION_DATE,
+                                                                                                     EToopConcept.COMPANY_CODE,
+                                                                                                     EToopConcept.VAT_NUMBER,
+                                                                                                     EToopConcept.FOUNDATION_DATE,
+                                                                                                     EToopConcept.COMPANY_TYPE,
+                                                                                                     EToopConcept.COUNTRY_NAME,
+                                                                                                     EToopConcept.POSTAL_CODE,
+                                                                                                     EToopConcept.REGION,
+                                                                                                     EToopConcept.STREET_ADDRESS,
+                                                                                                     EToopConcept.NACE_CODE));
+
+    private static final AgentPojo ERROR_PROVIDER = AgentPojo.builder()
+            .id("9999:norway2")
+            .idSchemeID(EToopIdentifierType.EIDAS)
+            .name("Brønnøysund Register Centre")
+            .address(AddressPojo.builder()
+                    .fullAddress("Brønnøysundregistrene, Havnegata 48, 8900 Brønnøysund, Norway")
+                    .streetName("Havnegata 48")
+                    .postalCode("8910 Brønnøysund")
+                    .town("Brønnøysund")
+                    .countryCode("NO")
+                    .build())
+            .build();
+
+    /**
+     * Why an incoming DP request was not answered normally. Rejections with an exception type are answered
+     * with an EDMErrorResponse at once, so the DC doesn't wait out its timeout. Permanent ones are stored,
+     * so a retransmission gets the same answer. Transient ones are not, so a retransmission is tried again.
+     * OVERLOADED is only answered while fewer than MAX_CONCURRENT_OVERLOAD_ANSWERS such answers are being sent.
+     */
+    private enum Rejection {
+        OVERLOADED(EEDMExceptionType.QUOTA_EXCEEDED, EToopErrorOrigin.REQUEST_RECEPTION, false),
+        UNSUPPORTED_PAYLOAD(EEDMExceptionType.UNSUPPORTED_CAPABILITY, EToopErrorOrigin.REQUEST_RECEPTION, true),
+        WRONG_CONCEPT_COUNT(EEDMExceptionType.INVALID_REQUEST, EToopErrorOrigin.REQUEST_RECEPTION, true),
+        WRONG_TOP_LEVEL_CONCEPT(EEDMExceptionType.UNSUPPORTED_CAPABILITY, EToopErrorOrigin.REQUEST_RECEPTION, true),
+        MISSING_LEGAL_PERSON(EEDMExceptionType.INVALID_REQUEST, EToopErrorOrigin.REQUEST_RECEPTION, true),
+        SOURCE_UNAVAILABLE(EEDMExceptionType.TIMEOUT, EToopErrorOrigin.RESPONSE_CREATION, false),
+        NO_ROUTE(null, null, false),
+        SEND_FAILED(null, null, false);
+
+        private final EEDMExceptionType exceptionType;
+        private final EToopErrorOrigin errorOrigin;
+        private final boolean isPermanent;
+
+        Rejection(final EEDMExceptionType exceptionType, final EToopErrorOrigin errorOrigin, final boolean isPermanent) {
+            this.exceptionType = exceptionType;
+            this.errorOrigin = errorOrigin;
+            this.isPermanent = isPermanent;
+        }
 
+        private String getTag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
 
-    @Autowired
-    private EnhetsregisterCache enhetsregisterCache;
 
     @Autowired
     private CountryCodeCache countryCodeCache;
 
+    @Autowired
+    private SmpEndpointCache smpEndpointCache;
+
+    @Autowired
+    private DcResultCache dcResultCache;
+
+    @Autowired
+    private AdmissionHandler admissionHandler;
+
+    @Autowired
+    private ResponseCorrelator responseCorrelator;
+
+    @Autowired
+    private RequestTracer requestTracer;
+
+    @Autowired
+    private DpResponseStore dpResponseStore;
+
+    @Autowired
+    private CountryLatencyTracker countryLatencyTracker;
+
+    @Autowired
+    private EdmSerializer edmSerializer;
+
+    @Autowired
+    private DpEnrichmentHandler dpEnrichmentHandler;
+
+    @Autowired
+    private TrafficStatisticsHandler trafficStatisticsHandler;
+
+    @Autowired
+    private DcSendScheduler dcSendScheduler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Autowired
     private LoggerHandler loggerHandler;
 
@@ -76,6 +166,7 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
         private Enhet enhet;
         private HttpStatus status;
         private String errorMessage;
+        private boolean isRetryable = false;
 
         public ToopResponse() {
             this.enhet = null;
@@ -112,40 +203,138 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
         public void setErrorMessage(final String errorMessage) {
             this.errorMessage = errorMessage;
         }
+
+        /**
+         * True if the query was not sent because admission control or the pending-request quota was full
+         * at the moment, so the same query may be admitted if tried again a little later.
+         */
+        public boolean isRetryable() {
+            return isRetryable;
+        }
+
+        public void setRetryable(final boolean isRetryable) {
+            this.isRetryable = isRetryable;
+        }
     }
 
     private class Request {
         private final String id;
-        private final Object lock = new Object();
-        private final ToopResponse response = new ToopResponse();
+        private final Set<EToopConcept> concepts;
+        private final CompletableFuture<ToopResponse> response = new CompletableFuture<>();
 
-        public Request(final String id) {
+        public Request(final String id, final Set<EToopConcept> concepts) {
             this.id = id;
+            this.concepts = concepts;
         }
 
         public String getId() {
             return id;
         }
 
-        public Object getLock() {
-            return lock;
+        public Set<EToopConcept> getConcepts() {
+            return concepts;
         }
 
-        public ToopResponse getResponse() {
+        public CompletableFuture<ToopResponse> getResponse() {
             return response;
         }
     }
     private final Map<String, Request> requestMap = new HashMap<>();
     private static final Object requestMapLock = new Object();
 
+    //Answering a request we shed costs an SMP lookup, serialization and an AS4 send outside admission control
+    private final Semaphore overloadAnswers = new Semaphore(MAX_CONCURRENT_OVERLOAD_ANSWERS);
+
+    private final ScheduledExecutorService requestTimeoutExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dc-request-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    @PreDestroy
+    public void shutdown() {
+        requestTimeoutExecutor.shutdownNow();
+    }
 
     @Override
     public void handleIncomingRequest(@Nonnull IncomingEDMRequest incomingEDMRequest) throws MEIncomingException {
+        final RequestTracer.Trace trace = requestTracer.startTrace("dp");
+        trace.setRequestId(incomingEDMRequest.getRequest().getRequestID());
+
+        //Answer retransmissions and repeated requests with the response we already sent
+        final IParticipantIdentifier senderId = incomingEDMRequest.getMetadata().getSenderID();
+        final String responseKey = DpResponseStore.getKey(incomingEDMRequest.getRequest().getRequestID(),
+                                                          senderId==null ? null : senderId.getScheme(),
+                                                          senderId==null ? null : senderId.getValue());
+        final DpResponseStore.Entry previousResponse = dpResponseStore.begin(responseKey);
+        if (previousResponse != null) {
+            try {
+                resendStoredResponse(incomingEDMRequest, previousResponse, trace);
+            } finally {
+                requestTracer.finish(trace, trace.hasAttribute("error") ? "FAILED" : "DUPLICATE");
+            }
+            return;
+        }
+
+        try {
+            //Shed load instead of queueing when the sending country already has too many requests in progress
+            final String senderCountry = getSenderCountry(incomingEDMRequest);
+            trace.setAttribute("country", senderCountry);
+            trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DP_SENDER, senderCountry);
+            final AdmissionHandler.Admission admission;
+            try (RequestTracer.Span span = trace.startSpan("admission")) {
+                admission = admissionHandler.admit(AdmissionHandler.Direction.DP, senderCountry);
+            }
+            if (!admission.isAdmitted()) {
+                sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.OVERLOADED, trace,
+                                          "Rejected incoming request " + incomingEDMRequest.getRequest().getRequestID() + " from " + senderCountry + ": " + admission.getRejection());
+                return;
+            }
+
+            try {
+                handleAdmittedIncomingRequest(incomingEDMRequest, responseKey, trace);
+            } finally {
+                admission.release();
+            }
+        } finally {
+            dpResponseStore.abandonIfIncomplete(responseKey);
+            requestTracer.finish(trace, trace.hasAttribute("error") ? "FAILED" : "OK");
+        }
+    }
+
+    private void resendStoredResponse(final IncomingEDMRequest incomingEDMRequest, final DpResponseStore.Entry previousResponse, final RequestTracer.Trace trace) {
+        trace.setAttribute("duplicate", "true");
+        if (!previousResponse.isCompleted()) {
+            loggerHandler.log(LoggerHandler.Level.INFO, "Ignoring duplicate of incoming request " + incomingEDMRequest.getRequest().getRequestID() + ", which is still being processed");
+            return;
+        }
+
+        loggerHandler.log(LoggerHandler.Level.INFO, "Resending stored response to duplicate incoming request " + incomingEDMRequest.getRequest().getRequestID());
+        try (RequestTracer.Span span = trace.startSpan("as4-resend")) {
+            TCAPIHelper.sendAS4Message(previousResponse.getRoutingInformation(), previousResponse.getMessage());
+        } catch (MEOutgoingException e) {
+            sendIncomingRequestFailed(incomingEDMRequest, null, Rejection.SEND_FAILED, trace, "Got exception when resending AS4 message: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the country code of the sender, or UNKNOWN_SENDER_COUNTRY. Never the raw participant ID, which is
+     * chosen by the peer and would give it unbounded admission limiters and metric series.
+     */
+    private String getSenderCountry(final IncomingEDMRequest incomingEDMRequest) {
+        final IParticipantIdentifier senderId = incomingEDMRequest.getMetadata().getSenderID();
+        final CountryCode senderCountry = senderId==null ? null : countryCodeCache.getCountryCodeByParticipantId(senderId.getValue());
+        return senderCountry==null ? UNKNOWN_SENDER_COUNTRY : senderCountry.getCode();
+    }
+
+    private void handleAdmittedIncomingRequest(final IncomingEDMRequest incomingEDMRequest, final String responseKey, final RequestTracer.Trace trace) {
         final EDMRequest edmRequest = incomingEDMRequest.getRequest();
 
         //Is this a request we support?
         if (!(edmRequest.getPayloadProvider() instanceof IEDMRequestPayloadConcepts)) {
-            sendIncomingRequestFailed("Cannot create TOOP response for DocumentRequest: "+edmRequest.getPayloadProvider().getClass().getSimpleName());
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.UNSUPPORTED_PAYLOAD, trace,
+                                      "Cannot create TOOP response for DocumentRequest: "+edmRequest.getPayloadProvider().getClass().getSimpleName());
             return;
         }
 
@@ -153,137 +342,66 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
         final IEDMRequestPayloadConcepts requestConcepts = (IEDMRequestPayloadConcepts) edmRequest.getPayloadProvider();
         final List<ConceptPojo> concepts = requestConcepts.concepts();
         if (concepts.size() != 1) {
-            sendIncomingRequestFailed("Expected exactly one top-level request concept. Got:  "+concepts.size());
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.WRONG_CONCEPT_COUNT, trace,
+                                      "Expected exactly one top-level request concept. Got:  "+concepts.size());
             return;
         }
 
         //Is this a request for REGISTERED_ORGANIZATION?
         final ConceptPojo registeredOrganizationConceptRequest = concepts.get(0);
         if (!registeredOrganizationConceptRequest.getName().equals(EToopConcept.REGISTERED_ORGANIZATION.getAsQName())) {
-            sendIncomingRequestFailed("Expected top-level request concept "+EToopConcept.REGISTERED_ORGANIZATION.getAsQName()+". Got: "+registeredOrganizationConceptRequest.getName());
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.WRONG_TOP_LEVEL_CONCEPT, trace,
+                                      "Expected top-level request concept "+EToopConcept.REGISTERED_ORGANIZATION.getAsQName()+". Got: "+registeredOrganizationConceptRequest.getName());
             return;
         }
 
-        //Fetch enhet from enhetsregisteret ( "Finn foretak/selskap" on https://www.brreg.no/ )
+        //Is the request for a legal person?
         if (edmRequest.getDataSubjectLegalPerson()==null ||
             edmRequest.getDataSubjectLegalPerson().getLegalID()==null ||
             edmRequest.getDataSubjectLegalPerson().getLegalID().isEmpty()) {
-            sendIncomingRequestFailed("Request is missing LegalPerson");
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.MISSING_LEGAL_PERSON, trace, "Request is missing LegalPerson");
             return;
         }
         loggerHandler.log(LoggerHandler.Level.INFO, "Got incoming request for " + edmRequest.getDataSubjectLegalPerson().getLegalID());
         final String[] legalIdParts = edmRequest.getDataSubjectLegalPerson().getLegalID().split("/");
         final String orgno = legalIdParts[legalIdParts.length-1];
-        final Enhet enhet = enhetsregisterCache.getEnhet(orgno);
-        final boolean isError = (enhet == null);
+        trace.setAttribute("orgno", orgno);
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DP_ORGNO, orgno);
+
+        //Ask all data sources needed for the requested concepts concurrently
+        final Set<EToopConcept> requestedConcepts = EnumSet.noneOf(EToopConcept.class);
+        for (ConceptPojo conceptRequest : registeredOrganizationConceptRequest.children()) {
+            final EToopConcept concept = conceptRequest==null ? null : dpEnrichmentHandler.getSupportedConcept(conceptRequest.getName());
+            if (concept != null) {
+                requestedConcepts.add(concept);
+            }
+        }
+        final DpEnrichmentHandler.Result enrichment;
+        try (RequestTracer.Span span = trace.startSpan("enrichment")) {
+            enrichment = dpEnrichmentHandler.enrich(orgno, requestedConcepts, trace);
+        }
+        if (enrichment.getStatus() == DpEnrichmentHandler.Status.UNAVAILABLE) {
+            //We don't know if the orgno exists, so don't claim it doesn't
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.SOURCE_UNAVAILABLE, trace,
+                                      "Could not look up organization " + orgno + ". Try again later");
+            return;
+        }
+        final boolean isError = enrichment.getStatus() == DpEnrichmentHandler.Status.NOT_FOUND;
 
         //Build concepts response
+        final RequestTracer.Span buildSpan = trace.startSpan("edm-build");
         final ConceptPojo.Builder conceptsBuilder = ConceptPojo.builder()
                 .randomID()
                 .name(EToopConcept.REGISTERED_ORGANIZATION);
 
         EDMResponse.BuilderConcept edmResponseBuilder = null;
-        EDMErrorResponse.Builder edmErrorResposeBuilder = null;
-        if (isError) {
-            edmErrorResposeBuilder = EDMErrorResponse.builder();
-        } else {
+        if (!isError) {
             for (ConceptPojo conceptRequest : registeredOrganizationConceptRequest.children()) {
                 if (conceptRequest == null) {
                     continue;
                 }
 
-                ConceptPojo.Builder conceptBuilder = null;
-                //Enhet
-                if (EToopConcept.COMPANY_NAME.getAsQName().equals(conceptRequest.getName()) &&
-                    enhet.getNavn()!=null) {
-                    conceptBuilder = ConceptPojo.builder()
-                        .name(EToopConcept.COMPANY_NAME)
-                        .valueText(enhet.getNavn());
-                } else if (EToopConcept.REGISTRATION_DATE.getAsQName().equals(conceptRequest.getName()) &&
-                           enhet.getRegistreringsdatoEnhetsregisteret()!=null) {
-                    conceptBuilder = ConceptPojo.builder()
-                        .name(EToopConcept.REGISTRATION_DATE)
-                        .valueDate(LocalDate.parse(enhet.getRegistreringsdatoEnhetsregisteret(), DateTimeFormatter.ofPattern("uuuu-MM-dd")));
-                } else if (EToopConcept.COMPANY_CODE.getAsQName().equals(conceptRequest.getName()) &&
-                           enhet.getOrganisasjonsnummer()!=null) {
-                    conceptBuilder = ConceptPojo.builder()
-                        .name(EToopConcept.COMPANY_CODE)
-                        .valueText(enhet.getOrganisasjonsnummer());
-                } else if (EToopConcept.VAT_NUMBER.getAsQName().equals(conceptRequest.getName()) &&
-                        enhet.getOrganisasjonsnummer()!=null &&
-                        enhet.getRegistrertIMvaregisteret()!=null && enhet.getRegistrertIMvaregisteret()) {
-                    conceptBuilder = ConceptPojo.builder()
-                            .name(EToopConcept.VAT_NUMBER)
-                            .valueText(enhet.getOrganisasjonsnummer()+"MVA");
-                } else if (EToopConcept.FOUNDATION_DATE.getAsQName().equals(conceptRequest.getName()) &&
-                        enhet.getStiftelsedato()!=null) {
-                    conceptBuilder = ConceptPojo.builder()
-                        .name(EToopConcept.FOUNDATION_DATE)
-                        .valueDate(LocalDate.parse(enhet.getStiftelsedato(), DateTimeFormatter.ofPattern("uuuu-MM-dd")));
-                }
-
-                //Enhet.Organisasjonsform
-                if (enhet.getOrganisasjonsform() != null) {
-                    if (EToopConcept.COMPANY_TYPE.getAsQName().equals(conceptRequest.getName()) &&
-                        enhet.getOrganisasjonsform() != null && enhet.getOrganisasjonsform().getKode() != null) {
-                        conceptBuilder = ConceptPojo.builder()
-                            .name(EToopConcept.COMPANY_TYPE)
-                            .valueText(enhet.getOrganisasjonsform().getKode());
-                    }
-                }
-
-                //Enhet.Forretningsadresse
-                if (enhet.getForretningsadresse() != null) {
-                    if (EToopConcept.COUNTRY_NAME.getAsQName().equals(conceptRequest.getName()) &&
-                            enhet.getForretningsadresse().getLandkode()!=null) {
-                        conceptBuilder = ConceptPojo.builder()
-                            .name(EToopConcept.COUNTRY_NAME)
-                            .valueText(enhet.getForretningsadresse().getLandkode());
-                    } else if (EToopConcept.POSTAL_CODE.getAsQName().equals(conceptRequest.getName()) &&
-                            (enhet.getForretningsadresse().getPostnummer()!=null || enhet.getForretningsadresse().getPoststed()!=null)) {
-                        StringBuilder sb = new StringBuilder();
-                        if (enhet.getForretningsadresse().getPostnummer()!=null) {
-                            sb.append(enhet.getForretningsadresse().getPostnummer());
-                        }
-                        if (enhet.getForretningsadresse().getPoststed()!=null) {
-                            if (sb.length()>0) {
-                                sb.append(' ');
-                            }
-                            sb.append(enhet.getForretningsadresse().getPoststed());
-                        }
-                        conceptBuilder = ConceptPojo.builder()
-                            .name(EToopConcept.POSTAL_CODE)
-                            .valueText(sb.toString());
-                    } else if (EToopConcept.REGION.getAsQName().equals(conceptRequest.getName()) &&
-                               enhet.getForretningsadresse().getKommune()!=null) {
-                        conceptBuilder = ConceptPojo.builder()
-                                .name(EToopConcept.REGION)
-                                .valueText(enhet.getForretningsadresse().getKommune());
-                    } else if (EToopConcept.STREET_ADDRESS.getAsQName().equals(conceptRequest.getName()) &&
-                               enhet.getForretningsadresse().getAdresse()!=null) {
-                        StringBuilder sb = new StringBuilder();
-                        for (String adresselinje : enhet.getForretningsadresse().getAdresse()) {
-                            if (sb.length()>0) {
-                                sb.append('\n');
-                            }
-                            sb.append(adresselinje);
-                        }
-                        conceptBuilder = ConceptPojo.builder()
-                                .name(EToopConcept.STREET_ADDRESS)
-                                .valueText(sb.toString());
-                    }
-                }
-
-                //Enhet.Næringskode1
-                if (enhet.getNaeringskode1() != null) {
-                    if (EToopConcept.NACE_CODE.getAsQName().equals(conceptRequest.getName()) &&
-                        enhet.getNaeringskode1()!=null && enhet.getNaeringskode1().getKode()!=null) {
-                        conceptBuilder = ConceptPojo.builder()
-                            .name(EToopConcept.NACE_CODE)
-                            .valueText(enhet.getNaeringskode1().getKode());
-                    }
-                }
-
+                ConceptPojo.Builder conceptBuilder = enrichment.getConcept(dpEnrichmentHandler.getSupportedConcept(conceptRequest.getName()));
                 if (conceptBuilder == null) {
                     conceptBuilder = ConceptPojo.builder()
                             .name(conceptRequest.getName())
@@ -294,43 +412,24 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
             }
             edmResponseBuilder = EDMResponse.builderConcept().concept(conceptsBuilder.build());
         }
+        buildSpan.close();
 
         final MERoutingInformation meRoutingInformation = getRoutingInformation(EPredefinedDocumentTypeIdentifier.QUERYRESPONSE_TOOP_EDM_V2_1,
                                                                                 EPredefinedProcessIdentifier.URN_EU_TOOP_PROCESS_DATAQUERY,
                                                                                 incomingEDMRequest.getMetadata().getReceiverID() /* incoming receiver is now sender */,
-                                                                                incomingEDMRequest.getMetadata().getSenderID() /* incoming sender is now receiver */);
+                                                                                incomingEDMRequest.getMetadata().getSenderID() /* incoming sender is now receiver */,
+                                                                                trace);
         if (meRoutingInformation == null) {
-            sendIncomingRequestFailed("Failed to get RoutingInformation");
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.NO_ROUTE, trace, "Failed to get RoutingInformation");
             return;
         }
 
         //Create message
+        final RequestTracer.Span serializeSpan = trace.startSpan("edm-serialize");
         byte[] dataBuf;
         if (isError) {
-            edmErrorResposeBuilder.requestID(edmRequest.getRequestID())
-                                   .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
-                                   .exception(EDMExceptionPojo.builder()
-                                                              .exceptionType(EEDMExceptionType.INVALID_REQUEST)
-                                                              .severityFailure()
-                                                              .errorMessage("Organization " + orgno + " not found")
-                                                              .errorOrigin(EToopErrorOrigin.RESPONSE_CREATION)
-                                                              .timestampNow()
-                                                              .build())
-                                   .errorProvider(AgentPojo.builder()
-                                           .id("9999:norway2")
-                                           .idSchemeID(EToopIdentifierType.EIDAS)
-                                           .name("Brønnøysund Register Centre")
-                                           .address(AddressPojo.builder()
-                                                   .fullAddress("Brønnøysundregistrene, Havnegata 48, 8900 Brønnøysund, Norway")
-                                                   .streetName("Havnegata 48")
-                                                   .postalCode("8910 Brønnøysund")
-                                                   .town("Brønnøysund")
-                                                   .countryCode("NO")
-                                                   .build())
-                                           .build())
-                                   .responseStatus(ERegRepResponseStatus.FAILURE);
-
-            dataBuf = edmErrorResposeBuilder.build().getWriter().getAsBytes();
+            dataBuf = edmSerializer.serialize(createErrorResponse(edmRequest.getRequestID(), EEDMExceptionType.INVALID_REQUEST,
+                                                                  EToopErrorOrigin.RESPONSE_CREATION, "Organization " + orgno + " not found"));
         } else {
             edmResponseBuilder.requestID(edmRequest.getRequestID())
                                 .dataProvider(norway())
@@ -338,25 +437,18 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
                                 .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
                                 .responseStatus(ERegRepResponseStatus.SUCCESS);
 
-            dataBuf = edmResponseBuilder.build().getWriter().getAsBytes();
+            dataBuf = edmSerializer.serialize(edmResponseBuilder.build());
         }
+        serializeSpan.close();
 
-        final MEMessage meMessage = MEMessage.builder().senderID(incomingEDMRequest.getMetadata().getReceiverID())
-                                                 .receiverID(incomingEDMRequest.getMetadata().getSenderID())
-                                                 .docTypeID(EPredefinedDocumentTypeIdentifier.QUERYRESPONSE_TOOP_EDM_V2_1)
-                                                 .processID(EPredefinedProcessIdentifier.URN_EU_TOOP_PROCESS_DATAQUERY)
-                                                 .payload(MEPayload.builder()
-                                                                .mimeTypeRegRep()
-                                                                .randomContentID()
-                                                                .data(dataBuf)
-                                                                .build())
-                                                 .build();
+        final MEMessage meMessage = createResponseMessage(incomingEDMRequest, dataBuf);
 
         //Send response
-        try {
+        try (RequestTracer.Span span = trace.startSpan("as4-send")) {
             TCAPIHelper.sendAS4Message(meRoutingInformation, meMessage);
+            dpResponseStore.complete(responseKey, meRoutingInformation, meMessage);
         } catch (MEOutgoingException e) {
-            sendIncomingRequestFailed("Got exception when sending AS4 message: "+e.getMessage());
+            sendIncomingRequestFailed(incomingEDMRequest, responseKey, Rejection.SEND_FAILED, trace, "Got exception when sending AS4 message: "+e.getMessage());
         }
     }
 
@@ -364,6 +456,16 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
     public void handleIncomingResponse(@Nonnull IncomingEDMResponse incomingEDMResponse) throws MEIncomingException {
         EDMResponse edmResponse = incomingEDMResponse.getResponse();
         loggerHandler.log(LoggerHandler.Level.INFO, "Got incoming reponse for request " + edmResponse.getRequestID());
+        final RequestTracer.Trace trace = requestTracer.getActiveTrace(edmResponse.getRequestID());
+        if (trace != null) {
+            trace.closeOpenSpans();
+        }
+        try (RequestTracer.Span span = trace==null ? null : trace.startSpan("response-mapping")) {
+            mapIncomingResponse(edmResponse);
+        }
+    }
+
+    private void mapIncomingResponse(final EDMResponse edmResponse) {
 
         //Is this a request we support?
         IEDMResponsePayloadConcepts conceptPayloadProvider = null;
@@ -391,7 +493,8 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
             return;
         }
 
-        //Populate Enhet
+        //Populate Enhet with everything in the response. It is cut down to the concepts the caller asked for on
+        //the node owning the request (see completePendingRequest), which may not be this one
         Enhet enhet = new Enhet();
         for (ConceptPojo conceptResponse : registeredOrganizationConceptResponse.children()) {
             if (conceptResponse==null || conceptResponse.isErrorValue()) {
@@ -426,7 +529,7 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
                 getOrCreateForretningsAdresse(enhet).setAdresse(Collections.singletonList(conceptResponse.getValue().getAsString()));
             }
             //Enhet.Næringskode1
-            else if (EToopConcept.COUNTRY_NAME.getAsQName().equals(conceptResponse.getName())) {
+            else if (EToopConcept.NACE_CODE.getAsQName().equals(conceptResponse.getName())) {
                 if (enhet.getNaeringskode1()==null) {
                     enhet.setNaeringskode1(new Naeringskode());
                 }
@@ -434,74 +537,169 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
             }
         }
 
-        synchronized (requestMapLock) {
-            Request request = requestMap.get(edmResponse.getRequestID());
-            if (request == null) {
-                loggerHandler.log(LoggerHandler.Level.INFO, "Request for response "+edmResponse.getRequestID()+" already removed from pending queue");
-                return;
-            }
-
-            synchronized(request) {
-                request.getResponse().setEnhet(enhet);
-                request.getResponse().setStatus(HttpStatus.OK);
-                requestMap.remove(request);
-                synchronized (request.getLock()) {
-                    request.getLock().notify();
-                }
-            }
-        }
+        final ToopResponse toopResponse = new ToopResponse(HttpStatus.OK, null);
+        toopResponse.setEnhet(enhet);
+        deliverResponse(edmResponse.getRequestID(), toopResponse, "response");
     }
 
     @Override
     public void handleIncomingErrorResponse(@Nonnull IncomingEDMErrorResponse incomingEDMErrorResponse) throws MEIncomingException {
         EDMErrorResponse edmErrorResponse = incomingEDMErrorResponse.getErrorResponse();
         loggerHandler.log(LoggerHandler.Level.INFO, "Got incoming error reponse for request " + edmErrorResponse.getRequestID());
+        final RequestTracer.Trace trace = requestTracer.getActiveTrace(edmErrorResponse.getRequestID());
+        if (trace != null) {
+            trace.closeOpenSpans();
+        }
 
-        synchronized (requestMapLock) {
-            Request request = requestMap.get(edmErrorResponse.getRequestID());
-            if (request == null) {
-                loggerHandler.log(LoggerHandler.Level.INFO, "Request for error response "+edmErrorResponse.getRequestID()+" already removed from pending queue");
-                return;
+        deliverResponse(edmErrorResponse.getRequestID(), createErrorToopResponse(edmErrorResponse), "error response");
+    }
+
+    /**
+     * Maps the first exception of an EDMErrorResponse to a status, keeping the remote error message.
+     * Only OBJECT_NOT_FOUND is a definite answer, so only it has no message and may be negative-cached.
+     * QUOTA_EXCEEDED and TIMEOUT are transient, and are answered as 503 and 504.
+     */
+    static ToopResponse createErrorToopResponse(final EDMErrorResponse edmErrorResponse) {
+        final EDMExceptionPojo exception = edmErrorResponse.getAllExceptions().isEmpty() ? null : edmErrorResponse.getAllExceptions().get(0);
+        final EEDMExceptionType exceptionType = exception==null ? null : exception.getExceptionType();
+        final String errorMessage = exception==null || exception.getErrorMessage()==null ? "Error response without exception" : exception.getErrorMessage();
+        if (exceptionType == EEDMExceptionType.OBJECT_NOT_FOUND) {
+            return new ToopResponse(HttpStatus.NOT_FOUND, null);
+        } else if (exceptionType == EEDMExceptionType.QUOTA_EXCEEDED) {
+            return new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, errorMessage);
+        } else if (exceptionType == EEDMExceptionType.TIMEOUT) {
+            return new ToopResponse(HttpStatus.GATEWAY_TIMEOUT, errorMessage);
+        }
+        return new ToopResponse(HttpStatus.BAD_GATEWAY, errorMessage);
+    }
+
+    private void deliverResponse(final String requestId, final ToopResponse toopResponse, final String responseType) {
+        //The AS4 response may arrive at another node than the one that sent the request
+        if (!responseCorrelator.isLocal(requestId)) {
+            if (!responseCorrelator.forward(requestId, toopResponse)) {
+                loggerHandler.log(LoggerHandler.Level.ERROR, "Could not forward "+responseType+" for request "+requestId+" to its node");
+            }
+            return;
+        }
+
+        if (!completePendingRequest(requestId, toopResponse)) {
+            loggerHandler.log(LoggerHandler.Level.INFO, "Request for "+responseType+" "+requestId+" already removed from pending queue");
+        }
+    }
+
+    /**
+     * Completes a request pending on this node, with the Enhet cut down to the concepts the request asked for.
+     * Returns false if it is unknown or has already timed out.
+     */
+    public boolean completePendingRequest(final String requestId, final ToopResponse toopResponse) {
+        final Request request = removePendingRequest(requestId);
+        if (request == null) {
+            return false;
+        }
+        if (toopResponse.getEnhet() != null) {
+            toopResponse.setEnhet(projectEnhet(toopResponse.getEnhet(), request.getConcepts()));
+        }
+        request.getResponse().complete(toopResponse);
+        return true;
+    }
+
+    /**
+     * Returns a copy of the Enhet with only the fields mapped from the given concepts (see mapIncomingResponse).
+     */
+    static Enhet projectEnhet(final Enhet enhet, final Set<EToopConcept> concepts) {
+        final Enhet projected = new Enhet();
+        if (concepts.contains(EToopConcept.COMPANY_NAME)) {
+            projected.setNavn(enhet.getNavn());
+        }
+        if (concepts.contains(EToopConcept.REGISTRATION_DATE)) {
+            projected.setRegistreringsdatoEnhetsregisteret(enhet.getRegistreringsdatoEnhetsregisteret());
+        }
+        if (concepts.contains(EToopConcept.COMPANY_CODE)) {
+            projected.setOrganisasjonsnummer(enhet.getOrganisasjonsnummer());
+        }
+        if (concepts.contains(EToopConcept.FOUNDATION_DATE)) {
+            projected.setStiftelsedato(enhet.getStiftelsedato());
+        }
+        if (concepts.contains(EToopConcept.COMPANY_TYPE) && enhet.getOrganisasjonsform()!=null && enhet.getOrganisasjonsform().getKode()!=null) {
+            projected.setOrganisasjonsform(new Organisasjonsform());
+            projected.getOrganisasjonsform().setKode(enhet.getOrganisasjonsform().getKode());
+        }
+
+        final Adresse forretningsadresse = enhet.getForretningsadresse();
+        if (forretningsadresse != null) {
+            if (concepts.contains(EToopConcept.COUNTRY_NAME) && forretningsadresse.getLandkode()!=null) {
+                getOrCreateForretningsAdresse(projected).setLandkode(forretningsadresse.getLandkode());
+            }
+            if (concepts.contains(EToopConcept.POSTAL_CODE) && forretningsadresse.getPoststed()!=null) {
+                getOrCreateForretningsAdresse(projected).setPoststed(forretningsadresse.getPoststed());
             }
+            if (concepts.contains(EToopConcept.REGION) && forretningsadresse.getKommune()!=null) {
+                getOrCreateForretningsAdresse(projected).setKommune(forretningsadresse.getKommune());
+            }
+            if (concepts.contains(EToopConcept.STREET_ADDRESS) && forretningsadresse.getAdresse()!=null) {
+                getOrCreateForretningsAdresse(projected).setAdresse(forretningsadresse.getAdresse());
+            }
+        }
 
-            synchronized(request) {
-                request.getResponse().setStatus(HttpStatus.NOT_FOUND);
-                requestMap.remove(request);
-                synchronized(request.getLock()) {
-                    request.getLock().notify();
+        if (concepts.contains(EToopConcept.NACE_CODE) && enhet.getNaeringskode1()!=null && enhet.getNaeringskode1().getKode()!=null) {
+            projected.setNaeringskode1(new Naeringskode());
+            projected.getNaeringskode1().setKode(enhet.getNaeringskode1().getKode());
+        }
+        return projected;
+    }
+
+    /**
+     * Parses a comma separated list of concept names, e.g. "COMPANY_NAME,COMPANY_CODE", into the concepts to
+     * ask the remote DP for. Returns null if fields is empty, meaning all SUPPORTED_CONCEPTS.
+     */
+    public static Set<EToopConcept> parseConcepts(final String fields) {
+        if (fields==null || fields.trim().isEmpty()) {
+            return null;
+        }
+        final Set<EToopConcept> concepts = EnumSet.noneOf(EToopConcept.class);
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (field.isEmpty()) {
+                continue;
+            }
+            EToopConcept concept = null;
+            for (EToopConcept supportedConcept : SUPPORTED_CONCEPTS) {
+                if (supportedConcept.name().equalsIgnoreCase(field)) {
+                    concept = supportedConcept;
                 }
             }
+            if (concept == null) {
+                throw new IllegalArgumentException("Unsupported field \""+field+"\". Supported fields are "+SUPPORTED_CONCEPTS);
+            }
+            concepts.add(concept);
+        }
+        return concepts.isEmpty() ? null : concepts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<EToopConcept> getRequestedConcepts(final Map<String,Object> properties) {
+        final Object concepts = properties==null ? null : properties.get(CONCEPTS_PROPERTY);
+        return concepts==null ? SUPPORTED_CONCEPTS : (Set<EToopConcept>) concepts;
+    }
+
+    private Request removePendingRequest(final String requestId) {
+        synchronized (requestMapLock) {
+            return requestMap.remove(requestId);
         }
     }
 
     private MERoutingInformation getRoutingInformation(final IDocumentTypeIdentifier docTypeIdentifier, final IProcessIdentifier processIdentifier,
-                                                       IParticipantIdentifier senderId, final IParticipantIdentifier receiverId) {
+                                                       IParticipantIdentifier senderId, final IParticipantIdentifier receiverId,
+                                                       final RequestTracer.Trace trace) {
         //Query for SMP Endpoint
         final String transportProtocol = ESMPTransportProfile.TRANSPORT_PROFILE_BDXR_AS4.getID();
-        EndpointType endpointType = null;
-        for (InetAddress dnsServer : dnsServers) {
-            try {
-                DnsjavaInit.initWithCustomDNSServers(new CommonsArrayList<>(dnsServer));
-                endpointType = TCAPIHelper.querySMPEndpoint(receiverId, docTypeIdentifier, processIdentifier, transportProtocol);
-                break; //We have got a response. Break out of for-loop
-            } catch (Exception e) {
-                loggerHandler.log(LoggerHandler.Level.INFO, "Resolve using "+dnsServer.toString()+" failed: " + e.getMessage());
-            }
+        final SmpEndpointCache.SmpEndpoint endpoint;
+        try (RequestTracer.Span span = trace.startSpan("routing")) {
+            endpoint = smpEndpointCache.getEndpoint(docTypeIdentifier, processIdentifier, receiverId, transportProtocol);
         }
 
         //Did we find an endpoint?
-        if (endpointType == null) {
-            loggerHandler.log(LoggerHandler.Level.ERROR, "SME lookup failed for "+receiverId);
-            return null;
-        }
-
-        //Create x509Certificate, we only have byte[]
-        final X509Certificate certificate;
-        try (InputStream is = new ByteArrayInputStream(endpointType.getCertificate())){
-            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-            certificate = (X509Certificate) certificateFactory.generateCertificate(is);
-        } catch (CertificateException | IOException e) {
-            loggerHandler.log(LoggerHandler.Level.ERROR, "Failed to get CertificateFactory instance: " + e.getMessage());
+        if (endpoint == null) {
             return null;
         }
 
@@ -510,8 +708,8 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
                 docTypeIdentifier,
                 processIdentifier,
                 transportProtocol,
-                endpointType.getEndpointURI(),
-                certificate);
+                endpoint.getEndpointUri(),
+                endpoint.getCertificate());
     }
 
     private AgentPojo norway() {
@@ -535,54 +733,247 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
                 .build();
     }
 
-    private void sendIncomingRequestFailed(final String errorMsg) {
+    static EDMErrorResponse createErrorResponse(final String requestId, final EEDMExceptionType exceptionType, final EToopErrorOrigin errorOrigin,
+                                                final String errorMessage) {
+        return EDMErrorResponse.builder()
+                .requestID(requestId)
+                .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
+                .exception(EDMExceptionPojo.builder()
+                                           .exceptionType(exceptionType)
+                                           .severityFailure()
+                                           .errorMessage(errorMessage)
+                                           .errorOrigin(errorOrigin)
+                                           .timestampNow()
+                                           .build())
+                .errorProvider(ERROR_PROVIDER)
+                .responseStatus(ERegRepResponseStatus.FAILURE)
+                .build();
+    }
+
+    private static MEMessage createResponseMessage(final IncomingEDMRequest incomingEDMRequest, final byte[] dataBuf) {
+        return MEMessage.builder().senderID(incomingEDMRequest.getMetadata().getReceiverID() /* incoming receiver is now sender */)
+                                  .receiverID(incomingEDMRequest.getMetadata().getSenderID() /* incoming sender is now receiver */)
+                                  .docTypeID(EPredefinedDocumentTypeIdentifier.QUERYRESPONSE_TOOP_EDM_V2_1)
+                                  .processID(EPredefinedProcessIdentifier.URN_EU_TOOP_PROCESS_DATAQUERY)
+                                  .payload(MEPayload.builder()
+                                                    .mimeTypeRegRep()
+                                                    .randomContentID()
+                                                    .data(dataBuf)
+                                                    .build())
+                                  .build();
+    }
+
+    /**
+     * Records why the incoming request failed, and answers it with an EDMErrorResponse at once if the
+     * rejection has an exception type. Routing and send failures leave no way to answer.
+     */
+    private void sendIncomingRequestFailed(final IncomingEDMRequest incomingEDMRequest, final String responseKey, final Rejection rejection,
+                                           final RequestTracer.Trace trace, final String errorMsg) {
+        trace.setAttribute("error", errorMsg);
+        trace.setAttribute("rejection", rejection.getTag());
         loggerHandler.log(LoggerHandler.Level.ERROR, errorMsg);
-        //TODO, send error response
+
+        boolean isAnswered = false;
+        if (rejection == Rejection.OVERLOADED) {
+            //Under overload only a few rejections are answered at a time. The rest are left to time out at the DC
+            if (overloadAnswers.tryAcquire()) {
+                try {
+                    isAnswered = sendErrorResponse(incomingEDMRequest, null, rejection.exceptionType, rejection.errorOrigin, errorMsg, trace);
+                } finally {
+                    overloadAnswers.release();
+                }
+            }
+        } else if (rejection.exceptionType != null) {
+            isAnswered = sendErrorResponse(incomingEDMRequest, rejection.isPermanent ? responseKey : null, rejection.exceptionType, rejection.errorOrigin,
+                                           errorMsg, trace);
+        }
+        meterRegistry.counter("toop.dp.rejected", "reason", rejection.getTag(), "answered", Boolean.toString(isAnswered)).increment();
+    }
+
+    private boolean sendErrorResponse(final IncomingEDMRequest incomingEDMRequest, final String responseKey, final EEDMExceptionType exceptionType,
+                                      final EToopErrorOrigin errorOrigin, final String errorMsg, final RequestTracer.Trace trace) {
+        final MERoutingInformation meRoutingInformation = getRoutingInformation(EPredefinedDocumentTypeIdentifier.QUERYRESPONSE_TOOP_EDM_V2_1,
+                                                                                EPredefinedProcessIdentifier.URN_EU_TOOP_PROCESS_DATAQUERY,
+                                                                                incomingEDMRequest.getMetadata().getReceiverID() /* incoming receiver is now sender */,
+                                                                                incomingEDMRequest.getMetadata().getSenderID() /* incoming sender is now receiver */,
+                                                                                trace);
+        if (meRoutingInformation == null) {
+            loggerHandler.log(LoggerHandler.Level.ERROR, "Failed to get RoutingInformation for error response to " + incomingEDMRequest.getRequest().getRequestID());
+            return false;
+        }
+
+        final byte[] dataBuf;
+        try (RequestTracer.Span span = trace.startSpan("edm-serialize")) {
+            dataBuf = edmSerializer.serialize(createErrorResponse(incomingEDMRequest.getRequest().getRequestID(), exceptionType,
+                                                                  errorOrigin, errorMsg));
+        }
+        final MEMessage meMessage = createResponseMessage(incomingEDMRequest, dataBuf);
+
+        try (RequestTracer.Span span = trace.startSpan("as4-send")) {
+            TCAPIHelper.sendAS4Message(meRoutingInformation, meMessage);
+            if (responseKey != null) {
+                dpResponseStore.complete(responseKey, meRoutingInformation, meMessage);
+            }
+            return true;
+        } catch (MEOutgoingException e) {
+            loggerHandler.log(LoggerHandler.Level.ERROR, "Got exception when sending error response to " + incomingEDMRequest.getRequest().getRequestID() + ": " + e.getMessage());
+            return false;
+        }
     }
 
     public ToopResponse getByIdentifier(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson) {
+        return getByIdentifier(countrycode, identifier, properties, isLegalPerson, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.INTERACTIVE);
+    }
+
+    public ToopResponse getByIdentifier(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson,
+                                        final DcResultCache.CacheControl cacheControl, final DcSendScheduler.Priority priority) {
+        try {
+            return queryByIdentifier(countrycode, identifier, properties, isLegalPerson, cacheControl, priority).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final String msg = "Request timed out";
+            loggerHandler.log(LoggerHandler.Level.ERROR, msg);
+            return new ToopResponse(HttpStatus.GATEWAY_TIMEOUT, msg);
+        } catch (ExecutionException e) {
+            final String msg = "Request failed: "+e.getCause().getMessage();
+            loggerHandler.log(LoggerHandler.Level.ERROR, msg, e.getCause());
+            return new ToopResponse(HttpStatus.INTERNAL_SERVER_ERROR, msg);
+        }
+    }
+
+    /**
+     * Sends a DC query and returns without waiting for the answer. The returned future is completed
+     * when the matching response or error response arrives, or with GATEWAY_TIMEOUT when the destination
+     * country's adaptive deadline (at most REQUEST_TIMEOUT) has passed since the query was sent. A query
+     * that waits longer than DcSendScheduler.getMaxQueueWait() to be sent is completed with
+     * SERVICE_UNAVAILABLE without being sent.
+     * Answers may come from DcResultCache, or be shared with an identical query already in flight.
+     * The priority class decides the pending-request quota and the send order (see DcSendScheduler).
+     * Interactive queries are rejected at once when admission control or the quota is full, while bulk
+     * queries wait for up to REQUEST_TIMEOUT.
+     */
+    public CompletableFuture<ToopResponse> queryByIdentifier(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson,
+                                                             final DcResultCache.CacheControl cacheControl, final DcSendScheduler.Priority priority) {
+        final long admissionDeadline = System.nanoTime() + (priority==DcSendScheduler.Priority.BULK ? REQUEST_TIMEOUT.toNanos() : 0L);
+        return queryByIdentifier(countrycode, identifier, properties, isLegalPerson, cacheControl, priority, admissionDeadline);
+    }
+
+    /**
+     * As above, but waits for admission and a pending-request slot until admissionDeadline (System.nanoTime)
+     * instead of being rejected at once. Pass System.nanoTime() to not wait.
+     */
+    public CompletableFuture<ToopResponse> queryByIdentifier(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson,
+                                                             final DcResultCache.CacheControl cacheControl, final DcSendScheduler.Priority priority,
+                                                             final long admissionDeadline) {
+        final RequestTracer.Trace trace = requestTracer.startTrace("dc");
+        trace.setAttribute("country", countrycode);
+        trace.setAttribute("priority", priority.name());
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_DESTINATION, countrycode);
+        if (isLegalPerson) {
+            trace.setAttribute("orgno", identifier);
+            trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_ORGNO, identifier);
+        }
+        final CompletableFuture<ToopResponse> response = dcResultCache.get(DcResultCache.getKey(countrycode, identifier, properties, isLegalPerson),
+                                                                           cacheControl==null ? DcResultCache.CacheControl.DEFAULT : cacheControl,
+                                                                           priority,
+                                                                           onSent -> sendQuery(countrycode, identifier, properties, isLegalPerson, priority, admissionDeadline,
+                                                                                               onSent, trace));
+        response.whenComplete((r, e) -> {
+            if (!trace.hasAttribute("sent")) {
+                trace.setAttribute("cached", "true"); //Answered from DcResultCache, or by an identical query in flight
+            }
+            requestTracer.finish(trace, r!=null ? r.getStatus().name() : "FAILED");
+        });
+        return response;
+    }
+
+    private CompletableFuture<ToopResponse> sendQuery(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson,
+                                                      final DcSendScheduler.Priority priority, final long admissionDeadline, final Runnable onSent,
+                                                      final RequestTracer.Trace trace) {
+        trace.setAttribute("sent", "true");
         CountryCode norway = countryCodeCache.getCountryCode(NORWEGIAN_COUNTRYCODE);
         if (norway == null) {
             final String msg = "Could not find Norway in CountryCode cache!";
             loggerHandler.log(LoggerHandler.Level.ERROR, msg);
-            return new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg);
+            return CompletableFuture.completedFuture(new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg));
         }
 
         CountryCode receiverCountry = countryCodeCache.getCountryCode(countrycode);
         if (receiverCountry == null) {
             final String msg = "Could not find code \""+countrycode+"\" in CountryCode cache!";
             loggerHandler.log(LoggerHandler.Level.ERROR, msg);
-            return new ToopResponse(HttpStatus.NOT_FOUND, msg);
+            return CompletableFuture.completedFuture(new ToopResponse(HttpStatus.NOT_FOUND, msg));
+        }
+
+        //Don't park the caller on a route that has hardly answered anything recently
+        if (!countryLatencyTracker.allowQuery(receiverCountry.getCode())) {
+            final String msg = "Country \""+countrycode+"\" is not answering. Try again later";
+            loggerHandler.log(LoggerHandler.Level.INFO, msg);
+            trace.setAttribute("fast-fail", "true");
+            return CompletableFuture.completedFuture(new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg));
+        }
+
+        //Shed load when the destination country already has too many requests, unless the caller may wait
+        final AdmissionHandler.Admission admission;
+        try (RequestTracer.Span span = trace.startSpan("admission")) {
+            admission = admissionHandler.admit(AdmissionHandler.Direction.DC, receiverCountry.getCode(), admissionDeadline);
+        }
+        if (!admission.isAdmitted()) {
+            final String msg = "Too many pending requests to \""+countrycode+"\": "+admission.getRejection();
+            loggerHandler.log(LoggerHandler.Level.INFO, msg);
+            return CompletableFuture.completedFuture(createRetryableResponse(getRejectionStatus(admission.getRejection()), msg));
         }
 
+        //Bulk queries cannot take the pending-request capacity of interactive ones, or the other way around
+        final DcSendScheduler.Permit permit;
+        try (RequestTracer.Span span = trace.startSpan("pending-quota")) {
+            permit = dcSendScheduler.acquire(priority, admissionDeadline);
+        }
+        if (permit == null) {
+            admission.release();
+            final String msg = "Too many pending "+priority.name().toLowerCase(Locale.ROOT)+" requests";
+            loggerHandler.log(LoggerHandler.Level.INFO, msg);
+            return CompletableFuture.completedFuture(createRetryableResponse(HttpStatus.TOO_MANY_REQUESTS, msg));
+        }
+
+        try {
+            final CompletableFuture<ToopResponse> response = sendAdmittedQuery(norway, receiverCountry, identifier, properties, isLegalPerson, priority, onSent, trace);
+            response.whenComplete((r, e) -> {
+                permit.release();
+                admission.release();
+            });
+            return response;
+        } catch (RuntimeException e) {
+            permit.release();
+            admission.release();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<ToopResponse> sendAdmittedQuery(final CountryCode norway, final CountryCode receiverCountry, final String identifier,
+                                                              final Map<String,Object> properties, final boolean isLegalPerson,
+                                                              final DcSendScheduler.Priority priority, final Runnable onSent,
+                                                              final RequestTracer.Trace trace) {
         IParticipantIdentifier sender = SimpleIdentifierFactory.INSTANCE.createParticipantIdentifier(CountryCodeCache.COUNTRY_SCHEME, norway.getId());
         IParticipantIdentifier receiver = SimpleIdentifierFactory.INSTANCE.createParticipantIdentifier(CountryCodeCache.COUNTRY_SCHEME, receiverCountry.getId());
         final MERoutingInformation meRoutingInformation = getRoutingInformation(EPredefinedDocumentTypeIdentifier.REGISTEREDORGANIZATION_REGISTERED_ORGANIZATION_TYPE_CONCEPT_CCCEV_TOOP_EDM_V2_1,
                                                                                 EPredefinedProcessIdentifier.URN_EU_TOOP_PROCESS_DATAQUERY,
                                                                                 sender,
-                                                                                receiver);
+                                                                                receiver,
+                                                                                trace);
         if (meRoutingInformation == null) {
             final String msg = "Failed to get RoutingInformation";
             loggerHandler.log(LoggerHandler.Level.ERROR, msg);
-            return new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg);
+            return CompletableFuture.completedFuture(new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg));
         }
 
         //Build concepts request
+        final RequestTracer.Span buildSpan = trace.startSpan("edm-build");
         final ConceptPojo.Builder conceptsBuilder = ConceptPojo.builder()
                 .randomID()
                 .name(EToopConcept.REGISTERED_ORGANIZATION);
 
-        EToopConcept[] requestedConcepts = {EToopConcept.COMPANY_NAME,
-                                            EToopConcept.REGISTRATION_DATE,
-                                            EToopConcept.COMPANY_CODE,
-                                            EToopConcept.VAT_NUMBER,
-                                            EToopConcept.FOUNDATION_DATE,
-                                            EToopConcept.COMPANY_TYPE,
-                                            EToopConcept.COUNTRY_NAME,
-                                            EToopConcept.POSTAL_CODE,
-                                            EToopConcept.REGION,
-                                            EToopConcept.STREET_ADDRESS,
-                                            EToopConcept.NACE_CODE};
+        final Set<EToopConcept> requestedConcepts = getRequestedConcepts(properties);
         for (EToopConcept requestedConcept : requestedConcepts) {
             conceptsBuilder.addChild(ConceptPojo.builder()
                                                 .randomID()
@@ -593,7 +984,7 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
         //Create message
         EDMRequest.BuilderConcept edmRequestBuilder = EDMRequest.builderConcept()
                 .concept(conceptsBuilder.build())
-                .randomID()
+                .requestID(responseCorrelator.createRequestId())
                 .dataConsumer(norway())
                 .issueDateTimeNow()
                 .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21);
@@ -615,7 +1006,7 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
 
         EDMRequest edmRequest = edmRequestBuilder.build();
 
-        byte[] dataBuf = edmRequest.getWriter().getAsBytes();
+        byte[] dataBuf = edmSerializer.serialize(edmRequest);
         final MEMessage meMessage = MEMessage.builder().senderID(sender)
                 .receiverID(receiver)
                 .docTypeID(EPredefinedDocumentTypeIdentifier.REGISTEREDORGANIZATION_REGISTERED_ORGANIZATION_TYPE_CONCEPT_CCCEV_TOOP_EDM_V2_1)
@@ -626,37 +1017,101 @@ public class BrregIncomingHandler implements IMEIncomingHandler {
                         .data(dataBuf)
                         .build())
                 .build();
+        buildSpan.close();
 
-        //Send request
-        try {
-            TCAPIHelper.sendAS4Message(meRoutingInformation, meMessage);
-        } catch (MEOutgoingException e) {
-            final String msg = "Got exception when sending AS4 message: "+e.getMessage();
-            loggerHandler.log(LoggerHandler.Level.ERROR, msg);
-            return new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg);
+        //Register as pending before sending, so a fast response cannot arrive before we are listening for it
+        requestTracer.bindRequestId(trace, edmRequest.getRequestID());
+        final Request request = new Request(edmRequest.getRequestID(), requestedConcepts);
+        synchronized(requestMapLock) {
+            requestMap.put(request.getId(), request);
         }
-
-        Request request = new Request(edmRequest.getRequestID());
-        try {
-            synchronized(requestMapLock) {
-                requestMap.put(request.getId(), request);
+        //The country's deadline runs from the send, since time in our own send queue says nothing about the
+        //destination country. The queue has a limit of its own. Whichever of the send task and the queue
+        //timeout takes the request off the queue first decides whether it is sent
+        final Duration deadline = countryLatencyTracker.getDeadline(receiverCountry.getCode());
+        trace.setAttribute("deadline-ms", Long.toString(deadline.toMillis()));
+        final Duration maxQueueWait = dcSendScheduler.getMaxQueueWait();
+        final AtomicBoolean isDequeued = new AtomicBoolean(false);
+        final AtomicLong sentNanos = new AtomicLong(0);
+        final AtomicReference<ScheduledFuture<?>> timeout = new AtomicReference<>();
+        final ScheduledFuture<?> queueTimeout = requestTimeoutExecutor.schedule(() -> {
+            if (isDequeued.compareAndSet(false, true) && removePendingRequest(request.getId()) != null) {
+                trace.setAttribute("queue-timeout", "true");
+                request.getResponse().complete(new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, "Not sent within " + maxQueueWait.toMillis() + " ms. Try again later"));
             }
-            synchronized(request.getLock()) {
-                request.getLock().wait(REQUEST_TIMEOUT.toMillis());
+        }, maxQueueWait.toMillis(), TimeUnit.MILLISECONDS);
+        request.getResponse().whenComplete((response, e) -> {
+            queueTimeout.cancel(false);
+            final ScheduledFuture<?> remoteTimeout = timeout.get();
+            if (remoteTimeout != null) {
+                remoteTimeout.cancel(false);
             }
-            return request.getResponse();
-        } catch (InterruptedException e) {
-            final String msg = "Request timed out";
-            loggerHandler.log(LoggerHandler.Level.ERROR, msg);
-            return new ToopResponse(HttpStatus.GATEWAY_TIMEOUT, msg);
-        } finally {
-            synchronized(requestMapLock) {
-                requestMap.remove(request.getId());
+            if (sentNanos.get() != 0) {
+                countryLatencyTracker.record(receiverCountry.getCode(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos.get()), getOutcome(response));
+            }
+        });
+
+        //Send request, in priority order with the other queued sends
+        final RequestTracer.Span queueSpan = trace.startSpan("send-queue");
+        final boolean isQueued = dcSendScheduler.submit(priority, () -> {
+            queueSpan.close();
+            if (!isDequeued.compareAndSet(false, true) || request.getResponse().isDone()) {
+                return; //Gave up waiting in the queue, so nobody is waiting for the answer
+            }
+            queueTimeout.cancel(false);
+            timeout.set(requestTimeoutExecutor.schedule(() -> {
+                if (removePendingRequest(request.getId()) != null) {
+                    request.getResponse().complete(new ToopResponse());
+                }
+            }, deadline.toMillis(), TimeUnit.MILLISECONDS));
+            sentNanos.set(System.nanoTime());
+            onSent.run(); //Interactive callers may share the answer from now on
+            try (RequestTracer.Span span = trace.startSpan("as4-send")) {
+                TCAPIHelper.sendAS4Message(meRoutingInformation, meMessage);
+            } catch (MEOutgoingException e) {
+                removePendingRequest(request.getId());
+                final String msg = "Got exception when sending AS4 message: "+e.getMessage();
+                loggerHandler.log(LoggerHandler.Level.ERROR, msg);
+                request.getResponse().complete(new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, msg));
             }
+            if (!request.getResponse().isDone()) {
+                //Ends when the response arrives, here or forwarded from another node, or the deadline passes
+                final RequestTracer.Span awaitSpan = trace.startSpan("await-response");
+                request.getResponse().whenComplete((response, e) -> awaitSpan.close());
+            }
+        });
+        if (!isQueued) {
+            isDequeued.set(true);
+            queueSpan.close();
+            removePendingRequest(request.getId());
+            request.getResponse().complete(new ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, "Shutting down"));
         }
+
+        return request.getResponse();
+    }
+
+    static CountryLatencyTracker.Outcome getOutcome(final ToopResponse response) {
+        if (response == null) {
+            return CountryLatencyTracker.Outcome.FAILED;
+        } else if (response.getStatus()==HttpStatus.OK || response.getStatus()==HttpStatus.NOT_FOUND) {
+            return CountryLatencyTracker.Outcome.SUCCESS;
+        } else if (response.getStatus()==HttpStatus.GATEWAY_TIMEOUT && response.getErrorMessage()==null) {
+            return CountryLatencyTracker.Outcome.TIMEOUT; //Our own deadline passed. A remote TIMEOUT error response has a message
+        }
+        return CountryLatencyTracker.Outcome.FAILED;
+    }
+
+    private static ToopResponse createRetryableResponse(final HttpStatus status, final String errorMessage) {
+        final ToopResponse response = new ToopResponse(status, errorMessage);
+        response.setRetryable(true);
+        return response;
+    }
+
+    private static HttpStatus getRejectionStatus(final AdmissionHandler.Rejection rejection) {
+        return rejection==AdmissionHandler.Rejection.RATE_LIMITED ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
     }
 
-    private Adresse getOrCreateForretningsAdresse(final Enhet enhet) {
+    private static Adresse getOrCreateForretningsAdresse(final Enhet enhet) {
         if (enhet.getForretningsadresse() == null) {
             enhet.setForretningsadresse(new Adresse());
         }
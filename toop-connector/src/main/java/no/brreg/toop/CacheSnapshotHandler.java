@@ -0,0 +1,251 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.brreg.toop.generated.model.CountryCode;
+import no.brreg.toop.generated.model.Enhet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Periodically writes the country table, the SMP endpoints and the most used Enhet entries to a local
+ * gzipped JSON file, and loads it again at startup so a restarted pod can answer before the directory,
+ * the SMP and Enhetsregisteret have been queried. Restored entries keep their original fetch time and
+ * are revalidated in the background.
+ */
+@Component
+public class CacheSnapshotHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheSnapshotHandler.class);
+
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final Duration SNAPSHOT_INTERVAL = Duration.ofMinutes(10);
+    private static final Duration REVALIDATE_DELAY = Duration.ofSeconds(30);
+    private static final Duration MAX_SNAPSHOT_AGE = Duration.ofDays(7);
+    private static final int MAX_SNAPSHOT_ENHETER = 500;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Value("${toop.snapshot.path:/tmp/toop-connector-snapshot.json.gz}")
+    private String snapshotPath;
+
+    @Autowired
+    private CountryCodeCache countryCodeCache;
+
+    @Autowired
+    private SmpEndpointCache smpEndpointCache;
+
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    private volatile boolean snapshotRestored = false;
+
+    private final ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static class SnapshotFile {
+        public int version;
+        public String created;
+        public String countryCodesCreated;
+        public List<CountryCode> countryCodes = new ArrayList<>();
+        public List<SmpEndpointEntry> smpEndpoints = new ArrayList<>();
+        public List<EnhetEntry> enheter = new ArrayList<>();
+    }
+
+    static class SmpEndpointEntry {
+        public String receiverScheme;
+        public String receiverValue;
+        public String docTypeScheme;
+        public String docTypeValue;
+        public String processScheme;
+        public String processValue;
+        public String transportProfile;
+        public String endpointUri;
+        public byte[] certificate;
+        public String fetched;
+    }
+
+    static class EnhetEntry {
+        public Enhet enhet;
+        public String fetched;
+    }
+
+
+    @PostConstruct
+    public void startSnapshots() {
+        load();
+        snapshotExecutor.schedule(this::revalidate, REVALIDATE_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+        snapshotExecutor.scheduleWithFixedDelay(this::save, SNAPSHOT_INTERVAL.toMillis(), SNAPSHOT_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stopSnapshots() {
+        snapshotExecutor.shutdownNow();
+        save();
+    }
+
+    public void load() {
+        final Path path = Paths.get(snapshotPath);
+        if (!Files.isReadable(path)) {
+            LOGGER.info("No cache snapshot found at " + path);
+            return;
+        }
+
+        final SnapshotFile snapshotFile;
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(path))) {
+            snapshotFile = objectMapper.readValue(is, SnapshotFile.class);
+        } catch (IOException | RuntimeException e) {
+            loggerHandler.log(LoggerHandler.Level.ERROR, "Failed to read cache snapshot " + path + ": " + e.getMessage());
+            return;
+        }
+
+        final LocalDateTime created = parseTime(snapshotFile.created);
+        if (snapshotFile.version!=SNAPSHOT_VERSION || created==null) {
+            loggerHandler.log(LoggerHandler.Level.INFO, "Ignoring cache snapshot " + path + " with version " + snapshotFile.version);
+            return;
+        }
+        if (created.plus(MAX_SNAPSHOT_AGE).isBefore(LocalDateTime.now())) {
+            loggerHandler.log(LoggerHandler.Level.INFO, "Ignoring cache snapshot " + path + " created " + created);
+            return;
+        }
+
+        countryCodeCache.restore(snapshotFile.countryCodes, parseTime(snapshotFile.countryCodesCreated));
+
+        int restoredEndpoints = 0;
+        for (SmpEndpointEntry entry : snapshotFile.smpEndpoints) {
+            if (entry!=null &&
+                smpEndpointCache.restore(entry.receiverScheme, entry.receiverValue, entry.docTypeScheme, entry.docTypeValue,
+                                         entry.processScheme, entry.processValue, entry.transportProfile, entry.endpointUri,
+                                         entry.certificate, parseTime(entry.fetched))) {
+                restoredEndpoints++;
+            }
+        }
+
+        int restoredEnheter = 0;
+        for (EnhetEntry entry : snapshotFile.enheter) {
+            if (entry!=null && enhetsregisterCache.restoreEnhet(entry.enhet, parseTime(entry.fetched))) {
+                restoredEnheter++;
+            }
+        }
+
+        snapshotRestored = true;
+        loggerHandler.log(LoggerHandler.Level.INFO, "Restored cache snapshot created " + created + ": " +
+                          snapshotFile.countryCodes.size() + " country codes, " + restoredEndpoints + " SMP endpoints, " + restoredEnheter + " enheter");
+    }
+
+    public void save() {
+        final SnapshotFile snapshotFile = new SnapshotFile();
+        snapshotFile.version = SNAPSHOT_VERSION;
+        snapshotFile.created = LocalDateTime.now().toString();
+
+        final CountryCodeCache.Snapshot countryCodes = countryCodeCache.getSnapshot();
+        if (!countryCodes.isEmpty()) {
+            snapshotFile.countryCodesCreated = countryCodes.getCreated().toString();
+            snapshotFile.countryCodes.addAll(countryCodes.getCountryCodes());
+        }
+
+        for (SmpEndpointCache.SmpEndpoint endpoint : smpEndpointCache.getEndpoints()) {
+            final SmpEndpointEntry entry = new SmpEndpointEntry();
+            entry.receiverScheme = endpoint.getReceiverScheme();
+            entry.receiverValue = endpoint.getReceiverValue();
+            entry.docTypeScheme = endpoint.getDocTypeScheme();
+            entry.docTypeValue = endpoint.getDocTypeValue();
+            entry.processScheme = endpoint.getProcessScheme();
+            entry.processValue = endpoint.getProcessValue();
+            entry.transportProfile = endpoint.getTransportProfile();
+            entry.endpointUri = endpoint.getEndpointUri();
+            entry.certificate = endpoint.getCertificateBytes();
+            entry.fetched = endpoint.getFetched().toString();
+            snapshotFile.smpEndpoints.add(entry);
+        }
+
+        for (EnhetsregisterCache.CachedEnhet cachedEnhet : enhetsregisterCache.getHottestEnheter(MAX_SNAPSHOT_ENHETER)) {
+            final EnhetEntry entry = new EnhetEntry();
+            entry.enhet = cachedEnhet.getEnhet();
+            entry.fetched = cachedEnhet.getFetched().toString();
+            snapshotFile.enheter.add(entry);
+        }
+
+        //Write to a temporary file and move it in place, so a crash never leaves a truncated snapshot behind
+        final Path path = Paths.get(snapshotPath);
+        try {
+            final Path directory = path.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            final Path tmpPath = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+            try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(tmpPath))) {
+                objectMapper.writeValue(os, snapshotFile);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tmpPath);
+                throw e;
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Wrote cache snapshot to {}", path);
+        } catch (IOException | RuntimeException e) {
+            loggerHandler.log(LoggerHandler.Level.ERROR, "Failed to write cache snapshot " + path + ": " + e.getMessage());
+        }
+    }
+
+    public boolean isSnapshotRestored() {
+        return snapshotRestored;
+    }
+
+    private void revalidate() {
+        try {
+            for (SmpEndpointCache.SmpEndpoint endpoint : smpEndpointCache.getEndpoints()) {
+                if (endpoint.isRestored()) {
+                    smpEndpointCache.revalidate(endpoint);
+                }
+            }
+            for (String orgno : enhetsregisterCache.getRestoredOrgnos()) {
+                enhetsregisterCache.revalidate(orgno);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Cache snapshot revalidation failed: ", e);
+        }
+    }
+
+    private LocalDateTime parseTime(final String time) {
+        if (time==null || time.isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(time);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The connector nodes of this cluster, from toop.cluster.node-id and toop.cluster.peers (nodeId=baseUrl,...).
+ * Without peers the connector runs as a single node. Calls between nodes carry toop.cluster.secret in the
+ * X-Cluster-Secret header, and the internal endpoints refuse all calls while no secret is configured.
+ */
+@Component
+public class ClusterPeers {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterPeers.class);
+
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    @Value("${toop.cluster.node-id:${HOSTNAME:}}")
+    private String nodeId;
+
+    @Value("${toop.cluster.peers:}")
+    private String peers;
+
+    @Value("${toop.cluster.secret:}")
+    private String secret;
+
+    private Map<String,String> peerUrls = Collections.emptyMap();
+
+
+    @PostConstruct
+    public void initialize() {
+        final Map<String,String> urls = new LinkedHashMap<>();
+        for (String peer : peers.split(",")) {
+            final int separator = peer.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            final String peerId = peer.substring(0, separator).trim();
+            final String peerUrl = peer.substring(separator+1).trim().replaceAll("/+$", "");
+            if (urls.put(peerId, peerUrl) != null) {
+                throw new IllegalStateException("Cluster peer " + peerId + " is listed twice");
+            }
+        }
+        peerUrls = Collections.unmodifiableMap(urls);
+
+        if (isClustered()) {
+            if (nodeId==null || nodeId.isEmpty() || !peerUrls.containsKey(nodeId)) {
+                throw new IllegalStateException("toop.cluster.node-id must be set and listed in toop.cluster.peers");
+            }
+            if (!hasSecret()) {
+                LOGGER.warn("toop.cluster.secret is not set. Internal endpoints reject all calls");
+            }
+        }
+    }
+
+    public boolean isClustered() {
+        return peerUrls.size() > 1;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isSelf(final String peerId) {
+        return nodeId!=null && nodeId.equals(peerId);
+    }
+
+    /**
+     * All nodes, including this one, mapped to their base URL.
+     */
+    public Map<String,String> getPeerUrls() {
+        return peerUrls;
+    }
+
+    public String getSecret() {
+        return secret==null ? "" : secret;
+    }
+
+    public boolean hasSecret() {
+        return secret!=null && !secret.isEmpty();
+    }
+
+    /**
+     * Returns true if peerSecret is the cluster secret. Always false while no secret is configured.
+     */
+    public boolean isTrustedPeer(final String peerSecret) {
+        if (!hasSecret()) {
+            return false;
+        }
+        return peerSecret!=null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), peerSecret.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,153 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import kong.unirest.HttpResponse;
+import kong.unirest.Unirest;
+import kong.unirest.UnirestException;
+import no.brreg.toop.generated.model.ForwardedResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+
+/**
+ * Correlator for several connector nodes behind a load balancer (toop.cluster.mode = peers).
+ *
+ * Every node is listed in toop.cluster.peers (see ClusterPeers). A request ID is a random UUID whose
+ * last 12 hex digits (the UUID node field) are replaced by a hash of the owning node ID, so it is still
+ * a valid UUID on the wire. A response for a request owned by another node is POSTed to
+ * /internal/response/{requestId} on that node.
+ */
+@Component
+@ConditionalOnProperty(name = "toop.cluster.mode", havingValue = "peers")
+public class ClusterResponseCorrelator implements ResponseCorrelator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterResponseCorrelator.class);
+
+    private static final int NODE_TAG_LENGTH = 12;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int SOCKET_TIMEOUT_MILLIS = 5000;
+
+    @Autowired
+    private ClusterPeers clusterPeers;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private String nodeTag;
+    private final Map<String,String> peerUrlByTag = new HashMap<>();
+
+
+    @PostConstruct
+    public void initialize() {
+        final String nodeId = clusterPeers.getNodeId();
+        if (nodeId==null || nodeId.isEmpty()) {
+            throw new IllegalStateException("toop.cluster.node-id must be set when toop.cluster.mode = peers");
+        }
+        if (!clusterPeers.hasSecret()) {
+            //Without it anyone who can reach /internal/response could complete our pending requests
+            throw new IllegalStateException("toop.cluster.secret must be set when toop.cluster.mode = peers");
+        }
+        nodeTag = getNodeTag(nodeId);
+
+        for (Map.Entry<String,String> peer : clusterPeers.getPeerUrls().entrySet()) {
+            if (peerUrlByTag.put(getNodeTag(peer.getKey()), peer.getValue()) != null) {
+                throw new IllegalStateException("Node tag of cluster peer " + peer.getKey() + " collides with another peer");
+            }
+        }
+        loggerHandler.log(LoggerHandler.Level.INFO, "Cluster node " + nodeId + " (tag " + nodeTag + ") with " + peerUrlByTag.size() + " peers");
+    }
+
+    @Override
+    public String getNodeId() {
+        return clusterPeers.getNodeId();
+    }
+
+    @Override
+    public String createRequestId() {
+        final String uuid = UUID.randomUUID().toString();
+        return uuid.substring(0, uuid.length()-NODE_TAG_LENGTH) + nodeTag;
+    }
+
+    @Override
+    public boolean isLocal(final String requestId) {
+        final String requestTag = getRequestTag(requestId);
+        //Requests we can't place (e.g. sent before the cluster was configured) are handled here as before
+        return requestTag==null || nodeTag.equals(requestTag) || !peerUrlByTag.containsKey(requestTag);
+    }
+
+    @Override
+    public boolean forward(final String requestId, final BrregIncomingHandler.ToopResponse response) {
+        final String peerUrl = peerUrlByTag.get(getRequestTag(requestId));
+        if (peerUrl == null) {
+            return false;
+        }
+
+        final ForwardedResponse forwardedResponse = new ForwardedResponse()
+                .status(response.getStatus().value())
+                .errorMessage(response.getErrorMessage())
+                .enhet(response.getEnhet());
+        final String url = peerUrl + "/internal/response/" + requestId;
+        try {
+            HttpResponse<String> forwardResponse = Unirest.post(url)
+                    .header("content-type", "application/json")
+                    .header(ClusterPeers.SECRET_HEADER, clusterPeers.getSecret())
+                    .connectTimeout(CONNECT_TIMEOUT_MILLIS)
+                    .socketTimeout(SOCKET_TIMEOUT_MILLIS)
+                    .body(forwardedResponse)
+                    .asString();
+            final int status = forwardResponse.getStatus();
+            if (status >= 200 && status <= 299) {
+                count("forwarded");
+                LOGGER.info("Forwarded response for request {} to {}", requestId, peerUrl);
+                return true;
+            }
+            count("rejected");
+            loggerHandler.log(LoggerHandler.Level.INFO, "Got status=" + status + " when forwarding response for request " + requestId + " to " + peerUrl);
+        } catch (UnirestException e) {
+            count("failed");
+            loggerHandler.log(LoggerHandler.Level.ERROR, "Got exception when forwarding response for request " + requestId + " to " + peerUrl + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private void count(final String result) {
+        meterRegistry.counter("toop.cluster.responses", "result", result).increment();
+    }
+
+    private static String getRequestTag(final String requestId) {
+        if (requestId==null || requestId.length()<NODE_TAG_LENGTH) {
+            return null;
+        }
+        return requestId.substring(requestId.length()-NODE_TAG_LENGTH).toLowerCase(Locale.ROOT);
+    }
+
+    private static String getNodeTag(final String nodeId) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(nodeId.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            for (int i=0; i<NODE_TAG_LENGTH/2; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Maps keys to nodes by consistent hashing. Each node is placed on the ring at a number of virtual
+ * points, so keys spread evenly and adding or removing a node only moves about 1/N of the keys.
+ */
+public class ConsistentHashRing {
+    private final TreeMap<Long,String> ring = new TreeMap<>();
+
+
+    public ConsistentHashRing(final Collection<String> nodes, final int virtualNodes) {
+        for (String node : nodes) {
+            for (int i=0; i<virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String getNode(final String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        final Map.Entry<Long,String> entry = ring.ceilingEntry(hash(key));
+        return entry!=null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long hash(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i=0; i<8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+}
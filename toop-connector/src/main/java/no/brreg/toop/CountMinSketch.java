@@ -0,0 +1,46 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+
+/**
+ * Approximate occurrence counts of keys in fixed memory. Estimates never undercount, and overcount by at
+ * most about 2/width of the total count with high probability (depth rows). Not thread safe.
+ */
+public class CountMinSketch {
+    private final int width;
+    private final long[][] counters;
+
+
+    public CountMinSketch(final int width, final int depth) {
+        this.width = width;
+        this.counters = new long[depth][width];
+    }
+
+    /**
+     * Counts one occurrence of the key with the given 64-bit hash, and returns its estimated count.
+     */
+    public long add(final long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row=0; row<counters.length; row++) {
+            final int column = getColumn(hash, row);
+            estimate = Math.min(estimate, ++counters[row][column]);
+        }
+        return estimate;
+    }
+
+    public long estimate(final long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row=0; row<counters.length; row++) {
+            estimate = Math.min(estimate, counters[row][getColumn(hash, row)]);
+        }
+        return estimate;
+    }
+
+    private int getColumn(final long hash, final int row) {
+        //Derive one hash per row from the two halves of the 64-bit hash (Kirsch-Mitzenmacher)
+        final int combined = (int) hash + row * (int) (hash >>> 32);
+        return Math.floorMod(combined, width);
+    }
+
+}
@@ -2,6 +2,7 @@ package no.brreg.toop;
 
 // This code is Public Domain. See LICENSE
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import kong.unirest.HttpResponse;
 import kong.unirest.Unirest;
 import kong.unirest.UnirestException;
@@ -13,11 +14,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.temporal.TemporalAmount;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 
 @Component
@@ -27,81 +38,327 @@ public class CountryCodeCache {
     private static final String COUNTRY_LOOKUP = "https://directory.acc.exchange.toop.eu/search/1.0/json?doctype=toop-doctypeid-qns%3A%3ARegisteredOrganization%3A%3AREGISTERED_ORGANIZATION_TYPE%3A%3ACONCEPT%23%23CCCEV%3A%3Atoop-edm%3Av2.1";
     public static final String COUNTRY_SCHEME = "iso6523-actorid-upis";
 
-    private LocalDateTime cacheTime = null;
-    private static final TemporalAmount CACHE_VALID_DURATION = Duration.ofHours(12);
+    private static final Duration CACHE_VALID_DURATION = Duration.ofHours(12);
+    private static final Duration RETRY_DURATION = Duration.ofMinutes(1);
+    private static final double REFRESH_JITTER = 0.1; //Spread refreshes +/-10% so pods don't hit the directory at the same time
+    private static final ObjectMapper objectMapper = new ObjectMapper();
     private final AtomicBoolean isUpgradingCache = new AtomicBoolean(false);
+    private final GuardedDependency directory = new GuardedDependency("directory", 2, 3, Duration.ofMinutes(5));
 
-    private static final Map<String,CountryCode> countryCodes = new HashMap<>();
-    private static final Object countryCodesLock = new Object();
+    /**
+     * The country table rendered as the JSON body of GET /query, held as bytes together with a gzipped copy
+     * and a strong ETag, so the polled listing is neither copied nor re-serialized per request.
+     */
+    public static final class Listing {
+        private final byte[] json;
+        private final byte[] gzippedJson;
+        private final String eTag;
 
+        private Listing(final List<CountryCode> countryCodes) throws IOException {
+            this.json = objectMapper.writeValueAsBytes(countryCodes);
+            final ByteArrayOutputStream gzipped = new ByteArrayOutputStream(json.length/4 + 64);
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzipped)) {
+                gzipOutputStream.write(json);
+            }
+            this.gzippedJson = gzipped.toByteArray();
+            try {
+                final byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+                final StringBuilder sb = new StringBuilder("\"");
+                for (int i=0; i<16; i++) {
+                    sb.append(String.format("%02x", digest[i]));
+                }
+                this.eTag = sb.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 not available", e);
+            }
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public byte[] getGzippedJson() {
+            return gzippedJson;
+        }
+
+        /**
+         * Strong ETag of the uncompressed body. The gzipped body has its own, since it is a different representation.
+         */
+        public String getETag(final boolean gzipped) {
+            return gzipped ? eTag.substring(0, eTag.length()-1) + "-gz\"" : eTag;
+        }
+
+        /**
+         * True if an If-None-Match header matches either representation of this listing.
+         */
+        public boolean matches(final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2); //If-None-Match uses weak comparison
+                }
+                if (tag.equals("*") || tag.equals(getETag(false)) || tag.equals(getETag(true))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Immutable, indexed view of the country table. A new instance is built off to the side
+     * on every refresh and published through a volatile reference, so readers never lock
+     * and never observe a half-filled table.
+     */
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(Collections.emptyList(), null, false);
+
+        private final List<CountryCode> countryCodes;
+        private final Map<String,CountryCode> byCode;
+        private final Map<String,CountryCode> byParticipantId;
+        private final LocalDateTime created;
+        private final boolean restored;
+        private volatile Listing listing = null;
+
+        private Snapshot(final List<CountryCode> countryCodes, final LocalDateTime created, final boolean restored) {
+            final Map<String,CountryCode> byCode = new HashMap<>();
+            final Map<String,CountryCode> byParticipantId = new HashMap<>();
+            for (CountryCode countryCode : countryCodes) {
+                byCode.putIfAbsent(countryCode.getCode(), countryCode);
+                byParticipantId.putIfAbsent(countryCode.getId(), countryCode);
+            }
+            this.countryCodes = Collections.unmodifiableList(new ArrayList<>(countryCodes));
+            this.byCode = Collections.unmodifiableMap(byCode);
+            this.byParticipantId = Collections.unmodifiableMap(byParticipantId);
+            this.created = created;
+            this.restored = restored;
+        }
+
+        public List<CountryCode> getCountryCodes() {
+            return countryCodes;
+        }
+
+        /**
+         * Returns the rendered listing, built on first use and then shared by all requests for this snapshot.
+         */
+        public Listing getListing() throws IOException {
+            Listing rendered = listing;
+            if (rendered == null) {
+                rendered = new Listing(countryCodes);
+                listing = rendered;
+            }
+            return rendered;
+        }
+
+        public CountryCode getByCode(final String code) {
+            return code==null ? null : byCode.get(code);
+        }
+
+        public CountryCode getByParticipantId(final String participantId) {
+            return participantId==null ? null : byParticipantId.get(participantId);
+        }
+
+        public LocalDateTime getCreated() {
+            return created;
+        }
+
+        /**
+         * True if this snapshot was loaded from a warm-start file and has not yet been revalidated against the directory.
+         */
+        public boolean isRestored() {
+            return restored;
+        }
+
+        public boolean isEmpty() {
+            return countryCodes.isEmpty();
+        }
+
+        /**
+         * True if the directory could not be reached when this snapshot should have been refreshed, so it is served past its validity.
+         */
+        public boolean isStale() {
+            return created!=null && created.plus(CACHE_VALID_DURATION).isBefore(LocalDateTime.now());
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "countrycode-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    @PostConstruct
+    public void startBackgroundRefresh() {
+        scheduleRefresh(RETRY_DURATION);
+    }
+
+    @PreDestroy
+    public void stopBackgroundRefresh() {
+        refreshExecutor.shutdownNow();
+    }
+
+    private void scheduleRefresh(final Duration baseDelay) {
+        final long baseMillis = baseDelay.toMillis();
+        final long jitterMillis = (long) (baseMillis * REFRESH_JITTER);
+        final long delayMillis = baseMillis + ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis+1);
+        try {
+            refreshExecutor.schedule(this::backgroundRefresh, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            LOGGER.info("Could not schedule CountryCode cache refresh: " + e.getMessage());
+        }
+    }
+
+    private void backgroundRefresh() {
+        try {
+            update();
+        } catch (RuntimeException e) {
+            LOGGER.error("CountryCode cache refresh failed: ", e);
+        } finally {
+            scheduleRefresh(nextRefreshDelay());
+        }
+    }
+
+    private Duration nextRefreshDelay() {
+        //Keep serving the previous snapshot, but try again soon if we have nothing or the last refresh failed
+        final Snapshot current = snapshot;
+        if (current.isEmpty() || current.isRestored()) {
+            return RETRY_DURATION;
+        }
+        final Duration remaining = Duration.between(LocalDateTime.now(), current.getCreated().plus(CACHE_VALID_DURATION));
+        return remaining.compareTo(RETRY_DURATION) < 0 ? RETRY_DURATION : remaining;
+    }
 
     public void update() {
         LOGGER.info("Updating CountryCode cache");
-        if (cacheTime!=null && cacheTime.plus(CACHE_VALID_DURATION).isAfter(LocalDateTime.now())) {
+        final Snapshot current = snapshot;
+        if (!current.isEmpty() && !current.isRestored() && current.getCreated().plus(CACHE_VALID_DURATION).isAfter(LocalDateTime.now())) {
             return; //Cache is still valid
         }
+        refresh();
+    }
 
-        if (isUpgradingCache.compareAndSet(false, true)) {
-            try {
-                HttpResponse<CountryCodeResult> countryLookupResponse = Unirest.get(COUNTRY_LOOKUP)
-                        .header("accept", "application/json")
-                        .asObject(CountryCodeResult.class);
-                int status = countryLookupResponse.getStatus();
-                if (status >= 200 && status <= 299) {
-                    CountryCodeResult countryCodeResult = countryLookupResponse.getBody();
-                    synchronized(countryCodesLock) {
-                        countryCodes.clear();
-                        for (CountryCodeMatch countryCodeMatch : countryCodeResult.getMatches()) {
-                            if (countryCodeMatch!=null &&
-                                countryCodeMatch.getParticipantID()!=null &&
-                                COUNTRY_SCHEME.equals(countryCodeMatch.getParticipantID().getScheme()) &&
-                                countryCodeMatch.getParticipantID().getValue()!=null &&
-                                !countryCodeMatch.getParticipantID().getValue().isEmpty() &&
-                                countryCodeMatch.getEntities()!=null &&
-                                !countryCodeMatch.getEntities().isEmpty()) {
-                                for (CountryCodeParticipantEntity entity : countryCodeMatch.getEntities()) {
-                                    if (entity!=null &&
-                                        entity.getCountryCode()!=null &&
-                                        !entity.getCountryCode().isEmpty() &&
-                                        entity.getName()!=null &&
-                                        !entity.getName().isEmpty() &&
-                                        entity.getName().get(0).getName()!=null &&
-                                        !entity.getName().get(0).getName().isEmpty() &&
-                                        !countryCodes.containsKey(entity.getCountryCode())) {
-                                        CountryCode countryCode = new CountryCode()
-                                                                        .id(countryCodeMatch.getParticipantID().getValue())
-                                                                        .code(entity.getCountryCode())
-                                                                        .name(entity.getName().get(0).getName());
-                                        countryCodes.put(countryCode.getCode(), countryCode);
-                                        LOGGER.info("Found country id={}, code={}, name={}", countryCode.getId(), countryCode.getCode(), countryCode.getName());
-                                    }
-                                }
-                            }
-                        }
+    /**
+     * Fetches the country table from the directory and publishes it as a new snapshot.
+     * Returns false (and keeps the previous snapshot) if the lookup failed or another refresh is running.
+     */
+    public boolean refresh() {
+        if (!isUpgradingCache.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            final List<CountryCode> countryCodes = directory.call(this::fetchCountryCodes);
+            if (countryCodes.isEmpty()) {
+                LOGGER.info("Country code lookup returned no countries. Keeping previous cache");
+                return false;
+            }
+            final Snapshot refreshed = new Snapshot(countryCodes, LocalDateTime.now(), false);
+            synchronized(this) {
+                snapshot = refreshed;
+            }
+            return true;
+        } catch (GuardedDependency.UnavailableException e) {
+            LOGGER.info("Could not look up country codes: " + e.getMessage() + ". Keeping previous cache");
+            return false;
+        } finally {
+            isUpgradingCache.set(false);
+        }
+    }
+
+    private List<CountryCode> fetchCountryCodes() throws IOException {
+        try {
+            HttpResponse<CountryCodeResult> countryLookupResponse = Unirest.get(COUNTRY_LOOKUP)
+                    .header("accept", "application/json")
+                    .asObject(CountryCodeResult.class);
+            int status = countryLookupResponse.getStatus();
+            if (status < 200 || status > 299) {
+                throw new IOException("Got status=" + status + " when looking up country codes");
+            }
+            return parseCountryCodes(countryLookupResponse.getBody());
+        } catch (UnirestException e) {
+            throw new IOException("Got exception when looking up country codes: " + e.getMessage(), e);
+        }
+    }
+
+    public GuardedDependency getDependency() {
+        return directory;
+    }
+
+    private List<CountryCode> parseCountryCodes(final CountryCodeResult countryCodeResult) {
+        final List<CountryCode> countryCodes = new ArrayList<>();
+        if (countryCodeResult==null || countryCodeResult.getMatches()==null) {
+            return countryCodes;
+        }
+
+        final Set<String> seenCodes = new HashSet<>();
+        for (CountryCodeMatch countryCodeMatch : countryCodeResult.getMatches()) {
+            if (countryCodeMatch!=null &&
+                countryCodeMatch.getParticipantID()!=null &&
+                COUNTRY_SCHEME.equals(countryCodeMatch.getParticipantID().getScheme()) &&
+                countryCodeMatch.getParticipantID().getValue()!=null &&
+                !countryCodeMatch.getParticipantID().getValue().isEmpty() &&
+                countryCodeMatch.getEntities()!=null &&
+                !countryCodeMatch.getEntities().isEmpty()) {
+                for (CountryCodeParticipantEntity entity : countryCodeMatch.getEntities()) {
+                    if (entity!=null &&
+                        entity.getCountryCode()!=null &&
+                        !entity.getCountryCode().isEmpty() &&
+                        entity.getName()!=null &&
+                        !entity.getName().isEmpty() &&
+                        entity.getName().get(0).getName()!=null &&
+                        !entity.getName().get(0).getName().isEmpty() &&
+                        seenCodes.add(entity.getCountryCode())) {
+                        CountryCode countryCode = new CountryCode()
+                                                        .id(countryCodeMatch.getParticipantID().getValue())
+                                                        .code(entity.getCountryCode())
+                                                        .name(entity.getName().get(0).getName());
+                        countryCodes.add(countryCode);
+                        LOGGER.info("Found country id={}, code={}, name={}", countryCode.getId(), countryCode.getCode(), countryCode.getName());
                     }
-                } else {
-                    LOGGER.info("Got status=" + status + " when looking up country codes");
                 }
-            } catch (UnirestException e) {
-                LOGGER.info("Got exception when looking up country codes: " + e.getMessage());
-            } finally {
-                isUpgradingCache.set(false);
             }
         }
-        cacheTime = LocalDateTime.now();
+        return countryCodes;
     }
 
-    public List<CountryCode> getCountryCodes() {
-        update();
-        synchronized(countryCodesLock) {
-            return new ArrayList<>(countryCodes.values());
+    /**
+     * Publishes a country table loaded from a warm-start file, unless the directory has already answered.
+     * The restored table is served until the next background refresh replaces it.
+     */
+    public boolean restore(final List<CountryCode> countryCodes, final LocalDateTime created) {
+        if (countryCodes==null || countryCodes.isEmpty() || created==null) {
+            return false;
         }
+        synchronized(this) {
+            if (!snapshot.isEmpty()) {
+                return false;
+            }
+            snapshot = new Snapshot(countryCodes, created, true);
+        }
+        LOGGER.info("Restored {} country codes from snapshot created {}", countryCodes.size(), created);
+        return true;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public List<CountryCode> getCountryCodes() {
+        return snapshot.getCountryCodes();
     }
 
     public CountryCode getCountryCode(final String country) {
-        synchronized(countryCodesLock) {
-            return countryCodes.get(country);
-        }
+        return snapshot.getByCode(country);
+    }
+
+    public CountryCode getCountryCodeByParticipantId(final String participantId) {
+        return snapshot.getByParticipantId(participantId);
     }
 
 }
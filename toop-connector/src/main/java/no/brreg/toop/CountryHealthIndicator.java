@@ -0,0 +1,43 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Reports how each destination country has answered our DC queries recently (/actuator/health): latency
+ * percentiles, timeouts and failures, the adaptive deadline and whether queries to it fail fast.
+ * Always UP, since a remote country being down says nothing about this pod.
+ */
+@Component("countries")
+public class CountryHealthIndicator implements HealthIndicator {
+    @Autowired
+    private CountryLatencyTracker countryLatencyTracker;
+
+
+    @Override
+    public Health health() {
+        final Health.Builder builder = Health.up();
+        for (Map.Entry<String,CountryLatencyTracker.Health> entry : countryLatencyTracker.getHealth().entrySet()) {
+            final CountryLatencyTracker.Health health = entry.getValue();
+            final Map<String,Object> details = new LinkedHashMap<>();
+            details.put("successes", health.getSuccesses());
+            details.put("timeouts", health.getTimeouts());
+            details.put("failures", health.getFailures());
+            details.put("p50Millis", health.getP50Millis());
+            details.put("p99Millis", health.getP99Millis());
+            details.put("deadlineMillis", health.getDeadline().toMillis());
+            details.put("failingFast", health.isFailingFast());
+            builder.withDetail(entry.getKey(), details);
+        }
+        return builder.build();
+    }
+
+}
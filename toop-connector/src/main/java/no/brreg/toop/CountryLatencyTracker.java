@@ -0,0 +1,267 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps a rolling latency histogram and outcome counts per destination country for outgoing DC queries,
+ * over the last WINDOW_SLOTS minutes. They drive an adaptive deadline for each query (p99 of the
+ * successful responses times toop.dc.deadline.factor, within [toop.dc.deadline.min-ms, REQUEST_TIMEOUT]),
+ * and fast-fail of queries to countries whose recent success rate is below toop.dc.fast-fail.success-rate.
+ * While failing fast, one probe query per PROBE_INTERVAL is still sent, so a recovered country is noticed.
+ */
+@Component
+public class CountryLatencyTracker {
+    private static final int WINDOW_SLOTS = 10;
+    private static final long SLOT_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long PROBE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final double MAX_TIMEOUT_RATIO = 0.05; //More timeouts than this means the observed p99 is too low to trust
+    private static final long[] BUCKET_BOUNDS_MILLIS = createBucketBounds(25, 1.25, BrregIncomingHandler.REQUEST_TIMEOUT.toMillis());
+
+    @Value("${toop.dc.deadline.factor:2.0}")
+    private double deadlineFactor;
+
+    @Value("${toop.dc.deadline.min-ms:2000}")
+    private long minDeadlineMillis;
+
+    @Value("${toop.dc.deadline.min-samples:20}")
+    private int minSamples;
+
+    @Value("${toop.dc.fast-fail.success-rate:0.05}")
+    private double fastFailSuccessRate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public enum Outcome {SUCCESS, TIMEOUT, FAILED}
+
+    public static final class Health {
+        private final long successes;
+        private final long timeouts;
+        private final long failures;
+        private final Long p50Millis;
+        private final Long p99Millis;
+        private final Duration deadline;
+        private final boolean failingFast;
+
+        private Health(final long successes, final long timeouts, final long failures, final Long p50Millis, final Long p99Millis,
+                       final Duration deadline, final boolean failingFast) {
+            this.successes = successes;
+            this.timeouts = timeouts;
+            this.failures = failures;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.deadline = deadline;
+            this.failingFast = failingFast;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public Long getP50Millis() {
+            return p50Millis;
+        }
+
+        public Long getP99Millis() {
+            return p99Millis;
+        }
+
+        public Duration getDeadline() {
+            return deadline;
+        }
+
+        public boolean isFailingFast() {
+            return failingFast;
+        }
+    }
+
+    private static class Slot {
+        private long start = Long.MIN_VALUE;
+        private final long[] buckets = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+        private long successes = 0;
+        private long timeouts = 0;
+        private long failures = 0;
+
+        private void reset(final long start) {
+            this.start = start;
+            Arrays.fill(buckets, 0);
+            successes = 0;
+            timeouts = 0;
+            failures = 0;
+        }
+    }
+
+    private class CountryStats {
+        private final Slot[] slots = new Slot[WINDOW_SLOTS];
+        private long lastProbeNanos = Long.MIN_VALUE;
+
+        private CountryStats() {
+            for (int i=0; i<WINDOW_SLOTS; i++) {
+                slots[i] = new Slot();
+            }
+        }
+
+        private Slot currentSlot(final long now) {
+            final long slotStart = now - Math.floorMod(now, SLOT_NANOS);
+            final Slot slot = slots[(int) Math.floorMod(slotStart / SLOT_NANOS, (long) WINDOW_SLOTS)];
+            if (slot.start != slotStart) {
+                slot.reset(slotStart);
+            }
+            return slot;
+        }
+
+        private boolean isInWindow(final Slot slot, final long now) {
+            return slot.start != Long.MIN_VALUE && now - slot.start < WINDOW_SLOTS * SLOT_NANOS;
+        }
+
+        public synchronized void record(final long latencyMillis, final Outcome outcome) {
+            final Slot slot = currentSlot(System.nanoTime());
+            if (outcome == Outcome.SUCCESS) {
+                slot.successes++;
+                slot.buckets[getBucket(latencyMillis)]++;
+            } else if (outcome == Outcome.TIMEOUT) {
+                slot.timeouts++;
+            } else {
+                slot.failures++;
+            }
+        }
+
+        public synchronized Health getHealth() {
+            final long now = System.nanoTime();
+            final long[] buckets = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+            long successes = 0;
+            long timeouts = 0;
+            long failures = 0;
+            for (Slot slot : slots) {
+                if (isInWindow(slot, now)) {
+                    for (int i=0; i<buckets.length; i++) {
+                        buckets[i] += slot.buckets[i];
+                    }
+                    successes += slot.successes;
+                    timeouts += slot.timeouts;
+                    failures += slot.failures;
+                }
+            }
+
+            final long attempts = successes + timeouts + failures;
+            final Long p50Millis = successes==0 ? null : getPercentile(buckets, successes, 0.5);
+            final Long p99Millis = successes==0 ? null : getPercentile(buckets, successes, 0.99);
+            final long maxDeadlineMillis = BrregIncomingHandler.REQUEST_TIMEOUT.toMillis();
+            long deadlineMillis = maxDeadlineMillis;
+            if (successes >= minSamples && timeouts <= attempts * MAX_TIMEOUT_RATIO) {
+                deadlineMillis = Math.min(maxDeadlineMillis, Math.max(minDeadlineMillis, (long) (p99Millis * deadlineFactor)));
+            }
+            final boolean failingFast = attempts >= minSamples && successes < attempts * fastFailSuccessRate;
+            return new Health(successes, timeouts, failures, p50Millis, p99Millis, Duration.ofMillis(deadlineMillis), failingFast);
+        }
+
+        public synchronized boolean tryProbe() {
+            final long now = System.nanoTime();
+            if (lastProbeNanos!=Long.MIN_VALUE && now - lastProbeNanos < PROBE_INTERVAL_NANOS) {
+                return false;
+            }
+            lastProbeNanos = now;
+            return true;
+        }
+    }
+
+    private final Map<String,CountryStats> countries = new ConcurrentHashMap<>();
+
+
+    private static long[] createBucketBounds(final long first, final double factor, final long last) {
+        final List<Long> bounds = new ArrayList<>();
+        for (double bound = first; bound < last; bound *= factor) {
+            bounds.add((long) bound);
+        }
+        bounds.add(last);
+        final long[] result = new long[bounds.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static int getBucket(final long latencyMillis) {
+        for (int i=0; i<BUCKET_BOUNDS_MILLIS.length; i++) {
+            if (latencyMillis <= BUCKET_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MILLIS.length;
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket holding the given percentile.
+     */
+    private static long getPercentile(final long[] buckets, final long count, final double percentile) {
+        final long rank = (long) Math.ceil(count * percentile);
+        long cumulative = 0;
+        for (int i=0; i<buckets.length; i++) {
+            cumulative += buckets[i];
+            if (cumulative >= rank) {
+                return i<BUCKET_BOUNDS_MILLIS.length ? BUCKET_BOUNDS_MILLIS[i] : BrregIncomingHandler.REQUEST_TIMEOUT.toMillis();
+            }
+        }
+        return BrregIncomingHandler.REQUEST_TIMEOUT.toMillis();
+    }
+
+    private CountryStats getCountryStats(final String country) {
+        return countries.computeIfAbsent(country, key -> new CountryStats());
+    }
+
+    public void record(final String country, final long latencyMillis, final Outcome outcome) {
+        getCountryStats(country).record(latencyMillis, outcome);
+    }
+
+    /**
+     * Returns how long to wait for the answer to a query sent to the country now.
+     */
+    public Duration getDeadline(final String country) {
+        return getCountryStats(country).getHealth().getDeadline();
+    }
+
+    /**
+     * Returns false if a query to the country should be answered with 503 at once, because it has hardly
+     * answered anything recently and a probe has already been sent within PROBE_INTERVAL.
+     */
+    public boolean allowQuery(final String country) {
+        final CountryStats stats = getCountryStats(country);
+        if (!stats.getHealth().isFailingFast() || stats.tryProbe()) {
+            return true;
+        }
+        meterRegistry.counter("toop.dc.fast_fail", "country", country).increment();
+        return false;
+    }
+
+    public Map<String,Health> getHealth() {
+        final Map<String,Health> health = new TreeMap<>();
+        for (Map.Entry<String,CountryStats> entry : countries.entrySet()) {
+            health.put(entry.getKey(), entry.getValue().getHealth());
+        }
+        return health;
+    }
+
+}
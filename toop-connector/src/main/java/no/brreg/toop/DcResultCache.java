@@ -0,0 +1,250 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+
+/**
+ * Caches answers to outgoing DC queries, and lets concurrent callers for the same subject share the
+ * AS4 round trip that is already in flight. Only definite answers are cached: OK with an Enhet for
+ * POSITIVE_TTL, and NOT_FOUND from the remote DP for NEGATIVE_TTL. Timeouts and routing failures are not.
+ * A caller only joins a query in flight of a lower priority class once it has been sent, so an interactive
+ * lookup never waits behind a bulk query that is still queued (see DcSendScheduler).
+ */
+@Component
+public class DcResultCache {
+    private static final Duration POSITIVE_TTL = Duration.ofHours(1);
+    private static final Duration NEGATIVE_TTL = Duration.ofMinutes(5);
+    private static final int MAX_CACHE_ENTRIES = 10000;
+
+    /**
+     * The subset of Cache-Control request directives we honor: no-cache (don't answer from the cache),
+     * no-store (don't cache the answer) and max-age (only answer from the cache if the entry is younger).
+     */
+    public static class CacheControl {
+        public static final CacheControl DEFAULT = new CacheControl(false, false, -1);
+
+        private final boolean noCache;
+        private final boolean noStore;
+        private final long maxAgeSeconds;
+
+        private CacheControl(final boolean noCache, final boolean noStore, final long maxAgeSeconds) {
+            this.noCache = noCache;
+            this.noStore = noStore;
+            this.maxAgeSeconds = maxAgeSeconds;
+        }
+
+        public static CacheControl parse(final String header) {
+            if (header==null || header.isEmpty()) {
+                return DEFAULT;
+            }
+
+            boolean noCache = false;
+            boolean noStore = false;
+            long maxAgeSeconds = -1;
+            for (String directive : header.toLowerCase(Locale.ROOT).split(",")) {
+                directive = directive.trim();
+                if ("no-cache".equals(directive)) {
+                    noCache = true;
+                } else if ("no-store".equals(directive)) {
+                    noStore = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        //Ignore malformed max-age, as if it was not given
+                    }
+                }
+            }
+            return new CacheControl(noCache, noStore, maxAgeSeconds);
+        }
+
+        public boolean isNoCache() {
+            return noCache || maxAgeSeconds==0;
+        }
+
+        public boolean isNoStore() {
+            return noStore;
+        }
+
+        public long getMaxAgeSeconds() {
+            return maxAgeSeconds;
+        }
+    }
+
+    private static class CacheItem {
+        private final BrregIncomingHandler.ToopResponse response;
+        private final LocalDateTime created;
+        private final LocalDateTime expires;
+
+        public CacheItem(final BrregIncomingHandler.ToopResponse response, final Duration ttl) {
+            this.response = response;
+            this.created = LocalDateTime.now();
+            this.expires = created.plus(ttl);
+        }
+
+        public boolean isUsable(final CacheControl cacheControl) {
+            final LocalDateTime now = LocalDateTime.now();
+            if (expires.isBefore(now)) {
+                return false;
+            }
+            return cacheControl.getMaxAgeSeconds()<0 || !created.plusSeconds(cacheControl.getMaxAgeSeconds()).isBefore(now);
+        }
+    }
+
+    private final Map<String,CacheItem> cache = new LinkedHashMap<String,CacheItem>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String,CacheItem> eldest) {
+            return size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    private static class InFlight {
+        private final CompletableFuture<BrregIncomingHandler.ToopResponse> future = new CompletableFuture<>();
+        private final DcSendScheduler.Priority priority;
+        private boolean isSent = false; //Guarded by cacheLock
+
+        private InFlight(final DcSendScheduler.Priority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * A caller may share this query if it is of the same or a higher priority class, or has already been sent.
+         */
+        private boolean isJoinable(final DcSendScheduler.Priority callerPriority) {
+            return isSent || priority.ordinal() <= callerPriority.ordinal();
+        }
+    }
+    private final Object cacheLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+
+    public static String getKey(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(countrycode).append('|').append(isLegalPerson ? "LP" : "NP").append('|').append(identifier);
+        if (!isLegalPerson && properties!=null) {
+            sb.append('|').append(properties.get("firstname"))
+              .append('|').append(properties.get("lastname"))
+              .append('|').append(properties.get("birthdate"));
+        }
+        if (properties!=null && properties.get(BrregIncomingHandler.CONCEPTS_PROPERTY)!=null) {
+            sb.append('|').append(properties.get(BrregIncomingHandler.CONCEPTS_PROPERTY));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Answers from the cache if allowed, joins a query for the same key that is already in flight,
+     * or else starts a new query with the loader. The query may be shared by callers of any priority class.
+     */
+    public CompletableFuture<BrregIncomingHandler.ToopResponse> get(final String key, final CacheControl cacheControl,
+                                                                   final Supplier<CompletableFuture<BrregIncomingHandler.ToopResponse>> loader) {
+        return get(key, cacheControl, DcSendScheduler.Priority.INTERACTIVE, onSent -> loader.get());
+    }
+
+    /**
+     * As above, but only joins a query in flight of a lower priority class if it has been sent. The loader is given
+     * a callback to run when its query leaves the send queue, after which callers of every class may join it.
+     */
+    public CompletableFuture<BrregIncomingHandler.ToopResponse> get(final String key, final CacheControl cacheControl, final DcSendScheduler.Priority priority,
+                                                                   final Function<Runnable,CompletableFuture<BrregIncomingHandler.ToopResponse>> loader) {
+        final InFlight query;
+        synchronized(cacheLock) {
+            if (!cacheControl.isNoCache()) {
+                final CacheItem item = cache.get(key);
+                if (item!=null && item.isUsable(cacheControl)) {
+                    hits.incrementAndGet();
+                    return CompletableFuture.completedFuture(item.response);
+                }
+            }
+
+            for (DcSendScheduler.Priority pendingPriority : DcSendScheduler.Priority.values()) {
+                final InFlight pending = inFlight.get(getInFlightKey(key, pendingPriority));
+                if (pending!=null && pending.isJoinable(priority)) {
+                    coalesced.incrementAndGet();
+                    return pending.future;
+                }
+            }
+
+            query = new InFlight(priority);
+            inFlight.put(getInFlightKey(key, priority), query);
+        }
+        misses.incrementAndGet();
+
+        CompletableFuture<BrregIncomingHandler.ToopResponse> loaded;
+        try {
+            loaded = loader.apply(() -> {
+                synchronized(cacheLock) {
+                    query.isSent = true;
+                }
+            });
+        } catch (RuntimeException e) {
+            loaded = new CompletableFuture<>();
+            loaded.completeExceptionally(e);
+        }
+        loaded.whenComplete((response, e) -> {
+            synchronized(cacheLock) {
+                inFlight.remove(getInFlightKey(key, priority), query);
+                final Duration ttl = e==null ? getTtl(response) : null;
+                if (ttl!=null && !cacheControl.isNoStore()) {
+                    cache.put(key, new CacheItem(response, ttl));
+                }
+            }
+            if (e != null) {
+                query.future.completeExceptionally(e);
+            } else {
+                query.future.complete(response);
+            }
+        });
+        return query.future;
+    }
+
+    private static String getInFlightKey(final String key, final DcSendScheduler.Priority priority) {
+        return priority.name() + "|" + key;
+    }
+
+    private Duration getTtl(final BrregIncomingHandler.ToopResponse response) {
+        if (response == null) {
+            return null;
+        } else if (response.getStatus()==HttpStatus.OK && response.getEnhet()!=null) {
+            return POSITIVE_TTL;
+        } else if (response.getStatus()==HttpStatus.NOT_FOUND && response.getErrorMessage()==null) {
+            return NEGATIVE_TTL; //The remote DP answered OBJECT_NOT_FOUND. Other error responses carry their message
+        }
+        return null;
+    }
+
+    public int size() {
+        synchronized(cacheLock) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+}
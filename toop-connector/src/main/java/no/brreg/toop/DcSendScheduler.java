@@ -0,0 +1,245 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Schedules outgoing DC queries by priority class, so bulk jobs cannot starve interactive lookups.
+ *
+ * Each class has its own quota of pending requests (toop.dc.pending.{interactive|bulk}), held from when a
+ * query is accepted until it is answered or times out. Interactive callers get a slot at once or not at all,
+ * while bulk callers may wait for one. AS4 sends run on toop.dc.send.concurrency threads.
+ * When both classes have sends waiting, toop.dc.send.interactive-weight interactive sends go before each
+ * bulk send, and when only one class is waiting it gets all the capacity.
+ */
+@Component
+public class DcSendScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DcSendScheduler.class);
+
+    public static final String PRIORITY_HEADER = "X-Priority";
+
+    public enum Priority {
+        INTERACTIVE,
+        BULK;
+
+        /**
+         * Returns the priority named by value (case insensitive), or defaultPriority if value is empty.
+         */
+        public static Priority parse(final String value, final Priority defaultPriority) {
+            if (value==null || value.trim().isEmpty()) {
+                return defaultPriority;
+            }
+            try {
+                return Priority.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown priority \"" + value + "\". Expected interactive or bulk");
+            }
+        }
+    }
+
+    @Value("${toop.dc.send.concurrency:8}")
+    private int sendConcurrency;
+
+    @Value("${toop.dc.send.interactive-weight:4}")
+    private int interactiveWeight;
+
+    @Value("${toop.dc.send.max-queue-ms:10000}")
+    private long maxQueueMillis;
+
+    @Value("${toop.dc.pending.interactive:100}")
+    private int maxPendingInteractive;
+
+    @Value("${toop.dc.pending.bulk:50}")
+    private int maxPendingBulk;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public static class Permit {
+        private final Semaphore semaphore;
+        private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+        private Permit(final Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        /**
+         * Gives back the pending-request slot. Safe to call more than once.
+         */
+        public void release() {
+            if (isReleased.compareAndSet(false, true)) {
+                semaphore.release();
+            }
+        }
+    }
+
+    private static class Send {
+        private final Runnable task;
+        private final long queuedNanos = System.nanoTime();
+
+        private Send(final Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final Map<Priority,Semaphore> pendingQuotas = new EnumMap<>(Priority.class);
+    private final Map<Priority,Deque<Send>> queues = new EnumMap<>(Priority.class);
+    private int runningSends = 0;
+    private int interactiveInRow = 0;
+    private final Object queueLock = new Object();
+    private ExecutorService sendExecutor;
+
+
+    @PostConstruct
+    public void initialize() {
+        pendingQuotas.put(Priority.INTERACTIVE, new Semaphore(Math.max(1, maxPendingInteractive)));
+        pendingQuotas.put(Priority.BULK, new Semaphore(Math.max(1, maxPendingBulk)));
+        for (Priority priority : Priority.values()) {
+            final Deque<Send> queue = new ArrayDeque<>();
+            queues.put(priority, queue);
+            meterRegistry.gauge("toop.dc.send.queued", Collections.singletonList(Tag.of("priority", getTag(priority))),
+                                queue, q -> {
+                                    synchronized(queueLock) {
+                                        return q.size();
+                                    }
+                                });
+        }
+        sendConcurrency = Math.max(1, sendConcurrency);
+        sendExecutor = Executors.newFixedThreadPool(sendConcurrency, r -> {
+            Thread thread = new Thread(r, "dc-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sendExecutor.shutdownNow();
+    }
+
+    /**
+     * Takes a pending-request slot of the priority class, waiting for one until the deadline (System.nanoTime).
+     * Returns null if no slot was freed in time, or if the thread is interrupted while waiting.
+     */
+    public Permit acquire(final Priority priority, final long deadline) {
+        final Semaphore semaphore = pendingQuotas.get(priority);
+        boolean isAcquired;
+        try {
+            isAcquired = semaphore.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            isAcquired = false;
+        }
+        if (!isAcquired) {
+            meterRegistry.counter("toop.dc.pending.rejected", "priority", getTag(priority)).increment();
+            return null;
+        }
+        return new Permit(semaphore);
+    }
+
+    /**
+     * How long a caller should let a send wait in the queue before giving up on it (toop.dc.send.max-queue-ms).
+     */
+    public Duration getMaxQueueWait() {
+        return Duration.ofMillis(Math.max(1, maxQueueMillis));
+    }
+
+    /**
+     * Queues an AS4 send. The task runs on a send thread, once the sends of the same class queued before it
+     * and the sends of the other class it is interleaved with have started.
+     * Returns false if the scheduler is shut down.
+     */
+    public boolean submit(final Priority priority, final Runnable task) {
+        synchronized(queueLock) {
+            if (sendExecutor.isShutdown()) {
+                return false;
+            }
+            queues.get(priority).add(new Send(task));
+        }
+        dispatch();
+        return true;
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Priority priority;
+            final Send send;
+            synchronized(queueLock) {
+                if (runningSends >= sendConcurrency) {
+                    return;
+                }
+                priority = getNextPriority();
+                if (priority == null) {
+                    return;
+                }
+                send = queues.get(priority).poll();
+                runningSends++;
+            }
+
+            meterRegistry.timer("toop.dc.send.wait", "priority", getTag(priority)).record(System.nanoTime() - send.queuedNanos, TimeUnit.NANOSECONDS);
+            try {
+                sendExecutor.execute(() -> {
+                    try {
+                        send.task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("AS4 send failed: ", e);
+                    } finally {
+                        synchronized(queueLock) {
+                            runningSends--;
+                        }
+                        dispatch();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.info("AS4 send rejected: " + e.getMessage());
+                synchronized(queueLock) {
+                    runningSends--;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Weighted round robin between the classes. Must be called with queueLock held.
+     */
+    private Priority getNextPriority() {
+        final boolean hasInteractive = !queues.get(Priority.INTERACTIVE).isEmpty();
+        final boolean hasBulk = !queues.get(Priority.BULK).isEmpty();
+        if (hasInteractive && (!hasBulk || interactiveInRow < Math.max(1, interactiveWeight))) {
+            interactiveInRow++;
+            return Priority.INTERACTIVE;
+        }
+        interactiveInRow = 0;
+        return hasBulk ? Priority.BULK : null;
+    }
+
+    private static String getTag(final Priority priority) {
+        return priority.name().toLowerCase(Locale.ROOT);
+    }
+
+}
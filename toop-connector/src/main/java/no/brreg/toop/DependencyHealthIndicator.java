@@ -0,0 +1,58 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Reports the circuit breaker state of the directory, the SMPs and Enhetsregisteret (/actuator/health).
+ * Always UP, since open breakers are covered by stale fallbacks, and not part of the readiness group:
+ * an upstream outage must not take every pod out of rotation at once.
+ */
+@Component("dependencies")
+public class DependencyHealthIndicator implements HealthIndicator {
+    @Autowired
+    private CountryCodeCache countryCodeCache;
+
+    @Autowired
+    private SmpEndpointCache smpEndpointCache;
+
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+    @Autowired
+    private RolleDataSource rolleDataSource;
+
+
+    @Override
+    public Health health() {
+        final List<GuardedDependency> dependencies = new ArrayList<>();
+        dependencies.add(countryCodeCache.getDependency());
+        dependencies.add(enhetsregisterCache.getDependency());
+        dependencies.add(enhetsregisterCache.getPreloadDependency());
+        dependencies.add(rolleDataSource.getDependency());
+        dependencies.addAll(smpEndpointCache.getDependencies());
+
+        final Health.Builder builder = Health.up();
+        for (GuardedDependency dependency : dependencies) {
+            final Map<String,Object> details = new LinkedHashMap<>();
+            details.put("state", dependency.getState());
+            details.put("callsInProgress", dependency.getCallsInProgress());
+            details.put("failedCalls", dependency.getFailedCalls());
+            details.put("rejectedCalls", dependency.getRejectedCalls());
+            builder.withDetail(dependency.getName(), details);
+        }
+        builder.withDetail("countryCodesStale", countryCodeCache.getSnapshot().isStale());
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,29 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A source of data for the REGISTERED_ORGANIZATION concepts we answer as DP. Each concept is answered by
+ * the source that declares it, and DpEnrichmentHandler asks all sources needed by a request concurrently.
+ * Sources cache their own upstream data.
+ */
+public interface DpDataSource {
+
+    String getName();
+
+    Set<EToopConcept> getSupportedConcepts();
+
+    /**
+     * Looks up the orgno and returns a value for each of the requested concepts it has data for.
+     * Returns null if the source doesn't know the orgno, and throws if the source could not be asked.
+     */
+    Map<EToopConcept,ConceptPojo.Builder> getConcepts(String orgno, Set<EToopConcept> concepts) throws GuardedDependency.UnavailableException;
+
+}
@@ -0,0 +1,166 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.xml.namespace.QName;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Collects the concepts of an incoming DP request from every DpDataSource that declares one of them.
+ * The sources are asked concurrently under one shared deadline (toop.dp.enrichment.deadline-ms), so a
+ * richer response costs the latency of the slowest source rather than the sum of them. A source that
+ * fails or misses the deadline only leaves its own concepts unanswered, except the primary source: if it
+ * cannot answer, the result is UNAVAILABLE rather than NOT_FOUND.
+ */
+@Component
+public class DpEnrichmentHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DpEnrichmentHandler.class);
+    private static final int FETCH_THREADS = 16;
+
+    @Value("${toop.dp.enrichment.deadline-ms:10000}")
+    private long deadlineMillis;
+
+    @Autowired
+    private EnhetDataSource enhetDataSource;
+
+    @Autowired
+    private List<DpDataSource> dataSources;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * What the primary source (Enhetsregisteret) said about the orgno. UNAVAILABLE means it failed or missed
+     * the deadline, so whether the orgno exists is unknown.
+     */
+    public enum Status {FOUND, NOT_FOUND, UNAVAILABLE}
+
+    public static final class Result {
+        private final Status status;
+        private final Map<EToopConcept,ConceptPojo.Builder> concepts;
+
+        private Result(final Status status, final Map<EToopConcept,ConceptPojo.Builder> concepts) {
+            this.status = status;
+            this.concepts = concepts;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the value of the concept, or null if no source had data for it.
+         */
+        public ConceptPojo.Builder getConcept(final EToopConcept concept) {
+            return concept==null ? null : concepts.get(concept);
+        }
+    }
+
+    private final ExecutorService fetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS, r -> {
+        Thread thread = new Thread(r, "dp-enrichment");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    @PreDestroy
+    public void shutdown() {
+        fetchExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the supported concept with the given name, or null if no source answers it.
+     */
+    public EToopConcept getSupportedConcept(final QName name) {
+        for (DpDataSource dataSource : dataSources) {
+            for (EToopConcept concept : dataSource.getSupportedConcepts()) {
+                if (concept.getAsQName().equals(name)) {
+                    return concept;
+                }
+            }
+        }
+        return null;
+    }
+
+    public Result enrich(final String orgno, final Set<EToopConcept> concepts, final RequestTracer.Trace trace) {
+        //The primary source is always asked, since it decides whether the orgno exists
+        final Map<DpDataSource,Future<Map<EToopConcept,ConceptPojo.Builder>>> futures = new LinkedHashMap<>();
+        for (DpDataSource dataSource : dataSources) {
+            final Set<EToopConcept> sourceConcepts = EnumSet.noneOf(EToopConcept.class);
+            for (EToopConcept concept : concepts) {
+                if (dataSource.getSupportedConcepts().contains(concept)) {
+                    sourceConcepts.add(concept);
+                }
+            }
+            if (dataSource==enhetDataSource || !sourceConcepts.isEmpty()) {
+                futures.put(dataSource, submit(dataSource, orgno, sourceConcepts, trace));
+            }
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        final Map<EToopConcept,ConceptPojo.Builder> result = new EnumMap<>(EToopConcept.class);
+        Status status = Status.UNAVAILABLE;
+        for (Map.Entry<DpDataSource,Future<Map<EToopConcept,ConceptPojo.Builder>>> entry : futures.entrySet()) {
+            final DpDataSource dataSource = entry.getKey();
+            Map<EToopConcept,ConceptPojo.Builder> sourceConcepts = null;
+            String outcome;
+            try {
+                sourceConcepts = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                outcome = sourceConcepts==null ? "not_found" : "ok";
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                outcome = "timeout";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                outcome = "timeout";
+            } catch (ExecutionException e) {
+                LOGGER.info("Data source " + dataSource.getName() + " failed for " + orgno + ": " + e.getCause().getMessage());
+                outcome = "failed";
+            }
+            meterRegistry.counter("toop.dp.enrichment", "source", dataSource.getName(), "outcome", outcome).increment();
+            if (!"ok".equals(outcome)) {
+                trace.setAttribute("source-" + dataSource.getName(), outcome);
+            }
+
+            if (dataSource == enhetDataSource) {
+                if ("ok".equals(outcome)) {
+                    status = Status.FOUND;
+                } else if ("not_found".equals(outcome)) {
+                    status = Status.NOT_FOUND;
+                }
+            }
+            if (sourceConcepts != null) {
+                result.putAll(sourceConcepts);
+            }
+        }
+        return new Result(status, result);
+    }
+
+    private Future<Map<EToopConcept,ConceptPojo.Builder>> submit(final DpDataSource dataSource, final String orgno, final Set<EToopConcept> concepts,
+                                                              final RequestTracer.Trace trace) {
+        try {
+            return fetchExecutor.submit(() -> {
+                try (RequestTracer.Span span = trace.startSpan("source-" + dataSource.getName())) {
+                    return dataSource.getConcepts(orgno, concepts);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            final CompletableFuture<Map<EToopConcept,ConceptPojo.Builder>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+}
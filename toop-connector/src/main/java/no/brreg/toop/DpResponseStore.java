@@ -0,0 +1,115 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.connector.api.me.model.MEMessage;
+import eu.toop.connector.api.me.outgoing.MERoutingInformation;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Remembers the responses we have sent as DP, keyed by incoming EDM request ID and sender, so an AS4
+ * retransmission or a repeated request is answered by sending the stored message again instead of
+ * looking up, building and signing the response once more. A duplicate of a request that is still
+ * being processed is dropped, since the first one will be answered. Entries expire after TTL, and
+ * at most MAX_ENTRIES are kept.
+ */
+@Component
+public class DpResponseStore {
+    private static final Duration TTL = Duration.ofMinutes(10);
+    private static final int MAX_ENTRIES = 1000;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public static class Entry {
+        private final LocalDateTime created = LocalDateTime.now();
+        private volatile MERoutingInformation routingInformation;
+        private volatile MEMessage message;
+
+        public boolean isCompleted() {
+            return message != null;
+        }
+
+        public MERoutingInformation getRoutingInformation() {
+            return routingInformation;
+        }
+
+        public MEMessage getMessage() {
+            return message;
+        }
+
+        private boolean isExpired() {
+            return created.plus(TTL).isBefore(LocalDateTime.now());
+        }
+    }
+
+    private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String,Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Object entriesLock = new Object();
+
+
+    public static String getKey(final String requestId, final String senderScheme, final String senderValue) {
+        return requestId + "|" + senderScheme + "::" + senderValue;
+    }
+
+    /**
+     * Registers a request as being processed. Returns null if it has not been seen within TTL, or else the
+     * entry of the earlier request, which is still being processed unless isCompleted().
+     */
+    public Entry begin(final String key) {
+        synchronized(entriesLock) {
+            final Entry previous = entries.get(key);
+            if (previous!=null && !previous.isExpired()) {
+                meterRegistry.counter("toop.dp.duplicates", "state", previous.isCompleted() ? "completed" : "in_progress").increment();
+                return previous;
+            }
+            entries.remove(key); //Re-insert, so eviction order follows the time we started processing it
+            entries.put(key, new Entry());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response sent for a request registered with begin().
+     */
+    public void complete(final String key, final MERoutingInformation routingInformation, final MEMessage message) {
+        synchronized(entriesLock) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.routingInformation = routingInformation;
+                entry.message = message;
+            }
+        }
+    }
+
+    /**
+     * Forgets a request that was not answered, so a retransmission of it is processed again.
+     */
+    public void abandonIfIncomplete(final String key) {
+        synchronized(entriesLock) {
+            final Entry entry = entries.get(key);
+            if (entry!=null && !entry.isCompleted()) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized(entriesLock) {
+            return entries.size();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import com.helger.commons.state.ESuccess;
+import eu.toop.edm.CToopEDM;
+import eu.toop.edm.EDMErrorResponse;
+import eu.toop.edm.EDMRequest;
+import eu.toop.edm.EDMResponse;
+import eu.toop.edm.error.EDMExceptionPojo;
+import eu.toop.edm.error.EEDMExceptionType;
+import eu.toop.edm.error.EToopErrorOrigin;
+import eu.toop.edm.model.AgentPojo;
+import eu.toop.edm.model.BusinessPojo;
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.model.EToopIdentifierType;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import eu.toop.regrep.ERegRepResponseStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Serializes the EDM documents we send. Each thread writes into its own reusable buffer, which only saves
+ * the copies a fresh ByteArrayOutputStream makes while growing to document size. The result is still
+ * copied once by toByteArray(), and the TOOP library still creates a new EDM writer and JAXB marshaller
+ * for every document, since getWriter() is bound to the document it writes. EdmSerializerBenchmark
+ * measures what this actually saves. A buffer grown past MAX_POOLED_BUFFER_SIZE by an unusually large
+ * document is dropped after use, so no thread holds more than that between documents.
+ *
+ * The JAXB contexts and schemas behind the EDM writers are loaded lazily by the TOOP library, so warmUp()
+ * serializes synthetic documents of every kind at startup, before readiness is reported, instead of making
+ * the first real DC and DP exchanges pay for it.
+ *
+ * Serialization time per document type is recorded in the toop.edm.serialize metric.
+ */
+@Component
+public class EdmSerializer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EdmSerializer.class);
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    //EDM documents are a few KB, and every request thread may hold one
+    private static final int MAX_POOLED_BUFFER_SIZE = 4 * INITIAL_BUFFER_SIZE;
+    private static final int WARM_UP_ROUNDS = 3;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    private interface EdmWriter {
+        ESuccess write(OutputStream outputStream);
+    }
+
+    private static class PooledBuffer extends ByteArrayOutputStream {
+        private PooledBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+
+    private final ThreadLocal<PooledBuffer> buffers = ThreadLocal.withInitial(PooledBuffer::new);
+    private volatile boolean isWarmedUp = false;
+
+
+    public byte[] serialize(final EDMRequest edmRequest) {
+        return serialize("request", outputStream -> edmRequest.getWriter().write(outputStream));
+    }
+
+    public byte[] serialize(final EDMResponse edmResponse) {
+        return serialize("response", outputStream -> edmResponse.getWriter().write(outputStream));
+    }
+
+    public byte[] serialize(final EDMErrorResponse edmErrorResponse) {
+        return serialize("error_response", outputStream -> edmErrorResponse.getWriter().write(outputStream));
+    }
+
+    private byte[] serialize(final String type, final EdmWriter writer) {
+        final long start = System.nanoTime();
+        final PooledBuffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            if (writer.write(buffer).isFailure()) {
+                throw new IllegalStateException("Failed to serialize EDM " + type);
+            }
+            return buffer.toByteArray();
+        } finally {
+            if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+                buffers.remove();
+            }
+            Timer.builder("toop.edm.serialize")
+                 .tag("type", type)
+                 .tag("warmup", Boolean.toString(!isWarmedUp))
+                 .register(meterRegistry)
+                 .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Serializes synthetic requests, responses and error responses, so the EDM writers are loaded before
+     * the first real exchange. Failures are logged and do not block startup.
+     */
+    public void warmUp() {
+        final long start = System.nanoTime();
+        try {
+            final AgentPojo agent = createWarmUpAgent();
+            for (int i=0; i<WARM_UP_ROUNDS; i++) {
+                serialize(createWarmUpRequest(agent));
+                serialize(createWarmUpResponse(agent));
+                serialize(createWarmUpErrorResponse(agent));
+            }
+            loggerHandler.log(LoggerHandler.Level.INFO, "EDM serialization warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (RuntimeException e) {
+            LOGGER.error("EDM serialization warm-up failed: ", e);
+        } finally {
+            isWarmedUp = true;
+        }
+    }
+
+    public boolean isWarmedUp() {
+        return isWarmedUp;
+    }
+
+    static AgentPojo createWarmUpAgent() {
+        return AgentPojo.builder()
+                .id("9999:warmup")
+                .idSchemeID(EToopIdentifierType.EIDAS)
+                .name("Warm-up")
+                .build();
+    }
+
+    static EDMRequest createWarmUpRequest(final AgentPojo agent) {
+        return EDMRequest.builderConcept()
+                .concept(ConceptPojo.builder()
+                                    .randomID()
+                                    .name(EToopConcept.REGISTERED_ORGANIZATION)
+                                    .addChild(ConceptPojo.builder()
+                                                         .randomID()
+                                                         .name(EToopConcept.COMPANY_NAME)
+                                                         .build())
+                                    .build())
+                .requestID(UUID.randomUUID().toString())
+                .dataConsumer(agent)
+                .issueDateTimeNow()
+                .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
+                .dataSubject(BusinessPojo.builder()
+                                         .legalIDSchemeID(EToopIdentifierType.EIDAS)
+                                         .legalID("NO/NO/000000000")
+                                         .build())
+                .build();
+    }
+
+    static EDMResponse createWarmUpResponse(final AgentPojo agent) {
+        return EDMResponse.builderConcept()
+                .concept(ConceptPojo.builder()
+                                    .randomID()
+                                    .name(EToopConcept.REGISTERED_ORGANIZATION)
+                                    .addChild(ConceptPojo.builder()
+                                                         .randomID()
+                                                         .name(EToopConcept.COMPANY_NAME)
+                                                         .valueText("Warm-up")
+                                                         .build())
+                                    .build())
+                .requestID(UUID.randomUUID().toString())
+                .dataProvider(agent)
+                .issueDateTimeNow()
+                .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
+                .responseStatus(ERegRepResponseStatus.SUCCESS)
+                .build();
+    }
+
+    static EDMErrorResponse createWarmUpErrorResponse(final AgentPojo agent) {
+        return EDMErrorResponse.builder()
+                .requestID(UUID.randomUUID().toString())
+                .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
+                .exception(EDMExceptionPojo.builder()
+                                           .exceptionType(EEDMExceptionType.INVALID_REQUEST)
+                                           .severityFailure()
+                                           .errorMessage("Warm-up")
+                                           .errorOrigin(EToopErrorOrigin.RESPONSE_CREATION)
+                                           .timestampNow()
+                                           .build())
+                .errorProvider(agent)
+                .responseStatus(ERegRepResponseStatus.FAILURE)
+                .build();
+    }
+
+}
@@ -0,0 +1,68 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.EnhetCacheEntry;
+import no.brreg.toop.generated.model.EnhetCacheStatistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+
+
+/**
+ * The Enhet cache on this node (/actuator/enhetcache, admin only): GET for size and lookup statistics,
+ * GET /actuator/enhetcache/{orgno} to look up an orgno without fetching it, and DELETE to evict it.
+ */
+@Component
+@Endpoint(id = "enhetcache")
+public class EnhetCacheEndpoint {
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+
+    @ReadOperation
+    public EnhetCacheStatistics getEnhetCacheStatistics() {
+        final EnhetsregisterCache.Statistics statistics = enhetsregisterCache.getStatistics();
+        return new EnhetCacheStatistics()
+                .size(statistics.getSize())
+                .maxSize(statistics.getMaxSize())
+                .evictions(statistics.getEvictions())
+                .lookups(statistics.getLookups())
+                .dictionarySizes(statistics.getDictionarySizes())
+                .dictionaryDeduplicated(statistics.getDictionaryDeduplicated())
+                .dictionaryBytesSaved(statistics.getDictionaryBytesSaved());
+    }
+
+    @ReadOperation
+    public WebEndpointResponse<EnhetCacheEntry> getCachedEnhet(@Selector final String orgno) {
+        final EnhetsregisterCache.CachedEnhet cachedEnhet = enhetsregisterCache.getCachedEnhet(orgno);
+        if (cachedEnhet == null) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        return new WebEndpointResponse<>(new EnhetCacheEntry()
+                                            .fetched(toOffsetDateTime(cachedEnhet.getFetched()))
+                                            .lastAccessed(toOffsetDateTime(cachedEnhet.getLastAccessed()))
+                                            .hits(cachedEnhet.getHits())
+                                            .restored(cachedEnhet.isRestored())
+                                            .expired(cachedEnhet.isExpired())
+                                            .enhet(cachedEnhet.getEnhet()), WebEndpointResponse.STATUS_OK);
+    }
+
+    @DeleteOperation
+    public WebEndpointResponse<Void> evictCachedEnhet(@Selector final String orgno) {
+        return new WebEndpointResponse<>(enhetsregisterCache.evictEnhet(orgno) ? WebEndpointResponse.STATUS_NO_CONTENT : WebEndpointResponse.STATUS_NOT_FOUND);
+    }
+
+    private static OffsetDateTime toOffsetDateTime(final LocalDateTime localDateTime) {
+        return localDateTime==null ? null : localDateTime.atZone(ZoneId.systemDefault()).toOffsetDateTime();
+    }
+
+}
@@ -0,0 +1,204 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import kong.unirest.HttpResponse;
+import kong.unirest.Unirest;
+import kong.unirest.UnirestException;
+import no.brreg.toop.generated.model.Enhet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Partitions the Enhet cache across the cluster peers (toop.cluster.enhet-partitioning = true), so every
+ * orgno is fetched from Enhetsregisteret and cached by one owning node only. Other nodes ask the owner
+ * on /internal/enhet/{orgno}, and keep a small near-cache of the answers in front of it. Owners are
+ * chosen by consistent hashing, so adding a node only moves about 1/N of the orgnos.
+ */
+@Component
+public class EnhetCachePartitioner {
+    private static final int VIRTUAL_NODES = 100;
+    private static final int MAX_NEAR_CACHE_ENTRIES = 200;
+    private static final Duration NEAR_CACHE_VALID_DURATION = Duration.ofMinutes(5);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int SOCKET_TIMEOUT_MILLIS = 10000;
+    public static final String PRELOAD_RESULT_HEADER = "X-Preload-Result";
+
+    @Value("${toop.cluster.enhet-partitioning:false}")
+    private boolean isEnabled;
+
+    @Autowired
+    private ClusterPeers clusterPeers;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static class NearCacheItem {
+        private final Enhet enhet;
+        private final LocalDateTime fetched;
+
+        public NearCacheItem(final Enhet enhet) {
+            this.enhet = enhet;
+            this.fetched = LocalDateTime.now();
+        }
+
+        public boolean isExpired() {
+            return fetched.plus(NEAR_CACHE_VALID_DURATION).isBefore(LocalDateTime.now());
+        }
+    }
+
+    private ConsistentHashRing ring = null;
+    private final Map<String,GuardedDependency> peerDependencies = new ConcurrentHashMap<>();
+    private final Map<String,NearCacheItem> nearCache = new LinkedHashMap<String,NearCacheItem>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String,NearCacheItem> eldest) {
+            return size() > MAX_NEAR_CACHE_ENTRIES;
+        }
+    };
+    private final Object nearCacheLock = new Object();
+
+
+    @PostConstruct
+    public void initialize() {
+        if (isEnabled && clusterPeers.isClustered()) {
+            if (!clusterPeers.hasSecret()) {
+                //Peers would refuse our /internal/enhet calls, and anyone could read ours
+                throw new IllegalStateException("toop.cluster.secret must be set when toop.cluster.enhet-partitioning = true");
+            }
+            ring = new ConsistentHashRing(clusterPeers.getPeerUrls().keySet(), VIRTUAL_NODES);
+            loggerHandler.log(LoggerHandler.Level.INFO, "Enhet cache partitioned across " + clusterPeers.getPeerUrls().size() + " nodes");
+        }
+    }
+
+    /**
+     * Returns the node owning the orgno, or null if this node owns it or partitioning is off.
+     */
+    public String getRemoteOwner(final String orgno) {
+        if (ring == null) {
+            return null;
+        }
+        final String owner = ring.getNode(orgno);
+        return clusterPeers.isSelf(owner) ? null : owner;
+    }
+
+    /**
+     * Asks the owning node for the orgno, answering from the near-cache if possible. Returns null if the
+     * orgno is unknown, and throws if the owner could not be asked. Stale answers from the owner are not
+     * near-cached, so the next lookup asks again.
+     */
+    public EnhetsregisterCache.Lookup getFromOwner(final String owner, final String orgno) throws GuardedDependency.UnavailableException {
+        synchronized(nearCacheLock) {
+            final NearCacheItem item = nearCache.get(orgno);
+            if (item!=null && !item.isExpired()) {
+                count("near_hit");
+                return new EnhetsregisterCache.Lookup(item.enhet, false);
+            }
+        }
+
+        final EnhetsregisterCache.Lookup lookup;
+        try {
+            lookup = getPeerDependency(owner).call(() -> fetchFromOwner(owner, orgno));
+        } catch (GuardedDependency.UnavailableException e) {
+            count("unavailable");
+            throw e;
+        }
+        if (lookup == null) {
+            count("not_found");
+            return null;
+        }
+
+        if (lookup.isStale()) {
+            count("remote_stale");
+            return lookup;
+        }
+        count("remote");
+        synchronized(nearCacheLock) {
+            nearCache.put(orgno, new NearCacheItem(lookup.getEnhet()));
+        }
+        return lookup;
+    }
+
+    /**
+     * Asks the owning node to preload the orgno into its cache. Unlike getFromOwner(), this bypasses the
+     * near-cache and the peer circuit breaker, and the owner fetches it through its preload bulkhead, so
+     * preloads neither queue behind nor trip anything used by live lookups. Throws if the owner could not
+     * preload it.
+     */
+    public EnhetsregisterCache.PreloadResult preloadOnOwner(final String owner, final String orgno) throws GuardedDependency.UnavailableException {
+        String url = clusterPeers.getPeerUrls().get(owner) + "/internal/enhet/";
+        try {
+            url += URLEncoder.encode(orgno, "utf-8") + "?preload=true";
+            HttpResponse<String> preloadResponse = Unirest.get(url)
+                    .header(ClusterPeers.SECRET_HEADER, clusterPeers.getSecret())
+                    .connectTimeout(CONNECT_TIMEOUT_MILLIS)
+                    .socketTimeout(SOCKET_TIMEOUT_MILLIS)
+                    .asString();
+            int status = preloadResponse.getStatus();
+            if (status >= 200 && status <= 299) {
+                final String result = preloadResponse.getHeaders().getFirst(PRELOAD_RESULT_HEADER);
+                count("preload");
+                return EnhetsregisterCache.PreloadResult.CACHED.name().equals(result) ? EnhetsregisterCache.PreloadResult.CACHED : EnhetsregisterCache.PreloadResult.FETCHED;
+            } else if (status == 404) {
+                count("preload");
+                return EnhetsregisterCache.PreloadResult.NOT_FOUND;
+            } else {
+                throw new GuardedDependency.UnavailableException("Got status=" + status + " when HTTP GET " + url);
+            }
+        } catch (IOException | UnirestException e) {
+            throw new GuardedDependency.UnavailableException("Got exception when HTTP GET " + url + ", :" + e.getMessage(), e);
+        }
+    }
+
+    private EnhetsregisterCache.Lookup fetchFromOwner(final String owner, final String orgno) throws IOException {
+        final String url = clusterPeers.getPeerUrls().get(owner) + "/internal/enhet/" + URLEncoder.encode(orgno, "utf-8");
+        try {
+            HttpResponse<Enhet> enhetResponse = Unirest.get(url)
+                    .header("accept", "application/json")
+                    .header(ClusterPeers.SECRET_HEADER, clusterPeers.getSecret())
+                    .connectTimeout(CONNECT_TIMEOUT_MILLIS)
+                    .socketTimeout(SOCKET_TIMEOUT_MILLIS)
+                    .asObject(Enhet.class);
+            int status = enhetResponse.getStatus();
+            if (status >= 200 && status <= 299) {
+                return new EnhetsregisterCache.Lookup(enhetResponse.getBody(), GuardedDependency.isStaleWarning(enhetResponse.getHeaders().getFirst(HttpHeaders.WARNING)));
+            } else if (status == 404) {
+                return null;
+            } else {
+                throw new IOException("Got status=" + status + " when HTTP GET " + url);
+            }
+        } catch (UnirestException e) {
+            throw new IOException("Got exception when HTTP GET " + url + ", :" + e.getMessage(), e);
+        }
+    }
+
+    private GuardedDependency getPeerDependency(final String owner) {
+        return peerDependencies.computeIfAbsent(owner, peer -> new GuardedDependency("peer:"+peer, 20, 5, Duration.ofSeconds(30)));
+    }
+
+    public int getNearCacheSize() {
+        synchronized(nearCacheLock) {
+            return nearCache.size();
+        }
+    }
+
+    private void count(final String result) {
+        meterRegistry.counter("toop.enhet.partition", "result", result).increment();
+    }
+
+}
@@ -0,0 +1,143 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import no.brreg.toop.generated.model.Enhet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Answers the concepts found in the Enhet from Enhetsregisteret ( "Finn foretak/selskap" on https://www.brreg.no/ ).
+ * This is the primary DP source: an orgno it doesn't know is answered with an error response, and if it
+ * cannot answer at all the whole request is answered with a transient error.
+ */
+@Component
+public class EnhetDataSource implements DpDataSource {
+
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+
+    @Override
+    public String getName() {
+        return "enhet";
+    }
+
+    @Override
+    public Set<EToopConcept> getSupportedConcepts() {
+        return BrregIncomingHandler.SUPPORTED_CONCEPTS;
+    }
+
+    @Override
+    public Map<EToopConcept,ConceptPojo.Builder> getConcepts(final String orgno, final Set<EToopConcept> concepts) throws GuardedDependency.UnavailableException {
+        //EDM responses have no field for the age of the data, so a stale Enhet is answered as is (it is logged
+        //and counted as stale by EnhetsregisterCache)
+        final EnhetsregisterCache.Lookup lookup = enhetsregisterCache.lookupEnhet(orgno);
+        if (lookup == null) {
+            return null;
+        }
+        final Enhet enhet = lookup.getEnhet();
+
+        final Map<EToopConcept,ConceptPojo.Builder> result = new EnumMap<>(EToopConcept.class);
+        for (EToopConcept concept : concepts) {
+            final ConceptPojo.Builder conceptBuilder = getConcept(concept, enhet);
+            if (conceptBuilder != null) {
+                result.put(concept, conceptBuilder);
+            }
+        }
+        return result;
+    }
+
+    private ConceptPojo.Builder getConcept(final EToopConcept concept, final Enhet enhet) {
+        //Enhet
+        if (concept==EToopConcept.COMPANY_NAME && enhet.getNavn()!=null) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.COMPANY_NAME)
+                    .valueText(enhet.getNavn());
+        } else if (concept==EToopConcept.REGISTRATION_DATE && enhet.getRegistreringsdatoEnhetsregisteret()!=null) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.REGISTRATION_DATE)
+                    .valueDate(LocalDate.parse(enhet.getRegistreringsdatoEnhetsregisteret(), DateTimeFormatter.ofPattern("uuuu-MM-dd")));
+        } else if (concept==EToopConcept.COMPANY_CODE && enhet.getOrganisasjonsnummer()!=null) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.COMPANY_CODE)
+                    .valueText(enhet.getOrganisasjonsnummer());
+        } else if (concept==EToopConcept.VAT_NUMBER && enhet.getOrganisasjonsnummer()!=null &&
+                   enhet.getRegistrertIMvaregisteret()!=null && enhet.getRegistrertIMvaregisteret()) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.VAT_NUMBER)
+                    .valueText(enhet.getOrganisasjonsnummer()+"MVA");
+        } else if (concept==EToopConcept.FOUNDATION_DATE && enhet.getStiftelsedato()!=null) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.FOUNDATION_DATE)
+                    .valueDate(LocalDate.parse(enhet.getStiftelsedato(), DateTimeFormatter.ofPattern("uuuu-MM-dd")));
+        }
+
+        //Enhet.Organisasjonsform
+        if (concept==EToopConcept.COMPANY_TYPE &&
+            enhet.getOrganisasjonsform()!=null && enhet.getOrganisasjonsform().getKode()!=null) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.COMPANY_TYPE)
+                    .valueText(enhet.getOrganisasjonsform().getKode());
+        }
+
+        //Enhet.Forretningsadresse
+        if (enhet.getForretningsadresse() != null) {
+            if (concept==EToopConcept.COUNTRY_NAME && enhet.getForretningsadresse().getLandkode()!=null) {
+                return ConceptPojo.builder()
+                        .name(EToopConcept.COUNTRY_NAME)
+                        .valueText(enhet.getForretningsadresse().getLandkode());
+            } else if (concept==EToopConcept.POSTAL_CODE &&
+                       (enhet.getForretningsadresse().getPostnummer()!=null || enhet.getForretningsadresse().getPoststed()!=null)) {
+                StringBuilder sb = new StringBuilder();
+                if (enhet.getForretningsadresse().getPostnummer()!=null) {
+                    sb.append(enhet.getForretningsadresse().getPostnummer());
+                }
+                if (enhet.getForretningsadresse().getPoststed()!=null) {
+                    if (sb.length()>0) {
+                        sb.append(' ');
+                    }
+                    sb.append(enhet.getForretningsadresse().getPoststed());
+                }
+                return ConceptPojo.builder()
+                        .name(EToopConcept.POSTAL_CODE)
+                        .valueText(sb.toString());
+            } else if (concept==EToopConcept.REGION && enhet.getForretningsadresse().getKommune()!=null) {
+                return ConceptPojo.builder()
+                        .name(EToopConcept.REGION)
+                        .valueText(enhet.getForretningsadresse().getKommune());
+            } else if (concept==EToopConcept.STREET_ADDRESS && enhet.getForretningsadresse().getAdresse()!=null) {
+                StringBuilder sb = new StringBuilder();
+                for (String adresselinje : enhet.getForretningsadresse().getAdresse()) {
+                    if (sb.length()>0) {
+                        sb.append('\n');
+                    }
+                    sb.append(adresselinje);
+                }
+                return ConceptPojo.builder()
+                        .name(EToopConcept.STREET_ADDRESS)
+                        .valueText(sb.toString());
+            }
+        }
+
+        //Enhet.Næringskode1
+        if (concept==EToopConcept.NACE_CODE &&
+            enhet.getNaeringskode1()!=null && enhet.getNaeringskode1().getKode()!=null) {
+            return ConceptPojo.builder()
+                    .name(EToopConcept.NACE_CODE)
+                    .valueText(enhet.getNaeringskode1().getKode());
+        }
+
+        return null;
+    }
+
+}
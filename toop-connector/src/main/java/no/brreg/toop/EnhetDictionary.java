@@ -0,0 +1,244 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.Adresse;
+import no.brreg.toop.generated.model.Enhet;
+import no.brreg.toop.generated.model.Naeringskode;
+import no.brreg.toop.generated.model.Organisasjonsform;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Shared instances of the low-cardinality strings in Enhet records (organization form, NACE code and
+ * address codes). Every fetched Enhet is deserialized with its own copies of these strings, so replacing
+ * them with one instance per distinct value keeps thousands of duplicates out of the cache.
+ *
+ * Each dictionary holds at most MAX_DICTIONARY_SIZE values. Values beyond that are kept as they are.
+ * The savings are measured from the entries currently cached (see measure()), so evicted entries and
+ * replaced duplicates that have since been collected are not counted.
+ */
+public class EnhetDictionary {
+    private static final int MAX_DICTIONARY_SIZE = 10000;
+    private static final int STRING_BYTES = 24; //String object: header, value reference, hash and coder, padded
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final boolean COMPACT_STRINGS = isCompactStrings();
+
+    public enum Field {
+        ORGANISASJONSFORM_KODE("organisasjonsform.kode"),
+        ORGANISASJONSFORM_BESKRIVELSE("organisasjonsform.beskrivelse"),
+        NAERINGSKODE_KODE("naeringskode.kode"),
+        NAERINGSKODE_BESKRIVELSE("naeringskode.beskrivelse"),
+        ADRESSE_LANDKODE("adresse.landkode"),
+        ADRESSE_LAND("adresse.land"),
+        ADRESSE_KOMMUNENUMMER("adresse.kommunenummer"),
+        ADRESSE_KOMMUNE("adresse.kommune"),
+        ADRESSE_POSTNUMMER("adresse.postnummer"),
+        ADRESSE_POSTSTED("adresse.poststed");
+
+        private final String name;
+
+        Field(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Map<Field,Map<String,String>> dictionaries = new EnumMap<>(Field.class);
+
+    /**
+     * How many duplicate strings the shared instances stand in for, among a set of cached Enhet records.
+     */
+    public static final class Savings {
+        private final long deduplicated;
+        private final long bytesSaved;
+
+        private Savings(final long deduplicated, final long bytesSaved) {
+            this.deduplicated = deduplicated;
+            this.bytesSaved = bytesSaved;
+        }
+
+        /**
+         * Number of references to a shared instance beyond the first, i.e. copies that would be held without the dictionary.
+         */
+        public long getDeduplicated() {
+            return deduplicated;
+        }
+
+        /**
+         * Estimated heap those copies would take, with the string layout of the running JVM.
+         */
+        public long getBytesSaved() {
+            return bytesSaved;
+        }
+    }
+
+
+    public EnhetDictionary() {
+        for (Field field : Field.values()) {
+            dictionaries.put(field, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Replaces the dictionary fields of the Enhet with their shared instances. Returns the same Enhet.
+     */
+    public Enhet canonicalize(final Enhet enhet) {
+        if (enhet == null) {
+            return null;
+        }
+
+        final Organisasjonsform organisasjonsform = enhet.getOrganisasjonsform();
+        if (organisasjonsform != null) {
+            organisasjonsform.setKode(intern(Field.ORGANISASJONSFORM_KODE, organisasjonsform.getKode()));
+            organisasjonsform.setBeskrivelse(intern(Field.ORGANISASJONSFORM_BESKRIVELSE, organisasjonsform.getBeskrivelse()));
+        }
+        canonicalize(enhet.getNaeringskode1());
+        canonicalize(enhet.getNaeringskode2());
+        canonicalize(enhet.getNaeringskode3());
+        canonicalize(enhet.getForretningsadresse());
+        canonicalize(enhet.getPostadresse());
+        return enhet;
+    }
+
+    private void canonicalize(final Naeringskode naeringskode) {
+        if (naeringskode != null) {
+            naeringskode.setKode(intern(Field.NAERINGSKODE_KODE, naeringskode.getKode()));
+            naeringskode.setBeskrivelse(intern(Field.NAERINGSKODE_BESKRIVELSE, naeringskode.getBeskrivelse()));
+        }
+    }
+
+    private void canonicalize(final Adresse adresse) {
+        if (adresse != null) {
+            adresse.setLandkode(intern(Field.ADRESSE_LANDKODE, adresse.getLandkode()));
+            adresse.setLand(intern(Field.ADRESSE_LAND, adresse.getLand()));
+            adresse.setKommunenummer(intern(Field.ADRESSE_KOMMUNENUMMER, adresse.getKommunenummer()));
+            adresse.setKommune(intern(Field.ADRESSE_KOMMUNE, adresse.getKommune()));
+            adresse.setPostnummer(intern(Field.ADRESSE_POSTNUMMER, adresse.getPostnummer()));
+            adresse.setPoststed(intern(Field.ADRESSE_POSTSTED, adresse.getPoststed()));
+        }
+    }
+
+    private String intern(final Field field, final String value) {
+        if (value == null) {
+            return null;
+        }
+
+        final Map<String,String> dictionary = dictionaries.get(field);
+        final String canonical = dictionary.get(value);
+        if (canonical == null) {
+            //The size check is racy, so a full dictionary may overshoot by a few values
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                final String previous = dictionary.putIfAbsent(value, value);
+                return previous==null ? value : previous;
+            }
+            return value;
+        }
+        return canonical;
+    }
+
+    /**
+     * Counts the references to shared instances in the given Enhet records. The caller must keep the
+     * records from changing while they are measured.
+     */
+    public Savings measure(final Collection<Enhet> enheter) {
+        final Map<String,Integer> references = new IdentityHashMap<>();
+        for (Enhet enhet : enheter) {
+            final Organisasjonsform organisasjonsform = enhet.getOrganisasjonsform();
+            if (organisasjonsform != null) {
+                countShared(references, Field.ORGANISASJONSFORM_KODE, organisasjonsform.getKode());
+                countShared(references, Field.ORGANISASJONSFORM_BESKRIVELSE, organisasjonsform.getBeskrivelse());
+            }
+            countShared(references, enhet.getNaeringskode1());
+            countShared(references, enhet.getNaeringskode2());
+            countShared(references, enhet.getNaeringskode3());
+            countShared(references, enhet.getForretningsadresse());
+            countShared(references, enhet.getPostadresse());
+        }
+
+        long deduplicated = 0;
+        long bytesSaved = 0;
+        for (Map.Entry<String,Integer> entry : references.entrySet()) {
+            final int copies = entry.getValue() - 1;
+            deduplicated += copies;
+            bytesSaved += copies * getStringBytes(entry.getKey());
+        }
+        return new Savings(deduplicated, bytesSaved);
+    }
+
+    private void countShared(final Map<String,Integer> references, final Naeringskode naeringskode) {
+        if (naeringskode != null) {
+            countShared(references, Field.NAERINGSKODE_KODE, naeringskode.getKode());
+            countShared(references, Field.NAERINGSKODE_BESKRIVELSE, naeringskode.getBeskrivelse());
+        }
+    }
+
+    private void countShared(final Map<String,Integer> references, final Adresse adresse) {
+        if (adresse != null) {
+            countShared(references, Field.ADRESSE_LANDKODE, adresse.getLandkode());
+            countShared(references, Field.ADRESSE_LAND, adresse.getLand());
+            countShared(references, Field.ADRESSE_KOMMUNENUMMER, adresse.getKommunenummer());
+            countShared(references, Field.ADRESSE_KOMMUNE, adresse.getKommune());
+            countShared(references, Field.ADRESSE_POSTNUMMER, adresse.getPostnummer());
+            countShared(references, Field.ADRESSE_POSTSTED, adresse.getPoststed());
+        }
+    }
+
+    private void countShared(final Map<String,Integer> references, final Field field, final String value) {
+        //Only the dictionary's own instance is shared. Values that didn't fit in a full dictionary are copies
+        if (value!=null && dictionaries.get(field).get(value)==value) {
+            references.merge(value, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Shallow size of a String and its backing array. Since Java 9, Latin-1 strings are stored with one byte
+     * per character (compact strings), and others with two.
+     */
+    static long getStringBytes(final String value) {
+        int bytesPerChar = 2;
+        if (COMPACT_STRINGS) {
+            bytesPerChar = 1;
+            for (int i=0; i<value.length(); i++) {
+                if (value.charAt(i) > 0xff) {
+                    bytesPerChar = 2;
+                    break;
+                }
+            }
+        }
+        return STRING_BYTES + align(ARRAY_HEADER_BYTES + (long) bytesPerChar * value.length());
+    }
+
+    private static long align(final long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static boolean isCompactStrings() {
+        if (System.getProperty("java.specification.version", "").startsWith("1.")) {
+            return false; //Java 8 always stores strings as char[]
+        }
+        return !ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-XX:-CompactStrings");
+    }
+
+    /**
+     * Number of distinct values per dictionary.
+     */
+    public Map<String,Integer> getSizes() {
+        final Map<String,Integer> sizes = new LinkedHashMap<>();
+        for (Map.Entry<Field,Map<String,String>> entry : dictionaries.entrySet()) {
+            sizes.put(entry.getKey().getName(), entry.getValue().size());
+        }
+        return sizes;
+    }
+
+}
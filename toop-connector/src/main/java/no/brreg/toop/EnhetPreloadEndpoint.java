@@ -0,0 +1,77 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.EnhetPreloadJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+
+/**
+ * Preloading of the Enhet cache (/actuator/enhetpreload, admin only): GET for the progress of the current or
+ * most recent preload, POST {"orgnos": ...} to start one, and DELETE to cancel it. The orgnos may be a JSON
+ * array, or a text separated by newlines, commas, semicolons or whitespace, such as the contents of a file.
+ */
+@Component
+@Endpoint(id = "enhetpreload")
+public class EnhetPreloadEndpoint {
+    @Autowired
+    private EnhetPreloadHandler enhetPreloadHandler;
+
+
+    @ReadOperation
+    public WebEndpointResponse<EnhetPreloadJob> getEnhetPreload() {
+        return toResponse(enhetPreloadHandler.getJob(), WebEndpointResponse.STATUS_OK);
+    }
+
+    @WriteOperation
+    public WebEndpointResponse<EnhetPreloadJob> preloadEnhet(final String orgnos) {
+        final List<String> orgnoList = EnhetPreloadHandler.parseOrgnos(orgnos);
+        if (orgnoList.isEmpty()) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_BAD_REQUEST);
+        }
+        if (orgnoList.size() > EnhetPreloadHandler.MAX_PRELOAD_SIZE) {
+            return new WebEndpointResponse<>(HttpStatus.PAYLOAD_TOO_LARGE.value());
+        }
+
+        final EnhetPreloadHandler.Job job = enhetPreloadHandler.start(orgnoList);
+        if (job == null) {
+            //Another preload is running
+            return new WebEndpointResponse<>(HttpStatus.CONFLICT.value());
+        }
+        return toResponse(job, HttpStatus.ACCEPTED.value());
+    }
+
+    @DeleteOperation
+    public WebEndpointResponse<EnhetPreloadJob> cancelEnhetPreload() {
+        return toResponse(enhetPreloadHandler.cancel(), WebEndpointResponse.STATUS_OK);
+    }
+
+    private WebEndpointResponse<EnhetPreloadJob> toResponse(final EnhetPreloadHandler.Job job, final int status) {
+        if (job == null) {
+            //No preload has been started
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        return new WebEndpointResponse<>(new EnhetPreloadJob()
+                                            .id(job.getId())
+                                            .state(EnhetPreloadJob.StateEnum.fromValue(job.getState().name()))
+                                            .started(job.getStarted())
+                                            .finished(job.getFinished())
+                                            .total(job.getTotal())
+                                            .completed(job.getCompleted())
+                                            .fetched(job.getResultCount(EnhetsregisterCache.PreloadResult.FETCHED))
+                                            .cached(job.getResultCount(EnhetsregisterCache.PreloadResult.CACHED))
+                                            .notFound(job.getResultCount(EnhetsregisterCache.PreloadResult.NOT_FOUND))
+                                            .failed(job.getResultCount(EnhetsregisterCache.PreloadResult.FAILED))
+                                            .invalid(job.getInvalid()), status);
+    }
+
+}
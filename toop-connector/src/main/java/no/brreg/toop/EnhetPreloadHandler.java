@@ -0,0 +1,225 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+
+/**
+ * Prewarms EnhetsregisterCache from a list of orgnos before known traffic peaks. One preload job runs at
+ * a time, fetching at most toop.cache.preload.parallelism (up to EnhetsregisterCache.PRELOAD_MAX_CONCURRENT)
+ * orgnos from Enhetsregisteret concurrently through the preload bulkhead, and its progress can be followed
+ * through getJob().
+ */
+@Component
+public class EnhetPreloadHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnhetPreloadHandler.class);
+
+    public static final int MAX_PRELOAD_SIZE = 10000;
+    private static final Pattern ORGNO_PATTERN = Pattern.compile("\\d{9}");
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("[\\s,;]+");
+
+    @Value("${toop.cache.preload.parallelism:4}")
+    private int parallelism;
+
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    public enum State {RUNNING, COMPLETED, CANCELLED}
+
+    public static final class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final OffsetDateTime started = OffsetDateTime.now();
+        private volatile OffsetDateTime finished = null;
+        private volatile State state = State.RUNNING;
+        private final int total;
+        private final int invalid;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final Map<EnhetsregisterCache.PreloadResult,AtomicInteger> results = new EnumMap<>(EnhetsregisterCache.PreloadResult.class);
+
+        private Job(final int total, final int invalid) {
+            this.total = total;
+            this.invalid = invalid;
+            for (EnhetsregisterCache.PreloadResult result : EnhetsregisterCache.PreloadResult.values()) {
+                results.put(result, new AtomicInteger());
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public OffsetDateTime getStarted() {
+            return started;
+        }
+
+        public OffsetDateTime getFinished() {
+            return finished;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getInvalid() {
+            return invalid;
+        }
+
+        public int getCompleted() {
+            return completed.get();
+        }
+
+        public int getResultCount(final EnhetsregisterCache.PreloadResult result) {
+            return results.get(result).get();
+        }
+    }
+
+    private ExecutorService preloadExecutor;
+    private Job job = null;
+    private final Object jobLock = new Object();
+
+
+    @PostConstruct
+    public void initialize() {
+        //More threads than preload permits would only have their fetches rejected
+        preloadExecutor = Executors.newFixedThreadPool(Math.min(Math.max(1, parallelism), EnhetsregisterCache.PRELOAD_MAX_CONCURRENT), r -> {
+            Thread thread = new Thread(r, "enhet-preload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        preloadExecutor.shutdownNow();
+    }
+
+    /**
+     * Splits an uploaded list of orgnos, separated by newlines, commas, semicolons or whitespace.
+     */
+    public static List<String> parseOrgnos(final String text) {
+        final List<String> orgnos = new ArrayList<>();
+        if (text != null) {
+            for (String orgno : SEPARATOR_PATTERN.split(text)) {
+                if (!orgno.isEmpty()) {
+                    orgnos.add(orgno);
+                }
+            }
+        }
+        return orgnos;
+    }
+
+    /**
+     * Starts preloading the orgnos. Duplicates are skipped and malformed orgnos are counted as invalid.
+     * Returns null if another preload job is still running.
+     */
+    public Job start(final Collection<String> orgnos) {
+        final Set<String> validOrgnos = new LinkedHashSet<>();
+        int invalid = 0;
+        for (String orgno : orgnos) {
+            if (orgno!=null && ORGNO_PATTERN.matcher(orgno.trim()).matches()) {
+                validOrgnos.add(orgno.trim());
+            } else {
+                invalid++;
+            }
+        }
+
+        final Job newJob;
+        synchronized(jobLock) {
+            if (job!=null && job.state==State.RUNNING) {
+                return null;
+            }
+            newJob = new Job(validOrgnos.size(), invalid);
+            job = newJob;
+        }
+
+        loggerHandler.log(LoggerHandler.Level.INFO, "Preloading " + validOrgnos.size() + " orgnos into the Enhet cache" + (invalid>0 ? ", skipping " + invalid + " invalid" : ""));
+        if (validOrgnos.size() > enhetsregisterCache.getStatistics().getMaxSize()) {
+            loggerHandler.log(LoggerHandler.Level.INFO, "Preload of " + validOrgnos.size() + " orgnos exceeds the Enhet cache capacity. The least recently used will be evicted");
+        }
+        if (validOrgnos.isEmpty()) {
+            finish(newJob, State.COMPLETED);
+        }
+        for (String orgno : validOrgnos) {
+            try {
+                preloadExecutor.execute(() -> preload(newJob, orgno));
+            } catch (RejectedExecutionException e) {
+                LOGGER.info("Preload of " + orgno + " rejected: " + e.getMessage());
+                finish(newJob, State.CANCELLED);
+                break;
+            }
+        }
+        return newJob;
+    }
+
+    private void preload(final Job job, final String orgno) {
+        EnhetsregisterCache.PreloadResult result = EnhetsregisterCache.PreloadResult.FAILED;
+        try {
+            if (job.state == State.RUNNING) {
+                result = enhetsregisterCache.preloadEnhet(orgno);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Preload of " + orgno + " failed: ", e);
+        } finally {
+            job.results.get(result).incrementAndGet();
+            if (job.completed.incrementAndGet() >= job.total) {
+                finish(job, State.COMPLETED);
+            }
+        }
+    }
+
+    /**
+     * Cancels the running job. Orgnos already being fetched complete, the rest are counted as FAILED.
+     */
+    public Job cancel() {
+        synchronized(jobLock) {
+            if (job != null) {
+                finish(job, State.CANCELLED);
+            }
+            return job;
+        }
+    }
+
+    public Job getJob() {
+        synchronized(jobLock) {
+            return job;
+        }
+    }
+
+    private void finish(final Job job, final State state) {
+        synchronized(job) {
+            if (job.state != State.RUNNING) {
+                return;
+            }
+            job.state = state;
+            job.finished = OffsetDateTime.now();
+        }
+        loggerHandler.log(LoggerHandler.Level.INFO, "Enhet preload " + state.name().toLowerCase() + ": " +
+                                                    job.getResultCount(EnhetsregisterCache.PreloadResult.FETCHED) + " fetched, " +
+                                                    job.getResultCount(EnhetsregisterCache.PreloadResult.CACHED) + " already cached, " +
+                                                    job.getResultCount(EnhetsregisterCache.PreloadResult.NOT_FOUND) + " not found, " +
+                                                    job.getResultCount(EnhetsregisterCache.PreloadResult.FAILED) + " failed");
+    }
+
+}
@@ -2,18 +2,24 @@ package no.brreg.toop;
 
 // This code is Public Domain. See LICENSE
 
+import io.micrometer.core.instrument.MeterRegistry;
 import kong.unirest.HttpResponse;
 import kong.unirest.Unirest;
 import kong.unirest.UnirestException;
 import no.brreg.toop.generated.model.Enhet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.URLEncoder;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 
 @Component
@@ -22,74 +28,338 @@ public class EnhetsregisterCache {
 
     private static class EnhetItem {
         private final Enhet enhet;
+        private final LocalDateTime fetched;
+        private final boolean restored;
         public LocalDateTime lastAccessed;
-        public EnhetItem(final Enhet enhet) {
+        public long hits;
+        public EnhetItem(final Enhet enhet, final LocalDateTime fetched, final boolean restored) {
             this.enhet = enhet;
+            this.fetched = fetched;
+            this.restored = restored;
             this.lastAccessed = LocalDateTime.now();
+            this.hits = 0;
+        }
+        public boolean isExpired() {
+            return fetched.plus(CACHE_VALID_DURATION).isBefore(LocalDateTime.now());
         }
         public Enhet getEnhet() {
             this.lastAccessed = LocalDateTime.now();
+            this.hits++;
+            return enhet;
+        }
+    }
+
+    public static final class CachedEnhet {
+        private final Enhet enhet;
+        private final LocalDateTime fetched;
+        private final boolean restored;
+        private final LocalDateTime lastAccessed;
+        private final long hits;
+        private final boolean expired;
+
+        private CachedEnhet(final EnhetItem item) {
+            this.enhet = item.enhet;
+            this.fetched = item.fetched;
+            this.restored = item.restored;
+            this.lastAccessed = item.lastAccessed;
+            this.hits = item.hits;
+            this.expired = item.isExpired();
+        }
+
+        public Enhet getEnhet() {
+            return enhet;
+        }
+
+        public LocalDateTime getFetched() {
+            return fetched;
+        }
+
+        public boolean isRestored() {
+            return restored;
+        }
+
+        public LocalDateTime getLastAccessed() {
+            return lastAccessed;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+
+    public static final class Statistics {
+        private final int size;
+        private final int maxSize;
+        private final Map<String,Long> lookups;
+        private final long evictions;
+        private final Map<String,Integer> dictionarySizes;
+        private final long dictionaryDeduplicated;
+        private final long dictionaryBytesSaved;
+
+        private Statistics(final int size, final int maxSize, final Map<String,Long> lookups, final long evictions, final Map<String,Integer> dictionarySizes,
+                           final EnhetDictionary.Savings dictionarySavings) {
+            this.size = size;
+            this.maxSize = maxSize;
+            this.lookups = lookups;
+            this.evictions = evictions;
+            this.dictionarySizes = dictionarySizes;
+            this.dictionaryDeduplicated = dictionarySavings.getDeduplicated();
+            this.dictionaryBytesSaved = dictionarySavings.getBytesSaved();
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Number of local lookups since startup, per result (hit, fetched, not_found, stale, unavailable).
+         */
+        public Map<String,Long> getLookups() {
+            return lookups;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Number of distinct values per shared-string dictionary (see EnhetDictionary).
+         */
+        public Map<String,Integer> getDictionarySizes() {
+            return dictionarySizes;
+        }
+
+        /**
+         * Number of string copies the cached entries would hold without the shared-string dictionaries.
+         */
+        public long getDictionaryDeduplicated() {
+            return dictionaryDeduplicated;
+        }
+
+        /**
+         * Estimated heap those copies would take. Measured from the entries cached now.
+         */
+        public long getDictionaryBytesSaved() {
+            return dictionaryBytesSaved;
+        }
+    }
+
+    /**
+     * The answer to an Enhet lookup. Stale if it was served past its validity because Enhetsregisteret
+     * (or the owning node) could not be asked.
+     */
+    public static final class Lookup {
+        private final Enhet enhet;
+        private final boolean stale;
+
+        public Lookup(final Enhet enhet, final boolean stale) {
+            this.enhet = enhet;
+            this.stale = stale;
+        }
+
+        public Enhet getEnhet() {
             return enhet;
         }
+
+        public boolean isStale() {
+            return stale;
+        }
     }
 
+    public enum PreloadResult {CACHED, FETCHED, NOT_FOUND, FAILED}
+
+    private static final String ENHETER_URL = "https://data.brreg.no/enhetsregisteret/api/enheter/";
+    private static final String UNDERENHETER_URL = "https://data.brreg.no/enhetsregisteret/api/underenheter/";
+    private static final Pattern ORGNO_PATTERN = Pattern.compile("\\d{9}");
     private static final int MAX_CACHE_ENTRIES = 1000;
+    private static final Duration CACHE_VALID_DURATION = Duration.ofHours(24);
     private static final HashMap<String,EnhetItem> enheter = new HashMap<>();
     private static final Object enheterLock = new Object();
 
+    private final GuardedDependency enhetsregisteret = new GuardedDependency("enhetsregisteret", 10, 5, Duration.ofSeconds(30));
+    //Preloads get their own smaller bulkhead and circuit breaker, so a large preload can neither starve
+    //live lookups nor open the circuit for them
+    public static final int PRELOAD_MAX_CONCURRENT = 4;
+    private final GuardedDependency enhetsregisteretPreload = new GuardedDependency("enhetsregisteret-preload", PRELOAD_MAX_CONCURRENT, 5, Duration.ofSeconds(30));
+    private final Map<String,AtomicLong> lookups = new ConcurrentHashMap<>();
+    private final AtomicLong evictions = new AtomicLong();
+    private final EnhetDictionary enhetDictionary = new EnhetDictionary();
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EnhetCachePartitioner enhetCachePartitioner;
+
 
     private int getMaxCacheEntries() {
         return MAX_CACHE_ENTRIES;
     }
 
-    public Enhet getEnhet(final String orgno) {
-        Enhet enhet = getEnhetFromEnhetsregisteret(orgno, "https://data.brreg.no/enhetsregisteret/api/enheter/");
-        if (enhet == null)
-        {
-            enhet = getEnhetFromEnhetsregisteret(orgno, "https://data.brreg.no/enhetsregisteret/api/underenheter/");
+    /**
+     * Looks up the Enhet, or returns null if Enhetsregisteret doesn't know the orgno. Throws if the orgno is not cached
+     * and Enhetsregisteret could not be asked.
+     */
+    public Lookup lookupEnhet(final String orgno) throws GuardedDependency.UnavailableException {
+        if (orgno==null || orgno.isEmpty()) {
+            return null;
         }
-        return enhet;
+
+        //With a partitioned cache, orgnos owned by another node are looked up there
+        final String owner = enhetCachePartitioner.getRemoteOwner(orgno);
+        if (owner != null) {
+            try {
+                return enhetCachePartitioner.getFromOwner(owner, orgno);
+            } catch (GuardedDependency.UnavailableException e) {
+                LOGGER.info("Could not get " + orgno + " from node " + owner + ": " + e.getMessage() + ". Fetching it here");
+            }
+        }
+        return lookupLocalEnhet(orgno);
     }
 
-    private Enhet getEnhetFromEnhetsregisteret(final String orgno, final String enhetsregisterApiUrl) {
+    /**
+     * Looks up the orgno in this node's cache, and fetches it from Enhetsregisteret if needed. An expired entry
+     * is returned as stale if Enhetsregisteret could not be asked, and if there is none this throws.
+     */
+    public Lookup lookupLocalEnhet(final String orgno) throws GuardedDependency.UnavailableException {
         if (orgno==null || orgno.isEmpty()) {
             return null;
         }
 
+        final FlightRecorderEvents.EnhetLookupEvent event = new FlightRecorderEvents.EnhetLookupEvent();
+        event.begin();
+        final EnhetItem cachedItem;
         synchronized(EnhetsregisterCache.enheterLock) {
-            if (EnhetsregisterCache.enheter.containsKey(orgno)) {
-                return EnhetsregisterCache.enheter.get(orgno).getEnhet();
+            cachedItem = EnhetsregisterCache.enheter.get(orgno);
+            if (cachedItem!=null && !cachedItem.isExpired()) {
+                commit(event, orgno, "hit");
+                return new Lookup(cachedItem.getEnhet(), false);
             }
+        }
 
-            String url = null;
-            try {
-                url = enhetsregisterApiUrl + URLEncoder.encode(orgno, "utf-8");
-                HttpResponse<Enhet> enhetResponse = Unirest.get(url)
-                        .header("accept", "application/json")
-                        .asObject(Enhet.class);
-                int status = enhetResponse.getStatus();
-                if (status >= 200 && status <= 299) {
-                    Enhet enhet = enhetResponse.getBody();
-                    return cacheEnhet(enhet);
-                } else {
-                    LOGGER.info("Got status=" + status + " when HTTP GET " + url);
-                    return null;
-                }
-            } catch (UnsupportedEncodingException | UnirestException e) {
-                LOGGER.info("Got exception when HTTP GET " + url + ", :" + e.getMessage());
+        //Fetch without holding the cache lock, so one slow lookup doesn't block all others
+        try {
+            final Enhet enhet = enhetsregisteret.call(() -> fetchEnhetOrUnderenhet(orgno));
+            if (enhet == null) {
+                removeEnhet(orgno);
+                commit(event, orgno, "not_found");
                 return null;
             }
+            commit(event, orgno, "fetched");
+            return new Lookup(cacheEnhet(enhet), false);
+        } catch (GuardedDependency.UnavailableException e) {
+            if (cachedItem == null) {
+                LOGGER.info("Enhetsregisteret unavailable for " + orgno + ": " + e.getMessage());
+                commit(event, orgno, "unavailable");
+                throw e;
+            }
+            //Serve the expired entry rather than failing
+            loggerHandler.log(LoggerHandler.Level.INFO, "Enhetsregisteret unavailable (" + e.getMessage() + "). Serving stale " + orgno + " fetched " + cachedItem.fetched);
+            meterRegistry.counter("toop.dependency.stale", "dependency", enhetsregisteret.getName()).increment();
+            commit(event, orgno, "stale");
+            synchronized(EnhetsregisterCache.enheterLock) {
+                return new Lookup(cachedItem.getEnhet(), true);
+            }
+        }
+    }
+
+    private void commit(final FlightRecorderEvents.EnhetLookupEvent event, final String orgno, final String result) {
+        lookups.computeIfAbsent(result, key -> new AtomicLong()).incrementAndGet();
+        event.end();
+        if (event.shouldCommit()) {
+            event.orgno = orgno;
+            event.result = result;
+            event.commit();
+        }
+    }
+
+    public GuardedDependency getDependency() {
+        return enhetsregisteret;
+    }
+
+    public GuardedDependency getPreloadDependency() {
+        return enhetsregisteretPreload;
+    }
+
+    Enhet fetchEnhetOrUnderenhet(final String orgno) throws IOException {
+        //Enhetsregisteret answers a malformed orgno with 400, which would otherwise count as a failed call
+        if (!ORGNO_PATTERN.matcher(orgno).matches()) {
+            return null;
+        }
+        Enhet enhet = fetchEnhet(orgno, ENHETER_URL);
+        if (enhet == null) {
+            enhet = fetchEnhet(orgno, UNDERENHETER_URL);
+        }
+        return enhet;
+    }
+
+    /**
+     * Returns null if Enhetsregisteret doesn't know the orgno, and throws if the lookup failed.
+     */
+    private Enhet fetchEnhet(final String orgno, final String enhetsregisterApiUrl) throws IOException {
+        final String url = enhetsregisterApiUrl + URLEncoder.encode(orgno, "utf-8");
+        try {
+            HttpResponse<Enhet> enhetResponse = Unirest.get(url)
+                    .header("accept", "application/json")
+                    .asObject(Enhet.class);
+            return isFound(enhetResponse.getStatus(), url) ? enhetResponse.getBody() : null;
+        } catch (UnirestException e) {
+            throw new IOException("Got exception when HTTP GET " + url + ", :" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns true for a 2xx status, and false if Enhetsregisteret answered that it doesn't know the orgno (404 or 410).
+     * Throws for any other status, so rate limiting (429), timeouts (408) and other refusals count as failed calls,
+     * and the cached entry is kept and served stale instead of being removed.
+     */
+    static boolean isFound(final int status, final String url) throws IOException {
+        if (status >= 200 && status <= 299) {
+            return true;
+        } else if (status==404 || status==410) {
+            LOGGER.info("Got status=" + status + " when HTTP GET " + url);
+            return false;
+        }
+        throw new IOException("Got status=" + status + " when HTTP GET " + url);
+    }
+
+    private void removeEnhet(final String orgno) {
+        synchronized(EnhetsregisterCache.enheterLock) {
+            EnhetsregisterCache.enheter.remove(orgno);
         }
     }
 
     private Enhet cacheEnhet(final Enhet enhet) {
+        return cacheEnhet(enhet, LocalDateTime.now(), false);
+    }
+
+    private Enhet cacheEnhet(final Enhet enhet, final LocalDateTime fetched, final boolean restored) {
         if (enhet == null) {
             return null;
         }
 
+        //Share the repeated code and address strings with the entries already cached
+        enhetDictionary.canonicalize(enhet);
+
         synchronized(EnhetsregisterCache.enheterLock) {
-            //Add item to cache
-            EnhetsregisterCache.enheter.put(enhet.getOrganisasjonsnummer(), new EnhetItem(enhet));
+            //Add item to cache, keeping its access statistics if it is being replaced
+            final EnhetItem newItem = new EnhetItem(enhet, fetched, restored);
+            final EnhetItem oldItem = EnhetsregisterCache.enheter.put(enhet.getOrganisasjonsnummer(), newItem);
+            if (oldItem != null) {
+                newItem.lastAccessed = oldItem.lastAccessed;
+                newItem.hits = oldItem.hits;
+            }
 
             //Purge oldest items from cache
             while (EnhetsregisterCache.enheter.size() > getMaxCacheEntries()) {
@@ -100,9 +370,145 @@ public class EnhetsregisterCache {
                     }
                 }
                 EnhetsregisterCache.enheter.remove(oldestItem.getEnhet().getOrganisasjonsnummer());
+                evictions.incrementAndGet();
             }
         }
         return enhet;
     }
 
+    public Statistics getStatistics() {
+        final Map<String,Long> lookupCounts = new TreeMap<>();
+        for (Map.Entry<String,AtomicLong> entry : lookups.entrySet()) {
+            lookupCounts.put(entry.getKey(), entry.getValue().get());
+        }
+        final int size;
+        final EnhetDictionary.Savings dictionarySavings;
+        synchronized(EnhetsregisterCache.enheterLock) {
+            size = EnhetsregisterCache.enheter.size();
+            final List<Enhet> cached = new ArrayList<>(size);
+            for (EnhetItem item : EnhetsregisterCache.enheter.values()) {
+                cached.add(item.enhet);
+            }
+            dictionarySavings = enhetDictionary.measure(cached);
+        }
+        return new Statistics(size, getMaxCacheEntries(), lookupCounts, evictions.get(), enhetDictionary.getSizes(), dictionarySavings);
+    }
+
+    /**
+     * Returns the entry cached on this node, without fetching it or counting it as used. Null if not cached.
+     */
+    public CachedEnhet getCachedEnhet(final String orgno) {
+        synchronized(EnhetsregisterCache.enheterLock) {
+            final EnhetItem item = EnhetsregisterCache.enheter.get(orgno);
+            return item==null ? null : new CachedEnhet(item);
+        }
+    }
+
+    public boolean evictEnhet(final String orgno) {
+        synchronized(EnhetsregisterCache.enheterLock) {
+            return EnhetsregisterCache.enheter.remove(orgno) != null;
+        }
+    }
+
+    /**
+     * Makes sure the orgno is cached, on its owning node if the cache is partitioned. Unlike lookupEnhet(), an
+     * entry that cannot be fetched is reported as FAILED rather than served stale.
+     */
+    public PreloadResult preloadEnhet(final String orgno) {
+        final String owner = enhetCachePartitioner.getRemoteOwner(orgno);
+        if (owner != null) {
+            try {
+                return enhetCachePartitioner.preloadOnOwner(owner, orgno);
+            } catch (GuardedDependency.UnavailableException e) {
+                LOGGER.info("Could not preload " + orgno + " on node " + owner + ": " + e.getMessage() + ". Preloading it here");
+            }
+        }
+        return preloadLocalEnhet(orgno);
+    }
+
+    /**
+     * Makes sure the orgno is cached on this node. Fetches go through the preload bulkhead and circuit breaker,
+     * never the ones of live lookups.
+     */
+    public PreloadResult preloadLocalEnhet(final String orgno) {
+        synchronized(EnhetsregisterCache.enheterLock) {
+            final EnhetItem item = EnhetsregisterCache.enheter.get(orgno);
+            if (item!=null && !item.isExpired()) {
+                return PreloadResult.CACHED;
+            }
+        }
+        try {
+            final Enhet enhet = enhetsregisteretPreload.call(() -> fetchEnhetOrUnderenhet(orgno));
+            if (enhet == null) {
+                removeEnhet(orgno);
+                return PreloadResult.NOT_FOUND;
+            }
+            cacheEnhet(enhet);
+            return PreloadResult.FETCHED;
+        } catch (GuardedDependency.UnavailableException e) {
+            LOGGER.info("Could not preload " + orgno + ": " + e.getMessage());
+            return PreloadResult.FAILED;
+        }
+    }
+
+    /**
+     * Returns up to maxEntries cached entries, most frequently used first.
+     */
+    public List<CachedEnhet> getHottestEnheter(final int maxEntries) {
+        final List<EnhetItem> items;
+        synchronized(EnhetsregisterCache.enheterLock) {
+            items = new ArrayList<>(EnhetsregisterCache.enheter.values());
+            items.sort(Comparator.comparingLong((EnhetItem item) -> item.hits).reversed()
+                                 .thenComparing((EnhetItem item) -> item.lastAccessed, Comparator.reverseOrder()));
+        }
+
+        final List<CachedEnhet> hottest = new ArrayList<>();
+        for (EnhetItem item : items.subList(0, Math.min(maxEntries, items.size()))) {
+            hottest.add(new CachedEnhet(item));
+        }
+        return hottest;
+    }
+
+    /**
+     * Adds an entry loaded from a warm-start file. Never replaces an entry that has already been fetched live.
+     */
+    public boolean restoreEnhet(final Enhet enhet, final LocalDateTime fetched) {
+        if (enhet==null || enhet.getOrganisasjonsnummer()==null || fetched==null) {
+            return false;
+        }
+
+        synchronized(EnhetsregisterCache.enheterLock) {
+            if (EnhetsregisterCache.enheter.containsKey(enhet.getOrganisasjonsnummer())) {
+                return false;
+            }
+            cacheEnhet(enhet, fetched, true);
+        }
+        return true;
+    }
+
+    public List<String> getRestoredOrgnos() {
+        final List<String> orgnos = new ArrayList<>();
+        synchronized(EnhetsregisterCache.enheterLock) {
+            for (Map.Entry<String,EnhetItem> entry : EnhetsregisterCache.enheter.entrySet()) {
+                if (entry.getValue().restored) {
+                    orgnos.add(entry.getKey());
+                }
+            }
+        }
+        return orgnos;
+    }
+
+    /**
+     * Fetches a cached entry again from Enhetsregisteret, without holding the cache lock during the HTTP call.
+     * The cached entry is kept as-is if the lookup fails.
+     */
+    public boolean revalidate(final String orgno) {
+        try {
+            return cacheEnhet(enhetsregisteret.call(() -> fetchEnhetOrUnderenhet(orgno))) != null;
+        } catch (GuardedDependency.UnavailableException e) {
+            LOGGER.info("Could not revalidate " + orgno + ": " + e.getMessage());
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,75 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Java Flight Recorder events for the hot paths of DC and DP exchanges. They cost next to nothing unless
+ * a recording is running (see FlightRecorderHandler), and show up under "TOOP" in JDK Mission Control.
+ */
+public final class FlightRecorderEvents {
+    private static final String CATEGORY = "TOOP";
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * One stage of a traced exchange (EDM build/serialize, AS4 send, waiting for the remote DP, ...),
+     * emitted by FlightRecorderSpanProcessor when a RequestTracer span is closed.
+     */
+    @Name("no.brreg.toop.Stage")
+    @Label("Exchange Stage")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class StageEvent extends Event {
+        @Label("Kind")
+        @Description("dc or dp")
+        public String kind;
+
+        @Label("Stage")
+        public String stage;
+
+        @Label("Request ID")
+        public String requestId;
+
+        @Label("Country")
+        public String country;
+
+        @Label("Orgno")
+        public String orgno;
+    }
+
+    @Name("no.brreg.toop.EnhetLookup")
+    @Label("Enhet Lookup")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class EnhetLookupEvent extends Event {
+        @Label("Orgno")
+        public String orgno;
+
+        @Label("Result")
+        @Description("hit, fetched, not_found, stale or unavailable")
+        public String result;
+    }
+
+    @Name("no.brreg.toop.SmpLookup")
+    @Label("SMP Lookup")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static class SmpLookupEvent extends Event {
+        @Label("Receiver")
+        public String receiver;
+
+        @Label("Result")
+        @Description("hit, fetched, stale or unavailable")
+        public String result;
+    }
+
+}
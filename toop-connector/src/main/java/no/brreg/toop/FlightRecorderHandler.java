@@ -0,0 +1,237 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Controls a continuous Flight Recorder recording, so latency incidents can be analyzed after the fact
+ * without attaching tools to the pod. The recording uses the JDK "default" settings (about 1% overhead)
+ * plus the FlightRecorderEvents, keeps the last maxAge of data in a bounded disk repository, and is
+ * dumped to a .jfr file in toop.jfr.directory on request. Only the newest toop.jfr.max-dumps dumps are kept.
+ */
+@Component
+public class FlightRecorderHandler {
+    private static final String RECORDING_NAME = "toop-continuous";
+    private static final DateTimeFormatter DUMP_FILE_FORMATTER = DateTimeFormatter.ofPattern("uuuuMMdd-HHmmss");
+    private static final String DUMP_FILE_PREFIX = "toop-";
+    private static final String DUMP_FILE_SUFFIX = ".jfr";
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(30);
+    public static final long DEFAULT_MAX_SIZE_MB = 250;
+    public static final Duration MAX_MAX_AGE = Duration.ofHours(24);
+    public static final long MAX_MAX_SIZE_MB = 1024;
+
+    @Value("${toop.jfr.directory:${java.io.tmpdir}}")
+    private String dumpDirectory;
+
+    @Value("${toop.jfr.start-on-startup:false}")
+    private boolean startOnStartup;
+
+    @Value("${toop.jfr.max-dumps:5}")
+    private int maxDumps;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    public static final class Status {
+        private final String state;
+        private final OffsetDateTime started;
+        private final Duration maxAge;
+        private final long maxSizeMb;
+        private final String dumpFile;
+
+        private Status(final String state, final OffsetDateTime started, final Duration maxAge, final long maxSizeMb, final String dumpFile) {
+            this.state = state;
+            this.started = started;
+            this.maxAge = maxAge;
+            this.maxSizeMb = maxSizeMb;
+            this.dumpFile = dumpFile;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public OffsetDateTime getStarted() {
+            return started;
+        }
+
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+
+        public long getMaxSizeMb() {
+            return maxSizeMb;
+        }
+
+        public String getDumpFile() {
+            return dumpFile;
+        }
+    }
+
+    private Recording recording = null;
+    private OffsetDateTime started = null;
+    private long maxSizeMb = 0;
+    private String lastDumpFile = null;
+    private final Object recordingLock = new Object();
+
+
+    @PostConstruct
+    public void initialize() {
+        if (startOnStartup) {
+            try {
+                start(DEFAULT_MAX_AGE, DEFAULT_MAX_SIZE_MB);
+            } catch (IOException e) {
+                loggerHandler.log(LoggerHandler.Level.ERROR, "Failed to start Flight Recorder recording: " + e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stop();
+    }
+
+    /**
+     * Starts the continuous recording, or returns the status of the one already running.
+     * maxAge must be at most MAX_MAX_AGE, and maxSizeMb at most MAX_MAX_SIZE_MB.
+     */
+    public Status start(final Duration maxAge, final long maxSizeMb) throws IOException {
+        if (maxAge.isNegative() || maxAge.isZero() || maxAge.compareTo(MAX_MAX_AGE)>0) {
+            throw new IllegalArgumentException("maxAge must be between 1 minute and " + MAX_MAX_AGE.toHours() + " hours");
+        }
+        if (maxSizeMb<=0 || maxSizeMb>MAX_MAX_SIZE_MB) {
+            throw new IllegalArgumentException("maxSizeMb must be between 1 and " + MAX_MAX_SIZE_MB);
+        }
+
+        synchronized(recordingLock) {
+            if (recording!=null && recording.getState()==RecordingState.RUNNING) {
+                return getStatus();
+            }
+            closeRecording();
+
+            final Configuration configuration;
+            try {
+                configuration = Configuration.getConfiguration("default");
+            } catch (ParseException e) {
+                throw new IOException("Could not read Flight Recorder configuration: " + e.getMessage(), e);
+            }
+            recording = new Recording(configuration);
+            recording.setName(RECORDING_NAME);
+            recording.setToDisk(true);
+            recording.setMaxAge(maxAge);
+            recording.setMaxSize(maxSizeMb * 1024L * 1024L);
+            recording.enable(FlightRecorderEvents.StageEvent.class);
+            recording.enable(FlightRecorderEvents.EnhetLookupEvent.class);
+            recording.enable(FlightRecorderEvents.SmpLookupEvent.class);
+            recording.start();
+            started = OffsetDateTime.now();
+            this.maxSizeMb = maxSizeMb;
+            loggerHandler.log(LoggerHandler.Level.INFO, "Started Flight Recorder recording, keeping " + maxAge.toMinutes() + " minutes and at most " + maxSizeMb + " MB");
+            return getStatus();
+        }
+    }
+
+    public Status stop() {
+        synchronized(recordingLock) {
+            if (recording != null) {
+                closeRecording();
+                loggerHandler.log(LoggerHandler.Level.INFO, "Stopped Flight Recorder recording");
+            }
+            return getStatus();
+        }
+    }
+
+    /**
+     * Writes the data kept by the running recording to a new .jfr file, and deletes the oldest dumps beyond
+     * toop.jfr.max-dumps. Returns null if no recording is running.
+     */
+    public Status dump() throws IOException {
+        synchronized(recordingLock) {
+            if (recording==null || recording.getState()!=RecordingState.RUNNING) {
+                return null;
+            }
+
+            final Path directory = Paths.get(dumpDirectory);
+            Files.createDirectories(directory);
+            final Path dumpFile = directory.resolve(DUMP_FILE_PREFIX + LocalDateTime.now().format(DUMP_FILE_FORMATTER) + DUMP_FILE_SUFFIX);
+            recording.dump(dumpFile);
+            lastDumpFile = dumpFile.toString();
+            loggerHandler.log(LoggerHandler.Level.INFO, "Dumped Flight Recorder recording to " + lastDumpFile);
+
+            for (Path oldDump : deleteOldDumps(directory, maxDumps)) {
+                loggerHandler.log(LoggerHandler.Level.INFO, "Deleted old Flight Recorder dump " + oldDump);
+            }
+            return getStatus();
+        }
+    }
+
+    /**
+     * Deletes all but the newest maxDumps (at least 1) dump files in directory, and returns the deleted ones. The timestamp
+     * in the file names sorts in the order they were written.
+     */
+    static List<Path> deleteOldDumps(final Path directory, final int maxDumps) throws IOException {
+        final List<Path> dumps;
+        try (Stream<Path> files = Files.list(directory)) {
+            dumps = files.filter(file -> {
+                                final String name = file.getFileName().toString();
+                                return name.startsWith(DUMP_FILE_PREFIX) && name.endsWith(DUMP_FILE_SUFFIX) && Files.isRegularFile(file);
+                            })
+                         .sorted()
+                         .collect(Collectors.toList());
+        }
+        //Always keep the newest, which is the one just written
+        final int keep = Math.max(maxDumps, 1);
+        if (dumps.size() <= keep) {
+            return Collections.emptyList();
+        }
+
+        final List<Path> deleted = new ArrayList<>();
+        for (Path dump : dumps.subList(0, dumps.size()-keep)) {
+            Files.deleteIfExists(dump);
+            deleted.add(dump);
+        }
+        return deleted;
+    }
+
+    public Status getStatus() {
+        synchronized(recordingLock) {
+            if (recording == null) {
+                return new Status(RecordingState.CLOSED.name(), null, null, 0, lastDumpFile);
+            }
+            return new Status(recording.getState().name(), started, recording.getMaxAge(), maxSizeMb, lastDumpFile);
+        }
+    }
+
+    private void closeRecording() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+            started = null;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Emits every stage span of a RequestTracer trace as a Flight Recorder StageEvent while a recording is
+ * running. The root span of each trace is kept until it ends, so the events can carry its request ID,
+ * country and orgno.
+ */
+public class FlightRecorderSpanProcessor implements SpanProcessor {
+    private static final AttributeKey<String> COUNTRY = AttributeKey.stringKey("country");
+    private static final AttributeKey<String> ORGNO = AttributeKey.stringKey("orgno");
+
+    private final Map<String,ReadableSpan> rootSpans = new ConcurrentHashMap<>();
+    private final Map<String,FlightRecorderEvents.StageEvent> events = new ConcurrentHashMap<>();
+
+
+    @Override
+    public void onStart(final Context parentContext, final ReadWriteSpan span) {
+        if (!span.getParentSpanContext().isValid()) {
+            rootSpans.put(span.getSpanContext().getTraceId(), span);
+            return;
+        }
+
+        final FlightRecorderEvents.StageEvent event = new FlightRecorderEvents.StageEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            events.put(span.getSpanContext().getSpanId(), event);
+        }
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return true;
+    }
+
+    @Override
+    public void onEnd(final ReadableSpan span) {
+        final String traceId = span.getSpanContext().getTraceId();
+        if (!span.getParentSpanContext().isValid()) {
+            rootSpans.remove(traceId, span);
+            return;
+        }
+
+        final FlightRecorderEvents.StageEvent event = events.remove(span.getSpanContext().getSpanId());
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            final ReadableSpan rootSpan = rootSpans.get(traceId);
+            event.stage = span.getName();
+            if (rootSpan != null) {
+                event.kind = rootSpan.getAttribute(RequestTracer.KIND);
+                event.requestId = rootSpan.getAttribute(RequestTracer.REQUEST_ID);
+                event.country = rootSpan.getAttribute(COUNTRY);
+                event.orgno = rootSpan.getAttribute(ORGNO);
+            }
+            event.commit();
+        }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+}
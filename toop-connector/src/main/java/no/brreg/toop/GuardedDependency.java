@@ -0,0 +1,153 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Circuit breaker and bulkhead for calls to one remote dependency.
+ *
+ * The bulkhead limits the number of concurrent calls, so a slow dependency can only tie up that many
+ * threads. The circuit breaker opens after failureThreshold consecutive failures and then rejects calls
+ * immediately for openDuration, after which a single trial call decides whether it closes again.
+ * Rejected calls throw UnavailableException, and callers are expected to fall back to cached data, flagging
+ * it as stale to their own callers (STALE_WARNING on HTTP responses).
+ *
+ * The bulkhead is a semaphore taken on the caller's thread rather than a thread pool of its own. The callers
+ * already run on bounded pools (request threads, the DP enrichment executor with its deadline), every call
+ * has a socket timeout, and a full bulkhead rejects at once instead of queueing, so a separate pool would
+ * only add a thread hand-off per call.
+ */
+public class GuardedDependency {
+    /**
+     * Warning header value (RFC 7234) of responses served from data kept past its validity.
+     */
+    public static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    public static class UnavailableException extends Exception {
+        public UnavailableException(final String message) {
+            super(message);
+        }
+
+        public UnavailableException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Semaphore bulkhead;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean isTrialCallRunning = false;
+    private long rejectedCalls = 0;
+    private long failedCalls = 0;
+
+
+    public GuardedDependency(final String name, final int maxConcurrent, final int failureThreshold, final Duration openDuration) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.bulkhead = new Semaphore(maxConcurrent);
+    }
+
+    public static boolean isStaleWarning(final String warning) {
+        return warning!=null && warning.trim().startsWith("110 ");
+    }
+
+    public <T> T call(final Callable<T> callable) throws UnavailableException {
+        final boolean isTrialCall = acquireCircuit();
+        if (!bulkhead.tryAcquire()) {
+            releaseCircuit(isTrialCall);
+            throw reject(name + " has " + maxConcurrent + " calls in progress");
+        }
+
+        try {
+            final T result = callable.call();
+            onSuccess();
+            return result;
+        } catch (Exception e) {
+            onFailure(isTrialCall);
+            throw new UnavailableException(name + " call failed: " + e.getMessage(), e);
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    private synchronized boolean acquireCircuit() throws UnavailableException {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDuration.toNanos()) {
+                throw reject(name + " circuit is open");
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (isTrialCallRunning) {
+                throw reject(name + " circuit is half open");
+            }
+            isTrialCallRunning = true;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void releaseCircuit(final boolean isTrialCall) {
+        if (isTrialCall) {
+            isTrialCallRunning = false;
+        }
+    }
+
+    private synchronized UnavailableException reject(final String message) {
+        rejectedCalls++;
+        return new UnavailableException(message);
+    }
+
+    private synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        isTrialCallRunning = false;
+        state = State.CLOSED;
+    }
+
+    private synchronized void onFailure(final boolean isTrialCall) {
+        failedCalls++;
+        consecutiveFailures++;
+        if (isTrialCall) {
+            isTrialCallRunning = false;
+        }
+        if (isTrialCall || (state==State.CLOSED && consecutiveFailures>=failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public int getCallsInProgress() {
+        return maxConcurrent - bulkhead.availablePermits();
+    }
+
+    public synchronized long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    public synchronized long getFailedCalls() {
+        return failedCalls;
+    }
+
+}
@@ -0,0 +1,52 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+
+/**
+ * Estimates the number of distinct keys in 2^precision bytes, with a standard error of about
+ * 1.04/sqrt(2^precision) (1.6% for precision 12). Not thread safe.
+ */
+public class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+
+    public HyperLogLog(final int precision) {
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds the key with the given 64-bit hash.
+     */
+    public void add(final long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        final long remaining = (hash << precision) | (1L << (precision - 1)); //Guard bit bounds the rank
+        final byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    public long estimate() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double alpha = 0.7213 / (1 + 1.079 / m);
+        final double estimate = alpha * m * m / sum;
+
+        //Small range correction: linear counting is more accurate while many registers are empty
+        if (estimate <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+}
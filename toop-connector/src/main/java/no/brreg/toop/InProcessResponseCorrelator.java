@@ -0,0 +1,38 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+
+/**
+ * Correlator for a single connector node (toop.cluster.mode = single), where every response belongs to this node.
+ */
+@Component
+@ConditionalOnProperty(name = "toop.cluster.mode", havingValue = "single", matchIfMissing = true)
+public class InProcessResponseCorrelator implements ResponseCorrelator {
+
+    @Override
+    public String getNodeId() {
+        return "local";
+    }
+
+    @Override
+    public String createRequestId() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Override
+    public boolean isLocal(final String requestId) {
+        return true;
+    }
+
+    @Override
+    public boolean forward(final String requestId, final BrregIncomingHandler.ToopResponse response) {
+        return false;
+    }
+
+}
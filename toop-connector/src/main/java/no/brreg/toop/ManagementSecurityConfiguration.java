@@ -0,0 +1,37 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
+import org.springframework.boot.actuate.health.HealthEndpoint;
+import org.springframework.boot.actuate.metrics.MetricsEndpoint;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+
+
+/**
+ * Requires HTTP basic authentication as a user with the ADMIN role (spring.security.user.*) for the admin
+ * actuator endpoints, which change or reveal the state of the node. Health and metrics stay open for the
+ * probes and scraping, and nothing outside /actuator is affected.
+ */
+@Configuration
+public class ManagementSecurityConfiguration extends WebSecurityConfigurerAdapter {
+    public static final String ADMIN_ROLE = "ADMIN";
+
+
+    @Override
+    protected void configure(final HttpSecurity http) throws Exception {
+        http.requestMatcher(EndpointRequest.toAnyEndpoint())
+            .authorizeRequests()
+                .requestMatchers(EndpointRequest.to(HealthEndpoint.class, MetricsEndpoint.class)).permitAll()
+                .anyRequest().hasRole(ADMIN_ROLE)
+                .and()
+            .httpBasic()
+                .and()
+            .csrf().disable()
+            .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS);
+    }
+
+}
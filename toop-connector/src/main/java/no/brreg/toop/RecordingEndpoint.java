@@ -0,0 +1,88 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.RecordingStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+
+/**
+ * Controls the continuous Flight Recorder recording (/actuator/recording, admin only):
+ * GET for its state, POST (maxAgeMinutes, maxSizeMb) to start it, DELETE to stop it, and
+ * POST /actuator/recording/dump to write it to a .jfr file on the server.
+ */
+@Component
+@Endpoint(id = "recording")
+public class RecordingEndpoint {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecordingEndpoint.class);
+    private static final String DUMP_ACTION = "dump";
+
+    @Autowired
+    private FlightRecorderHandler flightRecorderHandler;
+
+
+    @ReadOperation
+    public RecordingStatus getRecording() {
+        return toRecordingStatus(flightRecorderHandler.getStatus());
+    }
+
+    @WriteOperation
+    public WebEndpointResponse<RecordingStatus> startRecording(@Nullable final Integer maxAgeMinutes, @Nullable final Integer maxSizeMb) {
+        try {
+            final FlightRecorderHandler.Status status = flightRecorderHandler.start(maxAgeMinutes==null ? FlightRecorderHandler.DEFAULT_MAX_AGE : Duration.ofMinutes(maxAgeMinutes),
+                                                                                    maxSizeMb==null ? FlightRecorderHandler.DEFAULT_MAX_SIZE_MB : maxSizeMb);
+            return new WebEndpointResponse<>(toRecordingStatus(status), WebEndpointResponse.STATUS_OK);
+        } catch (IllegalArgumentException e) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_BAD_REQUEST);
+        } catch (Exception e) {
+            LOGGER.error("startRecording failed: ", e);
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @DeleteOperation
+    public RecordingStatus stopRecording() {
+        return toRecordingStatus(flightRecorderHandler.stop());
+    }
+
+    @WriteOperation
+    public WebEndpointResponse<RecordingStatus> dumpRecording(@Selector final String action) {
+        if (!DUMP_ACTION.equals(action)) {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        try {
+            final FlightRecorderHandler.Status status = flightRecorderHandler.dump();
+            if (status == null) {
+                //No recording is running
+                return new WebEndpointResponse<>(HttpStatus.CONFLICT.value());
+            }
+            return new WebEndpointResponse<>(toRecordingStatus(status), WebEndpointResponse.STATUS_OK);
+        } catch (Exception e) {
+            LOGGER.error("dumpRecording failed: ", e);
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private RecordingStatus toRecordingStatus(final FlightRecorderHandler.Status status) {
+        return new RecordingStatus()
+                .state(status.getState())
+                .started(status.getStarted())
+                .maxAgeMinutes(status.getMaxAge()==null ? null : status.getMaxAge().toMinutes())
+                .maxSizeMb(status.getMaxSizeMb()>0 ? status.getMaxSizeMb() : null)
+                .dumpFile(status.getDumpFile());
+    }
+
+}
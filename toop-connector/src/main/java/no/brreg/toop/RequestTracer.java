@@ -0,0 +1,211 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.exporter.logging.LoggingSpanExporter;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SdkTracerProviderBuilder;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Records how long each stage of a DC or DP exchange takes (admission, SMP lookup, EDM building, AS4 send,
+ * waiting for the remote DP, response mapping, ...) as OpenTelemetry spans under one root span per exchange.
+ * A trace is correlated with its EDM request ID, so the response handlers can add their stages to the trace
+ * of the request.
+ *
+ * The spans go to a tracer provider of our own rather than the global one. Its SlowTraceProcessor logs
+ * finished traces, times their stages and keeps the most recent for /actuator/traces, and its
+ * FlightRecorderSpanProcessor emits the stages as Flight Recorder events. With toop.tracing.log-spans the
+ * raw spans are also written by the OpenTelemetry logging exporter.
+ */
+@Component
+public class RequestTracer {
+    static final String ATTRIBUTE_PREFIX = "toop.";
+    static final AttributeKey<String> KIND = AttributeKey.stringKey(ATTRIBUTE_PREFIX + "kind");
+    static final AttributeKey<String> REQUEST_ID = AttributeKey.stringKey(ATTRIBUTE_PREFIX + "request_id");
+    static final AttributeKey<String> STATUS = AttributeKey.stringKey(ATTRIBUTE_PREFIX + "status");
+    private static final int MAX_FINISHED_TRACES = 1000;
+
+    @Value("${toop.tracing.log-threshold-ms:5000}")
+    private long logThresholdMillis;
+
+    @Value("${toop.tracing.log-spans:false}")
+    private boolean isLoggingSpans;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private SdkTracerProvider tracerProvider;
+    private Tracer tracer;
+    private SlowTraceProcessor slowTraceProcessor;
+
+    public static class Span implements AutoCloseable {
+        private final io.opentelemetry.api.trace.Span span;
+        private final AtomicBoolean isEnded = new AtomicBoolean(false);
+
+        private Span(final io.opentelemetry.api.trace.Span span) {
+            this.span = span;
+        }
+
+        @Override
+        public void close() {
+            if (isEnded.compareAndSet(false, true)) {
+                span.end();
+            }
+        }
+    }
+
+    public static class Trace {
+        private final Tracer tracer;
+        private final io.opentelemetry.api.trace.Span rootSpan;
+        private final Context context;
+        private volatile String requestId;
+        private boolean isFinished = false;
+        private final List<Span> spans = new ArrayList<>();
+        private final Set<String> attributeNames = new HashSet<>();
+
+        private Trace(final Tracer tracer, final String kind) {
+            this.tracer = tracer;
+            this.rootSpan = tracer.spanBuilder(kind)
+                                  .setNoParent()
+                                  .setSpanKind("dp".equals(kind) ? SpanKind.SERVER : SpanKind.CLIENT)
+                                  .setAttribute(KIND, kind)
+                                  .startSpan();
+            this.context = Context.root().with(rootSpan);
+        }
+
+        public Span startSpan(final String name) {
+            final Span span = new Span(tracer.spanBuilder(name).setParent(context).startSpan());
+            synchronized(this) {
+                spans.add(span);
+            }
+            return span;
+        }
+
+        public synchronized void setAttribute(final String name, final String value) {
+            attributeNames.add(name);
+            rootSpan.setAttribute(name, value);
+        }
+
+        public synchronized boolean hasAttribute(final String name) {
+            return attributeNames.contains(name);
+        }
+
+        public void setRequestId(final String requestId) {
+            this.requestId = requestId;
+            rootSpan.setAttribute(REQUEST_ID, requestId);
+        }
+
+        /**
+         * Ends all spans still running, e.g. waiting for the remote DP when its response arrives.
+         */
+        public void closeOpenSpans() {
+            final List<Span> openSpans;
+            synchronized(this) {
+                openSpans = new ArrayList<>(spans);
+            }
+            for (Span span : openSpans) {
+                span.close();
+            }
+        }
+
+        public String getTraceId() {
+            return rootSpan.getSpanContext().getTraceId();
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+    }
+
+    private final Map<String,Trace> activeTraces = new ConcurrentHashMap<>();
+
+
+    @PostConstruct
+    public void initialize() {
+        slowTraceProcessor = new SlowTraceProcessor(MAX_FINISHED_TRACES, logThresholdMillis, meterRegistry);
+        final SdkTracerProviderBuilder builder = SdkTracerProvider.builder()
+                .setResource(Resource.getDefault().merge(Resource.create(Attributes.of(AttributeKey.stringKey("service.name"), "toop-connector"))))
+                .addSpanProcessor(slowTraceProcessor)
+                .addSpanProcessor(new FlightRecorderSpanProcessor());
+        if (isLoggingSpans) {
+            builder.addSpanProcessor(BatchSpanProcessor.builder(LoggingSpanExporter.create()).build());
+        }
+        tracerProvider = builder.build();
+        tracer = tracerProvider.get(RequestTracer.class.getName());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (tracerProvider != null) {
+            tracerProvider.shutdown().join(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public Trace startTrace(final String kind) {
+        return new Trace(tracer, kind);
+    }
+
+    /**
+     * Associates the trace with its EDM request ID, so the response handlers can find it.
+     */
+    public void bindRequestId(final Trace trace, final String requestId) {
+        trace.setRequestId(requestId);
+        activeTraces.put(requestId, trace);
+    }
+
+    /**
+     * Returns the unfinished trace of an EDM request ID, or null if there is none on this node.
+     */
+    public Trace getActiveTrace(final String requestId) {
+        return requestId==null ? null : activeTraces.get(requestId);
+    }
+
+    public void finish(final Trace trace, final String status) {
+        if (trace == null) {
+            return;
+        }
+        synchronized(trace) {
+            if (trace.isFinished) {
+                return;
+            }
+            trace.isFinished = true;
+        }
+        if (trace.requestId != null) {
+            activeTraces.remove(trace.requestId, trace);
+        }
+
+        //The stages must end before the root span, which hands the whole trace to SlowTraceProcessor
+        trace.closeOpenSpans();
+        if (status != null) {
+            trace.rootSpan.setAttribute(STATUS, status);
+        }
+        trace.rootSpan.end();
+    }
+
+    /**
+     * Returns up to limit of the most recent finished traces, slowest first. Kind may be null for all kinds.
+     */
+    public List<SlowTraceProcessor.FinishedTrace> getSlowestTraces(final String kind, final int limit) {
+        return slowTraceProcessor.getSlowestTraces(kind, limit);
+    }
+
+}
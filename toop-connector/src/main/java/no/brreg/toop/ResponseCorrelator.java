@@ -0,0 +1,24 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+
+/**
+ * Decides which connector node owns a pending DC request, so an AS4 response that is delivered to
+ * another node behind the load balancer can be handed over to the node that is waiting for it.
+ * Request IDs are created by the correlator, and identify the owning node themselves.
+ */
+public interface ResponseCorrelator {
+
+    String getNodeId();
+
+    String createRequestId();
+
+    boolean isLocal(String requestId);
+
+    /**
+     * Hands a response over to the node owning the request. Returns false if it could not be delivered.
+     */
+    boolean forward(String requestId, BrregIncomingHandler.ToopResponse response);
+
+}
@@ -0,0 +1,174 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import kong.unirest.HttpResponse;
+import kong.unirest.Unirest;
+import kong.unirest.UnirestException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+
+/**
+ * Answers the legal representative of an organization from the roles in Enhetsregisteret: the general
+ * manager, the chair of the board, the proprietor and the general partners. The roles are cached per
+ * orgno, independently of the Enhet cache.
+ */
+@Component
+public class RolleDataSource implements DpDataSource {
+    private static final String ROLLER_URL = "https://data.brreg.no/enhetsregisteret/api/enheter/%s/roller";
+    private static final Set<String> REPRESENTATIVE_ROLES = new LinkedHashSet<>(Arrays.asList("DAGL", "LEDE", "INNH", "KOMP", "DTPR", "DTSO"));
+    private static final int MAX_CACHE_ENTRIES = 1000;
+    private static final Duration CACHE_VALID_DURATION = Duration.ofHours(24);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Set<EToopConcept> SUPPORTED_CONCEPTS = Collections.unmodifiableSet(EnumSet.of(EToopConcept.HAS_LEGAL_REPRESENTATIVE));
+
+    private static class RollerItem {
+        private final List<String> representatives;
+        private final LocalDateTime fetched = LocalDateTime.now();
+
+        private RollerItem(final List<String> representatives) {
+            this.representatives = representatives;
+        }
+
+        private boolean isExpired() {
+            return fetched.plus(CACHE_VALID_DURATION).isBefore(LocalDateTime.now());
+        }
+    }
+
+    private final GuardedDependency roller = new GuardedDependency("enhetsregisteret-roller", 10, 5, Duration.ofSeconds(30));
+    private final Map<String,RollerItem> cache = new LinkedHashMap<String,RollerItem>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String,RollerItem> eldest) {
+            return size() > MAX_CACHE_ENTRIES;
+        }
+    };
+    private final Object cacheLock = new Object();
+
+
+    @Override
+    public String getName() {
+        return "roller";
+    }
+
+    @Override
+    public Set<EToopConcept> getSupportedConcepts() {
+        return SUPPORTED_CONCEPTS;
+    }
+
+    public GuardedDependency getDependency() {
+        return roller;
+    }
+
+    @Override
+    public Map<EToopConcept,ConceptPojo.Builder> getConcepts(final String orgno, final Set<EToopConcept> concepts) throws GuardedDependency.UnavailableException {
+        final List<String> representatives = getRepresentatives(orgno);
+        final Map<EToopConcept,ConceptPojo.Builder> result = new EnumMap<>(EToopConcept.class);
+        if (representatives.isEmpty()) {
+            return result;
+        }
+        for (EToopConcept concept : concepts) {
+            if (SUPPORTED_CONCEPTS.contains(concept)) {
+                result.put(concept, ConceptPojo.builder()
+                                               .name(concept)
+                                               .valueText(String.join("\n", representatives)));
+            }
+        }
+        return result;
+    }
+
+    private List<String> getRepresentatives(final String orgno) throws GuardedDependency.UnavailableException {
+        synchronized(cacheLock) {
+            final RollerItem item = cache.get(orgno);
+            if (item!=null && !item.isExpired()) {
+                return item.representatives;
+            }
+        }
+
+        //Fetch without holding the cache lock
+        final List<String> representatives = roller.call(() -> fetchRepresentatives(orgno));
+        synchronized(cacheLock) {
+            cache.put(orgno, new RollerItem(representatives));
+        }
+        return representatives;
+    }
+
+    /**
+     * Returns "Name (role)" of each current representative, empty if the orgno has none or is unknown (404 or 410).
+     * Throws for any other failed status.
+     */
+    private List<String> fetchRepresentatives(final String orgno) throws IOException {
+        final String url = String.format(ROLLER_URL, URLEncoder.encode(orgno, "utf-8"));
+        final JsonNode rollerNode;
+        try {
+            HttpResponse<String> rollerResponse = Unirest.get(url)
+                    .header("accept", "application/json")
+                    .asString();
+            //Only an unknown orgno is cached as having no representatives. Rate limiting and other failures throw,
+            //so they count against the circuit breaker and are asked again next time
+            if (!EnhetsregisterCache.isFound(rollerResponse.getStatus(), url)) {
+                return Collections.emptyList();
+            }
+            rollerNode = objectMapper.readTree(rollerResponse.getBody());
+        } catch (UnirestException e) {
+            throw new IOException("Got exception when HTTP GET " + url + ", :" + e.getMessage(), e);
+        }
+
+        final List<String> representatives = new ArrayList<>();
+        for (JsonNode rollegruppe : rollerNode.path("rollegrupper")) {
+            for (JsonNode rolle : rollegruppe.path("roller")) {
+                if (!REPRESENTATIVE_ROLES.contains(rolle.path("type").path("kode").asText()) ||
+                    rolle.path("fratraadt").asBoolean(false) ||
+                    rolle.path("person").path("erDoed").asBoolean(false)) {
+                    continue;
+                }
+                final String name = getName(rolle);
+                if (name != null) {
+                    representatives.add(name + " (" + rolle.path("type").path("beskrivelse").asText(rolle.path("type").path("kode").asText()) + ")");
+                }
+            }
+        }
+        return representatives;
+    }
+
+    private static String getName(final JsonNode rolle) {
+        final JsonNode navn = rolle.path("person").path("navn");
+        if (!navn.isMissingNode()) {
+            final StringBuilder sb = new StringBuilder();
+            for (String part : new String[] {"fornavn", "mellomnavn", "etternavn"}) {
+                final String value = navn.path(part).asText("");
+                if (!value.isEmpty()) {
+                    if (sb.length()>0) {
+                        sb.append(' ');
+                    }
+                    sb.append(value);
+                }
+            }
+            return sb.length()==0 ? null : sb.toString();
+        }
+
+        //A role held by another organization
+        final JsonNode enhetNavn = rolle.path("enhet").path("navn");
+        if (enhetNavn.isArray() && enhetNavn.size()>0) {
+            final StringBuilder sb = new StringBuilder();
+            for (JsonNode line : enhetNavn) {
+                if (sb.length()>0) {
+                    sb.append(' ');
+                }
+                sb.append(line.asText());
+            }
+            return sb.toString();
+        }
+        return null;
+    }
+
+}
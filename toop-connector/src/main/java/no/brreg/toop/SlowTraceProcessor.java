@@ -0,0 +1,225 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Collects the spans of each trace started by RequestTracer, and turns the trace into a FinishedTrace when
+ * its root span ends: the stages are timed in the toop.trace.stage metric, the trace is logged (at INFO
+ * when slower than the log threshold), and the most recent maxFinishedTraces are kept for /actuator/traces.
+ */
+public class SlowTraceProcessor implements SpanProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowTraceProcessor.class);
+    //Stages of traces whose root span never ends (e.g. a span closed after finish) are dropped oldest first
+    private static final int MAX_PENDING_TRACES = 10000;
+
+    private final int maxFinishedTraces;
+    private final long logThresholdMillis;
+    private final MeterRegistry meterRegistry;
+
+    public static class Stage {
+        private final String name;
+        private final long startOffsetMillis;
+        private final long durationMillis;
+
+        private Stage(final SpanData span, final long traceStartEpochNanos) {
+            this.name = span.getName();
+            this.startOffsetMillis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, span.getStartEpochNanos() - traceStartEpochNanos));
+            this.durationMillis = TimeUnit.NANOSECONDS.toMillis(getDurationNanos(span));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartOffsetMillis() {
+            return startOffsetMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+
+    public static class FinishedTrace {
+        private final String traceId;
+        private final String requestId;
+        private final String kind;
+        private final String status;
+        private final OffsetDateTime started;
+        private final long durationMillis;
+        private final Map<String,String> attributes = new LinkedHashMap<>();
+        private final List<Stage> stages = new ArrayList<>();
+
+        private FinishedTrace(final SpanData root, final List<SpanData> spans) {
+            this.traceId = root.getTraceId();
+            this.requestId = root.getAttributes().get(RequestTracer.REQUEST_ID);
+            this.kind = root.getAttributes().get(RequestTracer.KIND);
+            this.status = root.getAttributes().get(RequestTracer.STATUS);
+            this.started = OffsetDateTime.ofInstant(Instant.ofEpochSecond(0, root.getStartEpochNanos()), ZoneId.systemDefault());
+            this.durationMillis = TimeUnit.NANOSECONDS.toMillis(getDurationNanos(root));
+            root.getAttributes().forEach((key, value) -> {
+                if (!key.getKey().startsWith(RequestTracer.ATTRIBUTE_PREFIX)) {
+                    attributes.put(key.getKey(), String.valueOf(value));
+                }
+            });
+            for (SpanData span : spans) {
+                stages.add(new Stage(span, root.getStartEpochNanos()));
+            }
+            stages.sort(Comparator.comparingLong(Stage::getStartOffsetMillis));
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public OffsetDateTime getStarted() {
+            return started;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public Map<String,String> getAttributes() {
+            return Collections.unmodifiableMap(attributes);
+        }
+
+        public List<Stage> getStages() {
+            return Collections.unmodifiableList(stages);
+        }
+    }
+
+    private final Map<String,List<SpanData>> pendingSpans = new LinkedHashMap<String,List<SpanData>>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String,List<SpanData>> eldest) {
+            return size() > MAX_PENDING_TRACES;
+        }
+    };
+    private final Object pendingSpansLock = new Object();
+    private final Deque<FinishedTrace> finishedTraces = new ArrayDeque<>();
+    private final Object finishedTracesLock = new Object();
+
+
+    public SlowTraceProcessor(final int maxFinishedTraces, final long logThresholdMillis, final MeterRegistry meterRegistry) {
+        this.maxFinishedTraces = maxFinishedTraces;
+        this.logThresholdMillis = logThresholdMillis;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void onStart(final Context parentContext, final ReadWriteSpan span) {
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return false;
+    }
+
+    @Override
+    public void onEnd(final ReadableSpan span) {
+        final SpanData spanData = span.toSpanData();
+        final String traceId = spanData.getTraceId();
+        if (spanData.getParentSpanContext().isValid()) {
+            synchronized(pendingSpansLock) {
+                pendingSpans.computeIfAbsent(traceId, id -> new ArrayList<>()).add(spanData);
+            }
+            return;
+        }
+
+        final List<SpanData> spans;
+        synchronized(pendingSpansLock) {
+            spans = pendingSpans.remove(traceId);
+        }
+        if (spanData.getAttributes().get(RequestTracer.KIND) == null) {
+            return;
+        }
+        final FinishedTrace trace = new FinishedTrace(spanData, spans==null ? Collections.emptyList() : spans);
+
+        synchronized(finishedTracesLock) {
+            while (finishedTraces.size() >= maxFinishedTraces) {
+                finishedTraces.removeFirst();
+            }
+            finishedTraces.addLast(trace);
+        }
+
+        if (spans != null) {
+            for (SpanData stage : spans) {
+                meterRegistry.timer("toop.trace.stage", "kind", trace.kind, "stage", stage.getName())
+                             .record(getDurationNanos(stage), TimeUnit.NANOSECONDS);
+            }
+        }
+        if (trace.durationMillis >= logThresholdMillis) {
+            LOGGER.info("Slow trace: {}", format(trace));
+        } else if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Trace: {}", format(trace));
+        }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return true;
+    }
+
+    /**
+     * Returns up to limit of the most recent finished traces, slowest first. Kind may be null for all kinds.
+     */
+    public List<FinishedTrace> getSlowestTraces(final String kind, final int limit) {
+        final List<FinishedTrace> traces = new ArrayList<>();
+        synchronized(finishedTracesLock) {
+            for (FinishedTrace trace : finishedTraces) {
+                if (kind==null || kind.equalsIgnoreCase(trace.kind)) {
+                    traces.add(trace);
+                }
+            }
+        }
+        traces.sort(Comparator.comparingLong(FinishedTrace::getDurationMillis).reversed());
+        return traces.subList(0, Math.min(Math.max(0, limit), traces.size()));
+    }
+
+    private static long getDurationNanos(final SpanData span) {
+        return Math.max(0, span.getEndEpochNanos() - span.getStartEpochNanos());
+    }
+
+    private static String format(final FinishedTrace trace) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(trace.kind).append(' ').append(trace.requestId!=null ? trace.requestId : trace.traceId)
+          .append(" status=").append(trace.status)
+          .append(" total=").append(trace.durationMillis).append("ms");
+        for (Stage stage : trace.stages) {
+            sb.append(' ').append(stage.name).append('=').append(stage.durationMillis).append("ms");
+        }
+        for (Map.Entry<String,String> attribute : trace.attributes.entrySet()) {
+            sb.append(' ').append(attribute.getKey()).append('=').append(attribute.getValue());
+        }
+        return sb.toString();
+    }
+
+}
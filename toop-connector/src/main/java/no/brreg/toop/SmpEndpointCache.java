@@ -0,0 +1,340 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.dns.dnsjava.DnsjavaInit;
+import com.helger.dns.ip.IPV4Addr;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+import com.helger.xsds.bdxr.smp1.EndpointType;
+import eu.toop.connector.app.api.TCAPIHelper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+
+@Component
+public class SmpEndpointCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SmpEndpointCache.class);
+    private static final Duration CACHE_VALID_DURATION = Duration.ofHours(1);
+    private static final InetAddress[] dnsServers = {IPV4Addr.getAsInetAddress (1, 1, 1, 1),
+                                                     IPV4Addr.getAsInetAddress (8, 8, 8, 8),
+                                                     IPV4Addr.getAsInetAddress (1, 0, 0, 1),
+                                                     IPV4Addr.getAsInetAddress (8, 8, 4, 4)};
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    public static final class SmpEndpoint {
+        private final String receiverScheme;
+        private final String receiverValue;
+        private final String docTypeScheme;
+        private final String docTypeValue;
+        private final String processScheme;
+        private final String processValue;
+        private final String transportProfile;
+        private final String endpointUri;
+        private final byte[] certificateBytes;
+        private final X509Certificate certificate;
+        private final LocalDateTime fetched;
+        private final boolean restored;
+
+        public SmpEndpoint(final String receiverScheme, final String receiverValue,
+                           final String docTypeScheme, final String docTypeValue,
+                           final String processScheme, final String processValue,
+                           final String transportProfile, final String endpointUri,
+                           final byte[] certificateBytes, final X509Certificate certificate,
+                           final LocalDateTime fetched, final boolean restored) {
+            this.receiverScheme = receiverScheme;
+            this.receiverValue = receiverValue;
+            this.docTypeScheme = docTypeScheme;
+            this.docTypeValue = docTypeValue;
+            this.processScheme = processScheme;
+            this.processValue = processValue;
+            this.transportProfile = transportProfile;
+            this.endpointUri = endpointUri;
+            this.certificateBytes = certificateBytes;
+            this.certificate = certificate;
+            this.fetched = fetched;
+            this.restored = restored;
+        }
+
+        public String getReceiverScheme() {
+            return receiverScheme;
+        }
+
+        public String getReceiverValue() {
+            return receiverValue;
+        }
+
+        public String getDocTypeScheme() {
+            return docTypeScheme;
+        }
+
+        public String getDocTypeValue() {
+            return docTypeValue;
+        }
+
+        public String getProcessScheme() {
+            return processScheme;
+        }
+
+        public String getProcessValue() {
+            return processValue;
+        }
+
+        public String getTransportProfile() {
+            return transportProfile;
+        }
+
+        public String getEndpointUri() {
+            return endpointUri;
+        }
+
+        public byte[] getCertificateBytes() {
+            return certificateBytes;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public LocalDateTime getFetched() {
+            return fetched;
+        }
+
+        public boolean isRestored() {
+            return restored;
+        }
+
+        public boolean isExpired() {
+            return fetched.plus(CACHE_VALID_DURATION).isBefore(LocalDateTime.now());
+        }
+
+        private String getKey() {
+            return SmpEndpointCache.getKey(receiverScheme, receiverValue, docTypeScheme, docTypeValue, processScheme, processValue, transportProfile);
+        }
+    }
+
+    private final Map<String,SmpEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String,GuardedDependency> dependencies = new ConcurrentHashMap<>();
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    private final ExecutorService revalidateExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "smp-revalidate");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    @PreDestroy
+    public void shutdown() {
+        revalidateExecutor.shutdownNow();
+    }
+
+
+    private static String getKey(final String receiverScheme, final String receiverValue,
+                                 final String docTypeScheme, final String docTypeValue,
+                                 final String processScheme, final String processValue,
+                                 final String transportProfile) {
+        return receiverScheme+"::"+receiverValue+"|"+docTypeScheme+"::"+docTypeValue+"|"+processScheme+"::"+processValue+"|"+transportProfile;
+    }
+
+    public SmpEndpoint getEndpoint(final IDocumentTypeIdentifier docTypeIdentifier, final IProcessIdentifier processIdentifier,
+                                   final IParticipantIdentifier receiverId, final String transportProfile) {
+        final String key = getKey(receiverId.getScheme(), receiverId.getValue(),
+                                  docTypeIdentifier.getScheme(), docTypeIdentifier.getValue(),
+                                  processIdentifier.getScheme(), processIdentifier.getValue(),
+                                  transportProfile);
+        final FlightRecorderEvents.SmpLookupEvent event = new FlightRecorderEvents.SmpLookupEvent();
+        event.begin();
+        final SmpEndpoint cached = endpoints.get(key);
+        if (cached!=null && cached.isRestored()) {
+            //Serve the warm-start endpoint at once, whatever its age, and look it up again off the request path
+            revalidateInBackground(cached);
+            commit(event, receiverId, "restored");
+            return cached;
+        }
+        if (cached!=null && !cached.isExpired()) {
+            commit(event, receiverId, "hit");
+            return cached;
+        }
+
+        try {
+            final SmpEndpoint fetched = getDependency(receiverId).call(() -> lookupEndpoint(docTypeIdentifier, processIdentifier, receiverId, transportProfile));
+            endpoints.put(key, fetched);
+            commit(event, receiverId, "fetched");
+            return fetched;
+        } catch (GuardedDependency.UnavailableException e) {
+            if (cached == null) {
+                loggerHandler.log(LoggerHandler.Level.ERROR, e.getMessage());
+                commit(event, receiverId, "unavailable");
+                return null;
+            }
+            loggerHandler.log(LoggerHandler.Level.INFO, e.getMessage()+". Using stale endpoint cached "+cached.getFetched());
+            meterRegistry.counter("toop.dependency.stale", "dependency", "smp").increment();
+            commit(event, receiverId, "stale");
+            return cached;
+        }
+    }
+
+    private static void commit(final FlightRecorderEvents.SmpLookupEvent event, final IParticipantIdentifier receiverId, final String result) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.receiver = receiverId.getScheme()+"::"+receiverId.getValue();
+            event.result = result;
+            event.commit();
+        }
+    }
+
+    /**
+     * Each receiver gets its own circuit breaker, so one unreachable SMP doesn't stop lookups for the others.
+     */
+    private GuardedDependency getDependency(final IParticipantIdentifier receiverId) {
+        return dependencies.computeIfAbsent(receiverId.getValue(), receiver -> new GuardedDependency("smp:"+receiver, 4, 3, Duration.ofMinutes(1)));
+    }
+
+    public List<GuardedDependency> getDependencies() {
+        return new ArrayList<>(dependencies.values());
+    }
+
+    private SmpEndpoint lookupEndpoint(final IDocumentTypeIdentifier docTypeIdentifier, final IProcessIdentifier processIdentifier,
+                                       final IParticipantIdentifier receiverId, final String transportProfile) throws IOException {
+        //Query for SMP Endpoint
+        EndpointType endpointType = null;
+        for (InetAddress dnsServer : dnsServers) {
+            try {
+                DnsjavaInit.initWithCustomDNSServers(new CommonsArrayList<>(dnsServer));
+                endpointType = TCAPIHelper.querySMPEndpoint(receiverId, docTypeIdentifier, processIdentifier, transportProfile);
+                break; //We have got a response. Break out of for-loop
+            } catch (Exception e) {
+                loggerHandler.log(LoggerHandler.Level.INFO, "Resolve using "+dnsServer.toString()+" failed: " + e.getMessage());
+            }
+        }
+
+        //Did we find an endpoint?
+        if (endpointType == null) {
+            throw new IOException("SME lookup failed for "+receiverId.getValue());
+        }
+
+        final SmpEndpoint endpoint = createEndpoint(receiverId.getScheme(), receiverId.getValue(),
+                                                    docTypeIdentifier.getScheme(), docTypeIdentifier.getValue(),
+                                                    processIdentifier.getScheme(), processIdentifier.getValue(),
+                                                    transportProfile, endpointType.getEndpointURI(), endpointType.getCertificate(),
+                                                    LocalDateTime.now(), false);
+        if (endpoint == null) {
+            throw new IOException("SME lookup for "+receiverId.getValue()+" returned no usable endpoint");
+        }
+        return endpoint;
+    }
+
+    private SmpEndpoint createEndpoint(final String receiverScheme, final String receiverValue,
+                                       final String docTypeScheme, final String docTypeValue,
+                                       final String processScheme, final String processValue,
+                                       final String transportProfile, final String endpointUri,
+                                       final byte[] certificateBytes, final LocalDateTime fetched, final boolean restored) {
+        if (endpointUri==null || certificateBytes==null) {
+            return null;
+        }
+
+        //Create x509Certificate, we only have byte[]
+        final X509Certificate certificate;
+        try (InputStream is = new ByteArrayInputStream(certificateBytes)){
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            certificate = (X509Certificate) certificateFactory.generateCertificate(is);
+        } catch (CertificateException | IOException e) {
+            loggerHandler.log(LoggerHandler.Level.ERROR, "Failed to get CertificateFactory instance: " + e.getMessage());
+            return null;
+        }
+
+        return new SmpEndpoint(receiverScheme, receiverValue, docTypeScheme, docTypeValue, processScheme, processValue,
+                               transportProfile, endpointUri, certificateBytes, certificate, fetched, restored);
+    }
+
+    public List<SmpEndpoint> getEndpoints() {
+        return new ArrayList<>(endpoints.values());
+    }
+
+    /**
+     * Adds an endpoint loaded from a warm-start file. It is served, whatever its age, until a revalidation replaces
+     * it. The first use queues one, in case CacheSnapshotHandler hasn't got to it yet. Never replaces a live lookup.
+     */
+    public boolean restore(final String receiverScheme, final String receiverValue,
+                           final String docTypeScheme, final String docTypeValue,
+                           final String processScheme, final String processValue,
+                           final String transportProfile, final String endpointUri,
+                           final byte[] certificateBytes, final LocalDateTime fetched) {
+        if (fetched == null) {
+            return false;
+        }
+        final SmpEndpoint endpoint = createEndpoint(receiverScheme, receiverValue, docTypeScheme, docTypeValue, processScheme, processValue,
+                                                    transportProfile, endpointUri, certificateBytes, fetched, true);
+        return endpoint!=null && endpoints.putIfAbsent(endpoint.getKey(), endpoint)==null;
+    }
+
+    /**
+     * Queues a revalidation of the endpoint, unless one is already queued or running.
+     */
+    private void revalidateInBackground(final SmpEndpoint endpoint) {
+        final String key = endpoint.getKey();
+        if (!revalidating.add(key)) {
+            return;
+        }
+        try {
+            revalidateExecutor.execute(() -> {
+                try {
+                    revalidate(endpoint);
+                } finally {
+                    revalidating.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(key);
+        }
+    }
+
+    /**
+     * Repeats the SMP lookup for a cached endpoint and replaces it if the lookup succeeds.
+     */
+    public boolean revalidate(final SmpEndpoint endpoint) {
+        final IParticipantIdentifier receiverId = SimpleIdentifierFactory.INSTANCE.createParticipantIdentifier(endpoint.getReceiverScheme(), endpoint.getReceiverValue());
+        try {
+            final SmpEndpoint fetched = getDependency(receiverId).call(() -> lookupEndpoint(SimpleIdentifierFactory.INSTANCE.createDocumentTypeIdentifier(endpoint.getDocTypeScheme(), endpoint.getDocTypeValue()),
+                                                                                             SimpleIdentifierFactory.INSTANCE.createProcessIdentifier(endpoint.getProcessScheme(), endpoint.getProcessValue()),
+                                                                                             receiverId, endpoint.getTransportProfile()));
+            endpoints.put(fetched.getKey(), fetched);
+            return true;
+        } catch (GuardedDependency.UnavailableException e) {
+            LOGGER.info("Could not revalidate SMP endpoint: " + e.getMessage());
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Readiness probe contribution (/actuator/health/readiness) that stays OUT_OF_SERVICE until the
+ * toop connector is initialized, the EDM writers are warmed up and the country table is usable,
+ * either fetched from the directory or restored from a warm-start snapshot. Also records how long the
+ * pod took to get there and to serve its first query, so cold and snapshot-warmed starts can be compared.
+ */
+@Component("startup")
+public class StartupReadinessIndicator implements HealthIndicator {
+    @Autowired
+    private CountryCodeCache countryCodeCache;
+
+    @Autowired
+    private CacheSnapshotHandler cacheSnapshotHandler;
+
+    @Autowired
+    private EdmSerializer edmSerializer;
+
+    @Autowired
+    private LoggerHandler loggerHandler;
+
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private volatile boolean toopConnectorInitialized = false;
+    private volatile long readyMillis = -1;
+    private volatile long firstQueryMillis = -1;
+    private final AtomicBoolean isReady = new AtomicBoolean(false);
+    private final AtomicBoolean hasServedQuery = new AtomicBoolean(false);
+
+
+    public void markToopConnectorInitialized() {
+        toopConnectorInitialized = true;
+        loggerHandler.log(LoggerHandler.Level.INFO, "Toop connector initialized after " + millisSinceStart() + " ms");
+        isReady();
+    }
+
+    public boolean isReady() {
+        if (isReady.get()) {
+            return true;
+        }
+        if (!toopConnectorInitialized || !edmSerializer.isWarmedUp() || countryCodeCache.getCountryCode(BrregIncomingHandler.NORWEGIAN_COUNTRYCODE)==null) {
+            return false;
+        }
+        if (isReady.compareAndSet(false, true)) {
+            readyMillis = millisSinceStart();
+            loggerHandler.log(LoggerHandler.Level.INFO, "Ready for traffic after " + readyMillis + " ms (" + getStartType() + " start)");
+        }
+        return true;
+    }
+
+    public void markQueryServed() {
+        if (hasServedQuery.compareAndSet(false, true)) {
+            firstQueryMillis = millisSinceStart();
+            loggerHandler.log(LoggerHandler.Level.INFO, "First query served after " + firstQueryMillis + " ms (" + getStartType() + " start)");
+        }
+    }
+
+    @Override
+    public Health health() {
+        final CountryCodeCache.Snapshot countryCodes = countryCodeCache.getSnapshot();
+        final Health.Builder builder = isReady() ? Health.up() : Health.outOfService();
+        builder.withDetail("toopConnectorInitialized", toopConnectorInitialized)
+               .withDetail("edmWarmedUp", edmSerializer.isWarmedUp())
+               .withDetail("countryCodes", countryCodes.getCountryCodes().size())
+               .withDetail("countryCodesRestored", countryCodes.isRestored())
+               .withDetail("startType", getStartType());
+        if (readyMillis >= 0) {
+            builder.withDetail("readyMillis", readyMillis);
+        }
+        if (firstQueryMillis >= 0) {
+            builder.withDetail("firstQueryMillis", firstQueryMillis);
+        }
+        return builder.build();
+    }
+
+    private String getStartType() {
+        return cacheSnapshotHandler.isSnapshotRestored() ? "warm" : "cold";
+    }
+
+    private long millisSinceStart() {
+        return System.currentTimeMillis() - jvmStartMillis;
+    }
+
+}
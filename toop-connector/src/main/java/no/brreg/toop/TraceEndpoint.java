@@ -0,0 +1,54 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.RequestTrace;
+import no.brreg.toop.generated.model.RequestTraceStage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The slowest of the most recent DC and DP exchanges on this node, with the time spent in each stage
+ * (/actuator/traces, admin only). GET takes kind (dc or dp) and limit.
+ */
+@Component
+@Endpoint(id = "traces")
+public class TraceEndpoint {
+    private static final int DEFAULT_LIMIT = 20;
+
+    @Autowired
+    private RequestTracer requestTracer;
+
+
+    @ReadOperation
+    public List<RequestTrace> getSlowestTraces(@Nullable final String kind, @Nullable final Integer limit) {
+        final List<RequestTrace> traces = new ArrayList<>();
+        for (SlowTraceProcessor.FinishedTrace trace : requestTracer.getSlowestTraces(kind, limit==null ? DEFAULT_LIMIT : limit)) {
+            final List<RequestTraceStage> stages = new ArrayList<>();
+            for (SlowTraceProcessor.Stage stage : trace.getStages()) {
+                stages.add(new RequestTraceStage()
+                                .name(stage.getName())
+                                .startOffsetMillis(stage.getStartOffsetMillis())
+                                .durationMillis(stage.getDurationMillis()));
+            }
+            traces.add(new RequestTrace()
+                            .traceId(trace.getTraceId())
+                            .requestId(trace.getRequestId())
+                            .kind(trace.getKind())
+                            .started(trace.getStarted())
+                            .durationMillis(trace.getDurationMillis())
+                            .status(trace.getStatus())
+                            .attributes(trace.getAttributes())
+                            .stages(stages));
+        }
+        return traces;
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.TrafficDimension;
+import no.brreg.toop.generated.model.TrafficKey;
+import no.brreg.toop.generated.model.TrafficStatistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+
+/**
+ * Hot-key and distinct-key statistics of the DP and DC traffic on this node (/actuator/traffic, admin only):
+ * GET (window = current or previous, limit) for the hottest keys per dimension, and POST (limit) to end the
+ * current window now and return it.
+ */
+@Component
+@Endpoint(id = "traffic")
+public class TrafficEndpoint {
+    private static final int DEFAULT_LIMIT = 20;
+
+    @Autowired
+    private TrafficStatisticsHandler trafficStatisticsHandler;
+
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+
+    @ReadOperation
+    public WebEndpointResponse<TrafficStatistics> getTrafficStatistics(@Nullable final String window, @Nullable final Integer limit) {
+        final boolean previous;
+        if (window==null || TrafficStatistics.WindowEnum.CURRENT.getValue().equals(window)) {
+            previous = false;
+        } else if (TrafficStatistics.WindowEnum.PREVIOUS.getValue().equals(window)) {
+            previous = true;
+        } else {
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_BAD_REQUEST);
+        }
+
+        final TrafficStatisticsHandler.Statistics statistics = trafficStatisticsHandler.getStatistics(previous, limit==null ? DEFAULT_LIMIT : limit);
+        if (statistics == null) {
+            //No previous window yet
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+        }
+        return new WebEndpointResponse<>(toTrafficStatistics(statistics, previous), WebEndpointResponse.STATUS_OK);
+    }
+
+    @WriteOperation
+    public TrafficStatistics resetTrafficStatistics(@Nullable final Integer limit) {
+        return toTrafficStatistics(trafficStatisticsHandler.reset(limit==null ? DEFAULT_LIMIT : limit), true);
+    }
+
+    private TrafficStatistics toTrafficStatistics(final TrafficStatisticsHandler.Statistics statistics, final boolean previous) {
+        final TrafficStatistics trafficStatistics = new TrafficStatistics()
+                .window(previous ? TrafficStatistics.WindowEnum.PREVIOUS : TrafficStatistics.WindowEnum.CURRENT)
+                .started(statistics.getStarted())
+                .ended(statistics.getEnded())
+                .enhetCacheCapacity(enhetsregisterCache.getStatistics().getMaxSize());
+        for (TrafficStatisticsHandler.DimensionStatistics dimensionStatistics : statistics.getDimensions()) {
+            final TrafficDimension trafficDimension = new TrafficDimension()
+                    .name(dimensionStatistics.getDimension().getName())
+                    .total(dimensionStatistics.getTotal())
+                    .distinct(dimensionStatistics.getDistinct());
+            for (TrafficStatisticsHandler.KeyCount keyCount : dimensionStatistics.getTop()) {
+                trafficDimension.addTopItem(new TrafficKey().key(keyCount.getKey()).count(keyCount.getCount()));
+            }
+            trafficStatistics.addDimensionsItem(trafficDimension);
+        }
+        return trafficStatistics;
+    }
+
+}
@@ -0,0 +1,256 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+
+
+/**
+ * Approximate traffic shape per window: the hottest keys and the number of distinct keys of the orgnos
+ * and countries in DP and DC traffic. Each dimension keeps a count-min sketch with a bounded set of top-K
+ * candidates, and a HyperLogLog, so memory stays fixed (about 80 KB per dimension) whatever the traffic.
+ *
+ * Counts are kept for the current window (toop.traffic.window-minutes) and the one before it. A window is
+ * rotated when it has lasted its duration, or when it is reset.
+ */
+@Component
+public class TrafficStatisticsHandler {
+    private static final int SKETCH_WIDTH = 2048;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int HLL_PRECISION = 12;
+    private static final int TOP_K = 100;
+
+    public enum Dimension {
+        DP_ORGNO("dp.orgno"),
+        DP_SENDER("dp.sender"),
+        DC_ORGNO("dc.orgno"),
+        DC_DESTINATION("dc.destination");
+
+        private final String name;
+
+        Dimension(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @Value("${toop.traffic.window-minutes:60}")
+    private long windowMinutes;
+
+    public static final class KeyCount {
+        private final String key;
+        private final long count;
+
+        private KeyCount(final String key, final long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static final class DimensionStatistics {
+        private final Dimension dimension;
+        private final long total;
+        private final long distinct;
+        private final List<KeyCount> top;
+
+        private DimensionStatistics(final Dimension dimension, final long total, final long distinct, final List<KeyCount> top) {
+            this.dimension = dimension;
+            this.total = total;
+            this.distinct = distinct;
+            this.top = top;
+        }
+
+        public Dimension getDimension() {
+            return dimension;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Estimated number of distinct keys (about 1.6% standard error).
+         */
+        public long getDistinct() {
+            return distinct;
+        }
+
+        /**
+         * The most frequent keys, most frequent first. Counts are estimates that may overcount slightly.
+         */
+        public List<KeyCount> getTop() {
+            return top;
+        }
+    }
+
+    public static final class Statistics {
+        private final OffsetDateTime started;
+        private final OffsetDateTime ended;
+        private final List<DimensionStatistics> dimensions;
+
+        private Statistics(final OffsetDateTime started, final OffsetDateTime ended, final List<DimensionStatistics> dimensions) {
+            this.started = started;
+            this.ended = ended;
+            this.dimensions = dimensions;
+        }
+
+        public OffsetDateTime getStarted() {
+            return started;
+        }
+
+        /**
+         * Null for the current window.
+         */
+        public OffsetDateTime getEnded() {
+            return ended;
+        }
+
+        public List<DimensionStatistics> getDimensions() {
+            return dimensions;
+        }
+    }
+
+    private static class DimensionSketch {
+        private final CountMinSketch counts = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+        private final HyperLogLog distinct = new HyperLogLog(HLL_PRECISION);
+        private final Map<String,Long> candidates = new HashMap<>();
+        private long minCandidateCount = 0; //Avoids scanning the candidates for keys too infrequent to enter them
+        private long total = 0;
+
+        private void add(final String key, final long hash) {
+            final long count = counts.add(hash);
+            distinct.add(hash);
+            total++;
+
+            //Counts only grow, so minCandidateCount stays a lower bound of the least frequent candidate
+            if (candidates.containsKey(key) || candidates.size() < TOP_K) {
+                candidates.put(key, count);
+            } else if (count > minCandidateCount) {
+                String minKey = null;
+                long minCount = Long.MAX_VALUE;
+                for (Map.Entry<String,Long> entry : candidates.entrySet()) {
+                    if (entry.getValue() < minCount) {
+                        minKey = entry.getKey();
+                        minCount = entry.getValue();
+                    }
+                }
+                if (count > minCount) {
+                    candidates.remove(minKey);
+                    candidates.put(key, count);
+                    minCount = Collections.min(candidates.values());
+                }
+                minCandidateCount = minCount;
+            }
+        }
+
+        private DimensionStatistics getStatistics(final Dimension dimension, final int limit) {
+            final List<KeyCount> top = new ArrayList<>();
+            for (Map.Entry<String,Long> entry : candidates.entrySet()) {
+                top.add(new KeyCount(entry.getKey(), entry.getValue()));
+            }
+            top.sort(Comparator.comparingLong(KeyCount::getCount).reversed().thenComparing(KeyCount::getKey));
+            return new DimensionStatistics(dimension, total, distinct.estimate(), top.subList(0, Math.min(limit, top.size())));
+        }
+    }
+
+    private static class Window {
+        private final OffsetDateTime started = OffsetDateTime.now();
+        private OffsetDateTime ended = null;
+        private final Map<Dimension,DimensionSketch> sketches = new EnumMap<>(Dimension.class);
+
+        private Window() {
+            for (Dimension dimension : Dimension.values()) {
+                sketches.put(dimension, new DimensionSketch());
+            }
+        }
+    }
+
+    private Window currentWindow = new Window();
+    private Window previousWindow = null;
+    private final Object windowLock = new Object();
+
+
+    public void record(final Dimension dimension, final String key) {
+        if (dimension==null || key==null || key.isEmpty()) {
+            return;
+        }
+        final long hash = hash(key);
+        synchronized(windowLock) {
+            rotateIfExpired();
+            currentWindow.sketches.get(dimension).add(key, hash);
+        }
+    }
+
+    /**
+     * Returns the statistics of the current or the previous window, or null if there is no previous window yet.
+     */
+    public Statistics getStatistics(final boolean previous, final int limit) {
+        synchronized(windowLock) {
+            rotateIfExpired();
+            final Window window = previous ? previousWindow : currentWindow;
+            if (window == null) {
+                return null;
+            }
+            final List<DimensionStatistics> dimensions = new ArrayList<>();
+            for (Map.Entry<Dimension,DimensionSketch> entry : window.sketches.entrySet()) {
+                dimensions.add(entry.getValue().getStatistics(entry.getKey(), Math.max(0, limit)));
+            }
+            return new Statistics(window.started, window.ended, dimensions);
+        }
+    }
+
+    /**
+     * Ends the current window now and starts a new one. Returns the statistics of the window just ended.
+     */
+    public Statistics reset(final int limit) {
+        synchronized(windowLock) {
+            rotate();
+            return getStatistics(true, limit);
+        }
+    }
+
+    private void rotateIfExpired() {
+        if (windowMinutes > 0 && currentWindow.started.plus(Duration.ofMinutes(windowMinutes)).isBefore(OffsetDateTime.now())) {
+            rotate();
+        }
+    }
+
+    private void rotate() {
+        currentWindow.ended = OffsetDateTime.now();
+        previousWindow = currentWindow;
+        currentWindow = new Window();
+    }
+
+    private static long hash(final String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i=0; i<8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+}
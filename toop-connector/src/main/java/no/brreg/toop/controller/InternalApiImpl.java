@@ -0,0 +1,103 @@
+package no.brreg.toop.controller;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.BrregIncomingHandler;
+import no.brreg.toop.ClusterPeers;
+import no.brreg.toop.EnhetCachePartitioner;
+import no.brreg.toop.EnhetsregisterCache;
+import no.brreg.toop.GuardedDependency;
+import no.brreg.toop.generated.model.Enhet;
+import no.brreg.toop.generated.model.ForwardedResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+@Controller
+@RestControllerAdvice
+public class InternalApiImpl implements no.brreg.toop.generated.api.InternalApi {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InternalApiImpl.class);
+
+    @Autowired
+    private BrregIncomingHandler brregIncomingHandler;
+
+    @Autowired
+    private EnhetsregisterCache enhetsregisterCache;
+
+    @Autowired
+    private ClusterPeers clusterPeers;
+
+
+    @Override
+    public ResponseEntity<Void> forwardResponse(HttpServletRequest httpServletRequest, HttpServletResponse response, String requestId, ForwardedResponse forwardedResponse) {
+        try {
+            if (!isFromPeer(httpServletRequest)) {
+                return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+            }
+
+            HttpStatus status = forwardedResponse.getStatus()==null ? null : HttpStatus.resolve(forwardedResponse.getStatus());
+            final BrregIncomingHandler.ToopResponse toopResponse = new BrregIncomingHandler.ToopResponse(status==null ? HttpStatus.BAD_GATEWAY : status,
+                                                                                                         forwardedResponse.getErrorMessage());
+            toopResponse.setEnhet(forwardedResponse.getEnhet());
+            if (!brregIncomingHandler.completePendingRequest(requestId, toopResponse)) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        } catch (Exception e) {
+            LOGGER.error("forwardResponse failed: ", e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @Override
+    public ResponseEntity<Enhet> getPartitionedEnhet(HttpServletRequest httpServletRequest, HttpServletResponse response, String orgno, Boolean preload) {
+        try {
+            if (!isFromPeer(httpServletRequest)) {
+                return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+            }
+
+            if (Boolean.TRUE.equals(preload)) {
+                final EnhetsregisterCache.PreloadResult result = enhetsregisterCache.preloadLocalEnhet(orgno);
+                if (result == EnhetsregisterCache.PreloadResult.NOT_FOUND) {
+                    return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+                } else if (result == EnhetsregisterCache.PreloadResult.FAILED) {
+                    return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+                }
+                final HttpHeaders headers = new HttpHeaders();
+                headers.set(EnhetCachePartitioner.PRELOAD_RESULT_HEADER, result.name());
+                return new ResponseEntity<>(headers, HttpStatus.OK);
+            }
+
+            //Always answer from this node, even if our view of the owner differs from the caller's
+            final EnhetsregisterCache.Lookup lookup = enhetsregisterCache.lookupLocalEnhet(orgno);
+            if (lookup == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            final HttpHeaders headers = new HttpHeaders();
+            if (lookup.isStale()) {
+                headers.set(HttpHeaders.WARNING, GuardedDependency.STALE_WARNING);
+            }
+            return new ResponseEntity<>(lookup.getEnhet(), headers, HttpStatus.OK);
+        } catch (GuardedDependency.UnavailableException e) {
+            //Not a 404, so the caller doesn't take it for an unknown orgno
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        } catch (Exception e) {
+            LOGGER.error("getPartitionedEnhet failed: ", e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private boolean isFromPeer(final HttpServletRequest httpServletRequest) {
+        return clusterPeers.isClustered() && clusterPeers.isTrustedPeer(httpServletRequest.getHeader(ClusterPeers.SECRET_HEADER));
+    }
+
+}
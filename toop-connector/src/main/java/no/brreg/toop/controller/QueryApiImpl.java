@@ -2,30 +2,51 @@ package no.brreg.toop.controller;
 
 // This code is Public Domain. See LICENSE
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import no.brreg.toop.BatchQueryHandler;
 import no.brreg.toop.BrregIncomingHandler;
 import no.brreg.toop.CountryCodeCache;
-import no.brreg.toop.generated.model.CountryCode;
+import no.brreg.toop.DcResultCache;
+import no.brreg.toop.DcSendScheduler;
+import no.brreg.toop.GuardedDependency;
+import no.brreg.toop.StartupReadinessIndicator;
+import no.brreg.toop.generated.model.BatchQuery;
+import no.brreg.toop.generated.model.BatchQueryItem;
+import no.brreg.toop.generated.model.BatchQueryResult;
 import no.brreg.toop.generated.model.Enhet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 
 @Controller
 @RestControllerAdvice
 public class QueryApiImpl implements no.brreg.toop.generated.api.QueryApi {
     private static final Logger LOGGER = LoggerFactory.getLogger(QueryApiImpl.class);
+    private static final MediaType APPLICATION_NDJSON_UTF8 = new MediaType("application", "x-ndjson", StandardCharsets.UTF_8);
+    private static final MediaType TEXT_EVENT_STREAM_UTF8 = new MediaType(MediaType.TEXT_EVENT_STREAM, StandardCharsets.UTF_8);
+    private static final MediaType TEXT_PLAIN_UTF8 = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+    private static final Duration STREAM_TIMEOUT_MARGIN = Duration.ofSeconds(30);
 
     @Autowired
     private CountryCodeCache countryCodeCache;
@@ -33,26 +54,93 @@ public class QueryApiImpl implements no.brreg.toop.generated.api.QueryApi {
     @Autowired
     private BrregIncomingHandler brregIncomingHandler;
 
+    @Autowired
+    private BatchQueryHandler batchQueryHandler;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private StartupReadinessIndicator startupReadinessIndicator;
+
 
     @Override
-    public ResponseEntity<List<CountryCode>> getCountryCodes(HttpServletRequest httpServletRequest, HttpServletResponse response) {
+    public ResponseEntity<Resource> getCountryCodes(HttpServletRequest httpServletRequest, HttpServletResponse response) {
         try {
-            List<CountryCode> countryCodes = countryCodeCache.getCountryCodes();
-            if (countryCodes==null || countryCodes.isEmpty()) {
+            final CountryCodeCache.Snapshot snapshot = countryCodeCache.getSnapshot();
+            if (snapshot.isEmpty()) {
                 return new ResponseEntity<>(HttpStatus.NO_CONTENT);
-            } else {
-                return new ResponseEntity<>(countryCodes, HttpStatus.OK);
             }
+            startupReadinessIndicator.markQueryServed();
+
+            //The listing is rendered once per country table, and clients revalidate it with If-None-Match
+            final CountryCodeCache.Listing listing = snapshot.getListing();
+            final boolean isGzipped = acceptsGzip(httpServletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING));
+            final HttpHeaders staleHeaders = new HttpHeaders();
+            if (snapshot.isStale()) {
+                //The directory could not be reached to refresh the table
+                staleHeaders.set(HttpHeaders.WARNING, GuardedDependency.STALE_WARNING);
+            }
+            if (listing.matches(httpServletRequest.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .headers(staleHeaders)
+                        .eTag(listing.getETag(isGzipped))
+                        .cacheControl(CacheControl.noCache())
+                        .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                        .build();
+            }
+
+            final byte[] body = isGzipped ? listing.getGzippedJson() : listing.getJson();
+            final ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                    .headers(staleHeaders)
+                    .eTag(listing.getETag(isGzipped))
+                    .cacheControl(CacheControl.noCache())
+                    .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .contentLength(body.length);
+            if (isGzipped) {
+                builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+            return builder.body(new ByteArrayResource(body));
         } catch (Exception e) {
             LOGGER.error("getCountryCodes failed: ", e);
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                for (int i=1; i<parts.length; i++) {
+                    final String parameter = parts[i].replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
-    public ResponseEntity<Enhet> getByLegalPerson(HttpServletRequest httpServletRequest, HttpServletResponse response, String countrycode, String legalperson) {
+    public ResponseEntity<Enhet> getByLegalPerson(HttpServletRequest httpServletRequest, HttpServletResponse response, String countrycode, String legalperson, String cacheControl, String fields,
+                                                  String xPriority) {
         try {
-            final BrregIncomingHandler.ToopResponse toopResponse = brregIncomingHandler.getByIdentifier(countrycode, legalperson, new HashMap<>(), true);
+            final Map<String,Object> properties = new HashMap<>();
+            if (!addConcepts(properties, fields, response)) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+            final DcSendScheduler.Priority priority = parsePriority(xPriority, DcSendScheduler.Priority.INTERACTIVE, response);
+            if (priority == null) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+            final BrregIncomingHandler.ToopResponse toopResponse = brregIncomingHandler.getByIdentifier(countrycode, legalperson, properties, true,
+                                                                                                        DcResultCache.CacheControl.parse(cacheControl), priority);
             HttpStatus status = toopResponse==null ? HttpStatus.NOT_FOUND : toopResponse.getStatus();
             final String errorMessage = toopResponse==null ? null : toopResponse.getErrorMessage();
             if (status == HttpStatus.OK && toopResponse.getEnhet()==null) {
@@ -60,9 +148,13 @@ public class QueryApiImpl implements no.brreg.toop.generated.api.QueryApi {
             }
 
             if (status == HttpStatus.OK) {
+                startupReadinessIndicator.markQueryServed();
                 return new ResponseEntity<>(toopResponse.getEnhet(), HttpStatus.OK);
             } else {
                 LOGGER.info("Status: "+status.value());
+                if (status == HttpStatus.TOO_MANY_REQUESTS) {
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                }
                 if (errorMessage!=null && !errorMessage.isEmpty()) {
                     LOGGER.info("ErrorMsg: "+errorMessage);
                     response.sendError(status.value(), errorMessage);
@@ -77,19 +169,19 @@ public class QueryApiImpl implements no.brreg.toop.generated.api.QueryApi {
 
     @Override
     public ResponseEntity<Enhet> getByNaturalPerson(HttpServletRequest httpServletRequest, HttpServletResponse response,
-                                                    String countrycode, String naturalperson, String firstname, String lastname, LocalDate birthdate) {
+                                                    String countrycode, String naturalperson, String firstname, String lastname, LocalDate birthdate, String cacheControl,
+                                                    String fields, String xPriority) {
         try {
-            Map<String,Object> properties = new HashMap<>();
-            if (firstname!=null && !firstname.isEmpty()) {
-                properties.put("firstname", firstname);
+            final Map<String,Object> properties = getNaturalPersonProperties(firstname, lastname, birthdate);
+            if (!addConcepts(properties, fields, response)) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
             }
-            if (lastname!=null && !lastname.isEmpty()) {
-                properties.put("lastname", lastname);
+            final DcSendScheduler.Priority priority = parsePriority(xPriority, DcSendScheduler.Priority.INTERACTIVE, response);
+            if (priority == null) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
             }
-            if (birthdate!=null) {
-                properties.put("birthdate", birthdate);
-            }
-            final BrregIncomingHandler.ToopResponse toopResponse = brregIncomingHandler.getByIdentifier(countrycode, naturalperson, properties, false);
+            final BrregIncomingHandler.ToopResponse toopResponse = brregIncomingHandler.getByIdentifier(countrycode, naturalperson, properties, false,
+                                                                                                        DcResultCache.CacheControl.parse(cacheControl), priority);
             HttpStatus status = toopResponse==null ? HttpStatus.NOT_FOUND : toopResponse.getStatus();
             final String errorMessage = toopResponse==null ? null : toopResponse.getErrorMessage();
             if (status == HttpStatus.OK && toopResponse.getEnhet()==null) {
@@ -97,9 +189,13 @@ public class QueryApiImpl implements no.brreg.toop.generated.api.QueryApi {
             }
 
             if (status == HttpStatus.OK) {
+                startupReadinessIndicator.markQueryServed();
                 return new ResponseEntity<>(toopResponse.getEnhet(), HttpStatus.OK);
             } else {
                 LOGGER.info("Status: "+status.value());
+                if (status == HttpStatus.TOO_MANY_REQUESTS) {
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                }
                 if (errorMessage!=null && !errorMessage.isEmpty()) {
                     LOGGER.info("ErrorMsg: "+errorMessage);
                     response.sendError(status.value(), errorMessage);
@@ -112,4 +208,289 @@ public class QueryApiImpl implements no.brreg.toop.generated.api.QueryApi {
         }
     }
 
+    @Override
+    public ResponseEntity<List<BatchQueryResult>> queryBatch(HttpServletRequest httpServletRequest, HttpServletResponse response, BatchQuery batchQuery) {
+        try {
+            final HttpStatus invalidStatus = validateBatch(batchQuery, response);
+            if (invalidStatus != null) {
+                return new ResponseEntity<>(invalidStatus);
+            }
+
+            //Invalid items are answered directly, the rest are sent as one batch
+            final List<BatchQueryResult> results = new ArrayList<>();
+            final List<BatchQueryResult> queriedResults = new ArrayList<>();
+            final List<BatchQueryHandler.Query> queries = new ArrayList<>();
+            final DcSendScheduler.Priority priority = parsePriority(httpServletRequest.getHeader(DcSendScheduler.PRIORITY_HEADER), DcSendScheduler.Priority.BULK, response);
+            if (priority == null) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+            prepareBatch(batchQuery, DcResultCache.CacheControl.parse(httpServletRequest.getHeader(HttpHeaders.CACHE_CONTROL)), priority, results, queriedResults, queries);
+
+            final List<BrregIncomingHandler.ToopResponse> toopResponses = batchQueryHandler.query(queries);
+            for (int i=0; i<toopResponses.size(); i++) {
+                setBatchResult(queriedResults.get(i), toopResponses.get(i));
+            }
+
+            startupReadinessIndicator.markQueryServed();
+            return new ResponseEntity<>(results, HttpStatus.OK);
+        } catch (Exception e) {
+            LOGGER.error("queryBatch failed: ", e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @Override
+    public ResponseEntity<ResponseBodyEmitter> queryBatchStream(HttpServletRequest httpServletRequest, HttpServletResponse response, BatchQuery batchQuery) {
+        List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = null;
+        try {
+            final HttpStatus invalidStatus = validateBatch(batchQuery, response);
+            if (invalidStatus != null) {
+                return new ResponseEntity<>(invalidStatus);
+            }
+
+            final List<BatchQueryResult> results = new ArrayList<>();
+            final List<BatchQueryResult> queriedResults = new ArrayList<>();
+            final List<BatchQueryHandler.Query> queries = new ArrayList<>();
+            final DcSendScheduler.Priority priority = parsePriority(httpServletRequest.getHeader(DcSendScheduler.PRIORITY_HEADER), DcSendScheduler.Priority.BULK, response);
+            if (priority == null) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+            prepareBatch(batchQuery, DcResultCache.CacheControl.parse(httpServletRequest.getHeader(HttpHeaders.CACHE_CONTROL)), priority, results, queriedResults, queries);
+
+            final String accept = httpServletRequest.getHeader(HttpHeaders.ACCEPT);
+            final boolean isEventStream = accept!=null && accept.contains(MediaType.TEXT_EVENT_STREAM_VALUE);
+
+            //No request thread waits for the answers. Each result is written by the thread that completes it,
+            //and every query is answered by the batch deadline, so the emitter timeout is only a safety net
+            futures = batchQueryHandler.submit(queries, System.nanoTime() + BatchQueryHandler.BATCH_TIMEOUT.toNanos());
+            final ResponseBodyEmitter emitter = new ResponseBodyEmitter(BatchQueryHandler.BATCH_TIMEOUT.plus(STREAM_TIMEOUT_MARGIN).toMillis());
+            final BatchStream stream = new BatchStream(emitter, isEventStream, futures);
+
+            //Invalid items are written first. The rest are written in the order their responses arrive
+            for (BatchQueryResult result : results) {
+                if (result.getStatus() != null) {
+                    stream.write(result);
+                }
+            }
+            for (int i=0; i<futures.size(); i++) {
+                final BatchQueryResult pending = queriedResults.get(i);
+                futures.get(i).whenComplete((toopResponse, e) -> {
+                    final BatchQueryResult result = copyBatchResult(pending);
+                    if (e != null) {
+                        result.status(HttpStatus.INTERNAL_SERVER_ERROR.value()).errorMessage("Request failed: " + e.getMessage());
+                    } else {
+                        setBatchResult(result, toopResponse);
+                    }
+                    stream.complete(result);
+                });
+            }
+            stream.completeIfDone();
+
+            return ResponseEntity.ok()
+                                 .contentType(isEventStream ? TEXT_EVENT_STREAM_UTF8 : APPLICATION_NDJSON_UTF8)
+                                 .cacheControl(CacheControl.noCache())
+                                 .header("X-Accel-Buffering", "no") //Don't let a proxy hold back the stream
+                                 .body(emitter);
+        } catch (Exception e) {
+            LOGGER.error("queryBatchStream failed: ", e);
+            cancel(futures);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Writes the results of a streamed batch as they arrive, from whichever thread completes them. When the client
+     * goes away or the stream fails, the queries of the batch that have not been sent yet are cancelled.
+     */
+    private class BatchStream {
+        private final ResponseBodyEmitter emitter;
+        private final boolean isEventStream;
+        private final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures;
+        private int remaining;
+        private boolean isClosed = false;
+        private final Object streamLock = new Object();
+
+        private BatchStream(final ResponseBodyEmitter emitter, final boolean isEventStream, final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures) {
+            this.emitter = emitter;
+            this.isEventStream = isEventStream;
+            this.futures = futures;
+            this.remaining = futures.size();
+            emitter.onTimeout(() -> {
+                abort("timed out");
+                emitter.complete();
+            });
+            emitter.onError(e -> abort(e.getMessage()));
+            emitter.onCompletion(() -> cancel(futures));
+        }
+
+        private void write(final BatchQueryResult result) {
+            synchronized(streamLock) {
+                if (isClosed) {
+                    return;
+                }
+                try {
+                    final String json = objectMapper.writeValueAsString(result);
+                    emitter.send(isEventStream ? "id: " + result.getIndex() + "\nevent: result\ndata: " + json + "\n\n" : json + "\n", TEXT_PLAIN_UTF8);
+                } catch (IOException | IllegalStateException e) {
+                    abort(e.getMessage());
+                }
+            }
+        }
+
+        private void complete(final BatchQueryResult result) {
+            synchronized(streamLock) {
+                write(result);
+                remaining--;
+                completeIfDone();
+            }
+        }
+
+        private void completeIfDone() {
+            synchronized(streamLock) {
+                if (remaining>0 || isClosed) {
+                    return;
+                }
+                try {
+                    if (isEventStream) {
+                        emitter.send("event: end\ndata: {}\n\n", TEXT_PLAIN_UTF8);
+                    }
+                    isClosed = true;
+                    emitter.complete();
+                    startupReadinessIndicator.markQueryServed();
+                } catch (IOException | IllegalStateException e) {
+                    abort(e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Stops writing and cancels the unsent queries. The emitter is not completed, since after a failed send
+         * the servlet container ends the request itself.
+         */
+        private void abort(final String reason) {
+            synchronized(streamLock) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+            }
+            LOGGER.info("queryBatchStream aborted: " + reason);
+            cancel(futures);
+        }
+    }
+
+    /**
+     * Cancels the queries of a batch that are not answered yet. Those still waiting to be sent are not sent.
+     */
+    private static void cancel(final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures) {
+        if (futures != null) {
+            for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private HttpStatus validateBatch(final BatchQuery batchQuery, final HttpServletResponse response) throws IOException {
+        if (batchQuery==null || batchQuery.getItems()==null || batchQuery.getItems().isEmpty()) {
+            return HttpStatus.BAD_REQUEST;
+        }
+        if (batchQuery.getItems().size() > BatchQueryHandler.MAX_BATCH_SIZE) {
+            response.sendError(HttpStatus.PAYLOAD_TOO_LARGE.value(), "A batch can have at most "+BatchQueryHandler.MAX_BATCH_SIZE+" items");
+            return HttpStatus.PAYLOAD_TOO_LARGE;
+        }
+        return null;
+    }
+
+    /**
+     * Creates one result per item in results. Invalid items get their status set directly, while
+     * valid items are added to queries, with their results at the same position in queriedResults.
+     */
+    private void prepareBatch(final BatchQuery batchQuery, final DcResultCache.CacheControl cacheControl, final DcSendScheduler.Priority priority,
+                              final List<BatchQueryResult> results,
+                              final List<BatchQueryResult> queriedResults, final List<BatchQueryHandler.Query> queries) {
+        for (BatchQueryItem item : batchQuery.getItems()) {
+            final BatchQueryResult result = new BatchQueryResult().index(results.size());
+            results.add(result);
+            if (item == null) {
+                result.status(HttpStatus.BAD_REQUEST.value()).errorMessage("Empty item");
+                continue;
+            }
+
+            result.countrycode(item.getCountrycode())
+                  .legalperson(item.getLegalperson())
+                  .naturalperson(item.getNaturalperson());
+            final boolean hasLegalPerson = item.getLegalperson()!=null && !item.getLegalperson().isEmpty();
+            final boolean hasNaturalPerson = item.getNaturalperson()!=null && !item.getNaturalperson().isEmpty();
+            if (item.getCountrycode()==null || item.getCountrycode().isEmpty()) {
+                result.status(HttpStatus.BAD_REQUEST.value()).errorMessage("Missing countrycode");
+            } else if (hasLegalPerson == hasNaturalPerson) {
+                result.status(HttpStatus.BAD_REQUEST.value()).errorMessage("Exactly one of legalperson and naturalperson must be given");
+            } else if (hasLegalPerson) {
+                queries.add(new BatchQueryHandler.Query(item.getCountrycode(), item.getLegalperson(), new HashMap<>(), true, cacheControl, priority));
+                queriedResults.add(result);
+            } else {
+                queries.add(new BatchQueryHandler.Query(item.getCountrycode(), item.getNaturalperson(),
+                                                        getNaturalPersonProperties(item.getFirstname(), item.getLastname(), item.getBirthdate()), false,
+                                                        cacheControl, priority));
+                queriedResults.add(result);
+            }
+        }
+    }
+
+    private void setBatchResult(final BatchQueryResult result, final BrregIncomingHandler.ToopResponse toopResponse) {
+        HttpStatus status = toopResponse==null ? HttpStatus.NOT_FOUND : toopResponse.getStatus();
+        if (status == HttpStatus.OK && toopResponse.getEnhet()==null) {
+            status = HttpStatus.NOT_FOUND;
+        }
+        result.status(status.value())
+              .errorMessage(toopResponse==null ? null : toopResponse.getErrorMessage())
+              .enhet(status==HttpStatus.OK ? toopResponse.getEnhet() : null);
+    }
+
+    private BatchQueryResult copyBatchResult(final BatchQueryResult result) {
+        return new BatchQueryResult().index(result.getIndex())
+                                     .countrycode(result.getCountrycode())
+                                     .legalperson(result.getLegalperson())
+                                     .naturalperson(result.getNaturalperson());
+    }
+
+    private boolean addConcepts(final Map<String,Object> properties, final String fields, final HttpServletResponse response) throws IOException {
+        try {
+            final Set<EToopConcept> concepts = BrregIncomingHandler.parseConcepts(fields);
+            if (concepts != null) {
+                properties.put(BrregIncomingHandler.CONCEPTS_PROPERTY, concepts);
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the priority class named in the header, or null after sending BAD_REQUEST if it is unknown.
+     */
+    private DcSendScheduler.Priority parsePriority(final String value, final DcSendScheduler.Priority defaultPriority, final HttpServletResponse response) throws IOException {
+        try {
+            return DcSendScheduler.Priority.parse(value, defaultPriority);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+            return null;
+        }
+    }
+
+    private Map<String,Object> getNaturalPersonProperties(final String firstname, final String lastname, final LocalDate birthdate) {
+        Map<String,Object> properties = new HashMap<>();
+        if (firstname!=null && !firstname.isEmpty()) {
+            properties.put("firstname", firstname);
+        }
+        if (lastname!=null && !lastname.isEmpty()) {
+            properties.put("lastname", lastname);
+        }
+        if (birthdate!=null) {
+            properties.put("birthdate", birthdate);
+        }
+        return properties;
+    }
+
 }
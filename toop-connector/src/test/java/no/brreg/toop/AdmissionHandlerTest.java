@@ -0,0 +1,130 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class AdmissionHandlerTest {
+    private AdmissionHandler admissionHandler;
+    private SimpleMeterRegistry meterRegistry;
+
+
+    @BeforeEach
+    void setUp() {
+        final MockEnvironment environment = new MockEnvironment()
+                .withProperty("toop.admission.dp.rate", "0")
+                .withProperty("toop.admission.dp.concurrency", "0");
+        meterRegistry = new SimpleMeterRegistry();
+        admissionHandler = new AdmissionHandler();
+        ReflectionTestUtils.setField(admissionHandler, "environment", environment);
+        ReflectionTestUtils.setField(admissionHandler, "meterRegistry", meterRegistry);
+    }
+
+    @Test
+    void unknownSendersShareOneBucket() {
+        for (int i=0; i<1000; i++) {
+            assertTrue(admissionHandler.admit(AdmissionHandler.Direction.DP, "9914:no-such-participant-" + i).isAdmitted());
+        }
+        admissionHandler.admit(AdmissionHandler.Direction.DP, null);
+        admissionHandler.admit(AdmissionHandler.Direction.DP, "");
+
+        final Map<?,?> limits = (Map<?,?>) ReflectionTestUtils.getField(admissionHandler, "limits");
+        assertEquals(1, limits.size());
+        assertEquals(Collections.singleton("unknown"), getCountryTags());
+    }
+
+    @Test
+    void countryCodesAreNormalized() {
+        admissionHandler.admit(AdmissionHandler.Direction.DP, "se");
+        admissionHandler.admit(AdmissionHandler.Direction.DP, " SE ");
+        admissionHandler.admit(AdmissionHandler.Direction.DP, "SE");
+
+        final Set<String> countries = getCountryTags();
+        assertEquals(1, countries.size());
+        assertTrue(countries.contains("SE"));
+    }
+
+    @Test
+    void unknownSendersAreRateLimitedTogether() {
+        final MockEnvironment environment = new MockEnvironment()
+                .withProperty("toop.admission.dp.rate", "0.001")
+                .withProperty("toop.admission.dp.burst", "2");
+        ReflectionTestUtils.setField(admissionHandler, "environment", environment);
+
+        assertTrue(admissionHandler.admit(AdmissionHandler.Direction.DP, "sender-1").isAdmitted());
+        assertTrue(admissionHandler.admit(AdmissionHandler.Direction.DP, "sender-2").isAdmitted());
+        final AdmissionHandler.Admission third = admissionHandler.admit(AdmissionHandler.Direction.DP, "sender-3");
+        assertFalse(third.isAdmitted());
+        assertEquals(AdmissionHandler.Rejection.RATE_LIMITED, third.getRejection());
+    }
+
+    @Test
+    void waitsForTokenUntilDeadline() {
+        final MockEnvironment environment = new MockEnvironment()
+                .withProperty("toop.admission.dc.rate", "10")
+                .withProperty("toop.admission.dc.burst", "1");
+        ReflectionTestUtils.setField(admissionHandler, "environment", environment);
+
+        assertTrue(admissionHandler.admit(AdmissionHandler.Direction.DC, "SE").isAdmitted());
+        assertFalse(admissionHandler.admit(AdmissionHandler.Direction.DC, "SE").isAdmitted());
+
+        final long started = System.nanoTime();
+        final AdmissionHandler.Admission admission = admissionHandler.admit(AdmissionHandler.Direction.DC, "SE", started + TimeUnit.SECONDS.toNanos(5));
+        assertTrue(admission.isAdmitted());
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    void waitsForConcurrencySlotUntilDeadline() throws Exception {
+        final MockEnvironment environment = new MockEnvironment()
+                .withProperty("toop.admission.dc.rate", "0")
+                .withProperty("toop.admission.dc.concurrency", "1");
+        ReflectionTestUtils.setField(admissionHandler, "environment", environment);
+
+        final AdmissionHandler.Admission first = admissionHandler.admit(AdmissionHandler.Direction.DC, "SE");
+        assertTrue(first.isAdmitted());
+        final AdmissionHandler.Admission timedOut = admissionHandler.admit(AdmissionHandler.Direction.DC, "SE", System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        assertFalse(timedOut.isAdmitted());
+        assertEquals(AdmissionHandler.Rejection.CONCURRENCY_LIMITED, timedOut.getRejection());
+
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(first::release, 100, TimeUnit.MILLISECONDS);
+            final AdmissionHandler.Admission second = admissionHandler.admit(AdmissionHandler.Direction.DC, "SE", System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+            assertTrue(second.isAdmitted());
+            second.release();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Set<String> getCountryTags() {
+        final Set<String> countries = new HashSet<>();
+        for (Meter meter : meterRegistry.getMeters()) {
+            final String country = meter.getId().getTag("country");
+            if (country != null) {
+                countries.add(country);
+            }
+        }
+        return countries;
+    }
+
+}
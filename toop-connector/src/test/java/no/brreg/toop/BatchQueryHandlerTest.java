@@ -0,0 +1,246 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class BatchQueryHandlerTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static class SentQuery {
+        private final String identifier;
+        private final CompletableFuture<BrregIncomingHandler.ToopResponse> response = new CompletableFuture<>();
+
+        private SentQuery(final String identifier) {
+            this.identifier = identifier;
+        }
+    }
+
+    private final BlockingQueue<SentQuery> sent = new LinkedBlockingQueue<>();
+    private final Set<String> throttledCountries = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger throttledAttempts = new AtomicInteger();
+    private BatchQueryHandler batchQueryHandler;
+
+
+    @BeforeEach
+    void setUp() {
+        //Answers are completed by the tests through the SentQuery futures
+        final BrregIncomingHandler brregIncomingHandler = new BrregIncomingHandler() {
+            @Override
+            public CompletableFuture<ToopResponse> queryByIdentifier(final String countrycode, final String identifier, final Map<String,Object> properties, final boolean isLegalPerson,
+                                                                     final DcResultCache.CacheControl cacheControl, final DcSendScheduler.Priority priority,
+                                                                     final long admissionDeadline) {
+                if (throttledCountries.contains(countrycode)) {
+                    throttledAttempts.incrementAndGet();
+                    final ToopResponse rejected = new ToopResponse(HttpStatus.TOO_MANY_REQUESTS, "Too many pending requests to \"" + countrycode + "\"");
+                    rejected.setRetryable(true);
+                    return CompletableFuture.completedFuture(rejected);
+                }
+                final SentQuery sentQuery = new SentQuery(identifier);
+                sent.add(sentQuery);
+                return sentQuery.response;
+            }
+        };
+        batchQueryHandler = new BatchQueryHandler();
+        ReflectionTestUtils.setField(batchQueryHandler, "brregIncomingHandler", brregIncomingHandler);
+        ReflectionTestUtils.setField(batchQueryHandler, "loggerHandler", new LoggerHandler());
+    }
+
+    @AfterEach
+    void tearDown() {
+        batchQueryHandler.shutdown();
+    }
+
+    @Test
+    void fansOutAndKeepsQueryOrder() throws Exception {
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(createQueries("SE", 3), getDeadline(TIMEOUT_SECONDS));
+
+        final List<SentQuery> sentQueries = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            sentQueries.add(awaitSent());
+        }
+        //Answer in reverse order, each with its identifier as message
+        for (int i=sentQueries.size()-1; i>=0; i--) {
+            final SentQuery sentQuery = sentQueries.get(i);
+            sentQuery.response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.OK, sentQuery.identifier));
+        }
+
+        for (int i=0; i<3; i++) {
+            final BrregIncomingHandler.ToopResponse response = futures.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals(HttpStatus.OK, response.getStatus());
+            assertEquals("SE" + i, response.getErrorMessage());
+        }
+    }
+
+    @Test
+    void limitsOutstandingQueriesPerCountry() throws Exception {
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(createQueries("SE", 12), getDeadline(TIMEOUT_SECONDS));
+        batchQueryHandler.submit(createQueries("DK", 1), getDeadline(TIMEOUT_SECONDS));
+
+        final List<SentQuery> sentQueries = new ArrayList<>();
+        for (int i=0; i<11; i++) {
+            sentQueries.add(awaitSent());
+        }
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS), "More than 10 outstanding queries to SE");
+        assertEquals(1, sentQueries.stream().filter(sentQuery -> sentQuery.identifier.startsWith("DK")).count());
+
+        //Each answer lets one waiting query through
+        sentQueries.get(0).response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.NOT_FOUND, null));
+        assertTrue(awaitSent().identifier.startsWith("SE"));
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(HttpStatus.NOT_FOUND, futures.get(0).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    void doesNotSendQueriesAfterDeadline() throws Exception {
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(createQueries("SE", 2), System.nanoTime());
+
+        for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : futures) {
+            assertEquals(HttpStatus.GATEWAY_TIMEOUT, future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus());
+        }
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void completesRejectedQueriesAndReleasesSlots() throws Exception {
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> sentFutures = batchQueryHandler.submit(createQueries("SE", 10), getDeadline(TIMEOUT_SECONDS));
+        final List<SentQuery> sentQueries = new ArrayList<>();
+        for (int i=0; i<10; i++) {
+            sentQueries.add(awaitSent());
+        }
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> waitingFutures = batchQueryHandler.submit(createQueries("SE", 5), getDeadline(TIMEOUT_SECONDS));
+
+        batchQueryHandler.shutdown();
+        sentQueries.get(0).response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null));
+        for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : waitingFutures) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus());
+        }
+
+        //Every slot is released again, so new queries to the country fail at once instead of waiting forever
+        for (int i=1; i<sentQueries.size(); i++) {
+            sentQueries.get(i).response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null));
+        }
+        for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : batchQueryHandler.submit(createQueries("SE", 11), getDeadline(TIMEOUT_SECONDS))) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus());
+        }
+        assertEquals(HttpStatus.OK, sentFutures.get(0).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    void answersSentQueriesAtDeadline() throws Exception {
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(createQueries("SE", 1),
+                                                                                                             System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300));
+        final SentQuery sentQuery = awaitSent();
+        assertEquals(HttpStatus.GATEWAY_TIMEOUT, futures.get(0).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus());
+        sentQuery.response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null));
+    }
+
+    @Test
+    void doesNotSendCancelledQueries() throws Exception {
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(createQueries("SE", 12), getDeadline(TIMEOUT_SECONDS));
+        final List<SentQuery> sentQueries = new ArrayList<>();
+        for (int i=0; i<10; i++) {
+            sentQueries.add(awaitSent());
+        }
+
+        //As when the client of a streamed batch goes away. The slots freed by the sent queries are not used for the cancelled ones
+        for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : futures) {
+            future.cancel(false);
+        }
+        for (SentQuery sentQuery : sentQueries) {
+            sentQuery.response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null));
+        }
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+
+        //The country's slots are all free again
+        batchQueryHandler.submit(createQueries("SE", 10), getDeadline(TIMEOUT_SECONDS));
+        for (int i=0; i<10; i++) {
+            awaitSent();
+        }
+    }
+
+    @Test
+    void throttledCountryDoesNotStallOthers() throws Exception {
+        throttledCountries.add("SE");
+        throttledCountries.add("FI");
+        final List<BatchQueryHandler.Query> queries = new ArrayList<>(createQueries("SE", 20));
+        queries.addAll(createQueries("FI", 20));
+        queries.addAll(createQueries("DK", 3));
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(queries, getDeadline(TIMEOUT_SECONDS));
+
+        //More throttled queries are outstanding than there are send threads, and the healthy country is still sent at once
+        for (int i=0; i<3; i++) {
+            final SentQuery sentQuery = awaitSent();
+            assertTrue(sentQuery.identifier.startsWith("DK"));
+            sentQuery.response.complete(new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null));
+        }
+        for (int i=40; i<43; i++) {
+            assertEquals(HttpStatus.OK, futures.get(i).get(1, TimeUnit.SECONDS).getStatus());
+        }
+
+        //The throttled queries are retried, and sent once the country admits them again
+        final int attempts = throttledAttempts.get();
+        assertTrue(attempts >= 20);
+        throttledCountries.remove("SE");
+        final SentQuery retried = awaitSent();
+        assertTrue(retried.identifier.startsWith("SE"));
+        assertTrue(throttledAttempts.get() > attempts);
+        assertFalse(futures.get(20).isDone());
+    }
+
+    @Test
+    void answersThrottledQueriesAtDeadline() throws Exception {
+        throttledCountries.add("SE");
+        final List<CompletableFuture<BrregIncomingHandler.ToopResponse>> futures = batchQueryHandler.submit(createQueries("SE", 2),
+                                                                                                             System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300));
+        for (CompletableFuture<BrregIncomingHandler.ToopResponse> future : futures) {
+            final BrregIncomingHandler.ToopResponse response = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertTrue(response.getStatus()==HttpStatus.TOO_MANY_REQUESTS || response.getStatus()==HttpStatus.GATEWAY_TIMEOUT);
+        }
+        assertTrue(throttledAttempts.get() > 2);
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private SentQuery awaitSent() throws InterruptedException {
+        final SentQuery sentQuery = sent.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(sentQuery, "Query was not sent");
+        return sentQuery;
+    }
+
+    private static List<BatchQueryHandler.Query> createQueries(final String countrycode, final int count) {
+        final List<BatchQueryHandler.Query> queries = new ArrayList<>();
+        for (int i=0; i<count; i++) {
+            queries.add(new BatchQueryHandler.Query(countrycode, countrycode + i, Collections.emptyMap(), true,
+                                                    DcResultCache.CacheControl.parse(null), DcSendScheduler.Priority.BULK));
+        }
+        return queries;
+    }
+
+    private static long getDeadline(final long seconds) {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+}
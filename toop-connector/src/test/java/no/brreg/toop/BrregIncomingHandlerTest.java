@@ -0,0 +1,94 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.error.EEDMExceptionType;
+import eu.toop.edm.error.EToopErrorOrigin;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import no.brreg.toop.generated.model.Adresse;
+import no.brreg.toop.generated.model.Enhet;
+import no.brreg.toop.generated.model.Organisasjonsform;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+class BrregIncomingHandlerTest {
+
+    @Test
+    void projectionKeepsOnlyRequestedConcepts() {
+        final Adresse adresse = new Adresse();
+        adresse.setLandkode("NO");
+        adresse.setPoststed("OSLO");
+        adresse.setAdresse(Collections.singletonList("Gate 1"));
+        final Organisasjonsform organisasjonsform = new Organisasjonsform();
+        organisasjonsform.setKode("AS");
+        final Enhet enhet = new Enhet().organisasjonsnummer("910000000").navn("Testfirma");
+        enhet.setForretningsadresse(adresse);
+        enhet.setOrganisasjonsform(organisasjonsform);
+
+        final Enhet projected = BrregIncomingHandler.projectEnhet(enhet, EnumSet.of(EToopConcept.COMPANY_NAME, EToopConcept.POSTAL_CODE));
+        assertEquals("Testfirma", projected.getNavn());
+        assertEquals("OSLO", projected.getForretningsadresse().getPoststed());
+        assertNull(projected.getOrganisasjonsnummer());
+        assertNull(projected.getOrganisasjonsform());
+        assertNull(projected.getForretningsadresse().getLandkode());
+        assertNull(projected.getForretningsadresse().getAdresse());
+    }
+
+    @Test
+    void projectionOntoAllConceptsKeepsEverythingMapped() {
+        final Enhet enhet = new Enhet().organisasjonsnummer("910000000").navn("Testfirma");
+        final Enhet projected = BrregIncomingHandler.projectEnhet(enhet, BrregIncomingHandler.SUPPORTED_CONCEPTS);
+        assertEquals("910000000", projected.getOrganisasjonsnummer());
+        assertEquals("Testfirma", projected.getNavn());
+        assertNull(projected.getForretningsadresse());
+    }
+
+    @Test
+    void parsesRequestedConcepts() {
+        assertEquals(EnumSet.of(EToopConcept.COMPANY_NAME, EToopConcept.NACE_CODE), BrregIncomingHandler.parseConcepts("company_name, NACE_CODE,,COMPANY_NAME"));
+        assertNull(BrregIncomingHandler.parseConcepts(null));
+        assertNull(BrregIncomingHandler.parseConcepts(" "));
+        assertNull(BrregIncomingHandler.parseConcepts(" , "));
+    }
+
+    @Test
+    void rejectsUnsupportedConcepts() {
+        assertThrows(IllegalArgumentException.class, () -> BrregIncomingHandler.parseConcepts("COMPANY_NAME,SHOE_SIZE"));
+        assertThrows(IllegalArgumentException.class, () -> BrregIncomingHandler.parseConcepts(EToopConcept.REGISTERED_ORGANIZATION.name()));
+    }
+
+    @Test
+    void mapsErrorResponsesToStatus() {
+        assertErrorAnswer(HttpStatus.NOT_FOUND, null, CountryLatencyTracker.Outcome.SUCCESS, EEDMExceptionType.OBJECT_NOT_FOUND);
+        assertErrorAnswer(HttpStatus.SERVICE_UNAVAILABLE, "Remote error", CountryLatencyTracker.Outcome.FAILED, EEDMExceptionType.QUOTA_EXCEEDED);
+        assertErrorAnswer(HttpStatus.GATEWAY_TIMEOUT, "Remote error", CountryLatencyTracker.Outcome.FAILED, EEDMExceptionType.TIMEOUT);
+        assertErrorAnswer(HttpStatus.BAD_GATEWAY, "Remote error", CountryLatencyTracker.Outcome.FAILED, EEDMExceptionType.INVALID_REQUEST);
+        assertErrorAnswer(HttpStatus.BAD_GATEWAY, "Remote error", CountryLatencyTracker.Outcome.FAILED, EEDMExceptionType.UNSUPPORTED_CAPABILITY);
+    }
+
+    @Test
+    void reportsOnlyOwnDeadlineAsTimeout() {
+        assertEquals(CountryLatencyTracker.Outcome.TIMEOUT, BrregIncomingHandler.getOutcome(new BrregIncomingHandler.ToopResponse()));
+        assertEquals(CountryLatencyTracker.Outcome.FAILED, BrregIncomingHandler.getOutcome(null));
+        assertEquals(CountryLatencyTracker.Outcome.FAILED,
+                     BrregIncomingHandler.getOutcome(new BrregIncomingHandler.ToopResponse(HttpStatus.SERVICE_UNAVAILABLE, "Not sent")));
+    }
+
+    private static void assertErrorAnswer(final HttpStatus status, final String errorMessage, final CountryLatencyTracker.Outcome outcome,
+                                          final EEDMExceptionType exceptionType) {
+        final BrregIncomingHandler.ToopResponse response = BrregIncomingHandler.createErrorToopResponse(
+                BrregIncomingHandler.createErrorResponse("req", exceptionType, EToopErrorOrigin.RESPONSE_CREATION, "Remote error"));
+        assertEquals(status, response.getStatus(), exceptionType.name());
+        assertEquals(errorMessage, response.getErrorMessage(), exceptionType.name());
+        assertEquals(outcome, BrregIncomingHandler.getOutcome(response), exceptionType.name());
+    }
+
+}
@@ -0,0 +1,122 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import kong.unirest.Unirest;
+import no.brreg.toop.generated.model.ForwardedResponse;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Response forwarding between connector nodes running in separate JVMs (toop.cluster.mode = peers).
+ * This JVM is node a, and nodes b and c are started by ClusterTestNode.
+ */
+class ClusterNodesTest {
+    private static final String SECRET = "cluster-test-secret";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static String peers;
+    private static ClusterTestNode.Handle nodeB;
+    private static ClusterTestNode.Handle nodeC;
+    private static ClusterResponseCorrelator correlatorA;
+
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        Application.initializeUnirestObjectMapper();
+        peers = "a=http://localhost:" + ClusterTestNode.getFreePort() +
+                ",b=http://localhost:" + ClusterTestNode.getFreePort() +
+                ",c=http://localhost:" + ClusterTestNode.getFreePort();
+        nodeB = ClusterTestNode.start("b", getPort("b"), peers, SECRET);
+        nodeC = ClusterTestNode.start("c", getPort("c"), peers, SECRET);
+        nodeB.awaitReady();
+        nodeC.awaitReady();
+        correlatorA = ClusterTestNode.createCorrelator(ClusterTestNode.createPeers("a", peers, SECRET));
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        if (nodeB != null) {
+            nodeB.close();
+        }
+        if (nodeC != null) {
+            nodeC.close();
+        }
+    }
+
+    @Test
+    void forwardsResponseToOwningNode() throws Exception {
+        final String requestIdB = createRequestId("b");
+        final String requestIdC = createRequestId("c");
+        assertFalse(correlatorA.isLocal(requestIdB));
+        assertFalse(correlatorA.isLocal(requestIdC));
+
+        assertTrue(correlatorA.forward(requestIdB, new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null)));
+        assertTrue(correlatorA.forward(requestIdC, new BrregIncomingHandler.ToopResponse(HttpStatus.NOT_FOUND, null)));
+        assertEquals("COMPLETED " + requestIdB + " 200", nodeB.awaitLine("COMPLETED", TIMEOUT_SECONDS));
+        assertEquals("COMPLETED " + requestIdC + " 404", nodeC.awaitLine("COMPLETED", TIMEOUT_SECONDS));
+    }
+
+    @Test
+    void rejectsResponsesWithoutClusterSecret() throws Exception {
+        final String requestId = createRequestId("b");
+        final String url = "http://localhost:" + getPort("b") + "/internal/response/" + requestId;
+        final ForwardedResponse forged = new ForwardedResponse().status(HttpStatus.OK.value());
+
+        assertEquals(HttpStatus.FORBIDDEN.value(), Unirest.post(url)
+                .header("content-type", "application/json")
+                .body(forged)
+                .asString().getStatus());
+        assertEquals(HttpStatus.FORBIDDEN.value(), Unirest.post(url)
+                .header("content-type", "application/json")
+                .header(ClusterPeers.SECRET_HEADER, "")
+                .body(forged)
+                .asString().getStatus());
+
+        final ClusterResponseCorrelator wrongSecret = ClusterTestNode.createCorrelator(ClusterTestNode.createPeers("a", peers, "wrong-secret"));
+        assertFalse(wrongSecret.forward(requestId, new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null)));
+    }
+
+    @Test
+    void nodeWithoutClusterSecretFailsToStart() throws Exception {
+        try (ClusterTestNode.Handle node = ClusterTestNode.start("b", String.valueOf(ClusterTestNode.getFreePort()), peers, "")) {
+            final Integer exitCode = node.awaitExit(TIMEOUT_SECONDS);
+            assertNotNull(exitCode, "Node without secret is still running");
+            assertNotEquals(0, exitCode.intValue());
+            assertTrue(node.getOutput().contains("toop.cluster.secret must be set"), node.getOutput());
+        }
+    }
+
+    @Test
+    void noPeerIsTrustedWithoutClusterSecret() {
+        final ClusterPeers withoutSecret = ClusterTestNode.createPeers("a", peers, "");
+        assertFalse(withoutSecret.isTrustedPeer(null));
+        assertFalse(withoutSecret.isTrustedPeer(""));
+        assertFalse(withoutSecret.isTrustedPeer(SECRET));
+        assertThrows(IllegalStateException.class, () -> ClusterTestNode.createCorrelator(withoutSecret));
+
+        final ClusterPeers withSecret = ClusterTestNode.createPeers("a", peers, SECRET);
+        assertTrue(withSecret.isTrustedPeer(SECRET));
+        assertFalse(withSecret.isTrustedPeer("wrong-secret"));
+    }
+
+    private static String createRequestId(final String nodeId) {
+        return ClusterTestNode.createCorrelator(ClusterTestNode.createPeers(nodeId, peers, SECRET)).createRequestId();
+    }
+
+    private static String getPort(final String nodeId) {
+        final String url = ClusterTestNode.createPeers("a", peers, SECRET).getPeerUrls().get(nodeId);
+        return url.substring(url.lastIndexOf(':')+1);
+    }
+
+}
@@ -0,0 +1,229 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.brreg.toop.controller.InternalApiImpl;
+import no.brreg.toop.generated.model.Enhet;
+import no.brreg.toop.generated.model.ForwardedResponse;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A connector node in its own JVM, for the multi-node tests. The node runs the real ClusterPeers,
+ * ClusterResponseCorrelator, EnhetCachePartitioner and InternalApiImpl behind a JDK HTTP server, with the
+ * AS4 side and Enhetsregisteret stubbed out. Its Enhetsregisteret knows every orgno, and names the Enhet
+ * after the node. Preloads report orgnos ending in 0 as already cached. It prints READY once it listens,
+ * and COMPLETED {requestId} {status} for every pending request a peer completes.
+ *
+ * Arguments: nodeId port peers [secret] [toop.cluster.mode (default peers)]
+ */
+public class ClusterTestNode {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final long STARTUP_TIMEOUT_SECONDS = 60;
+
+
+    public static void main(String[] args) throws Exception {
+        final String nodeId = args[0];
+        final int port = Integer.parseInt(args[1]);
+        final String peers = args[2];
+        final String secret = args.length>3 ? args[3] : "";
+        final String mode = args.length>4 ? args[4] : "peers";
+
+        final ClusterPeers clusterPeers = createPeers(nodeId, peers, secret);
+        if ("peers".equals(mode)) {
+            createCorrelator(clusterPeers);
+        }
+        createPartitioner(clusterPeers);
+
+        final BrregIncomingHandler brregIncomingHandler = new BrregIncomingHandler() {
+            @Override
+            public boolean completePendingRequest(final String requestId, final ToopResponse toopResponse) {
+                System.out.println("COMPLETED " + requestId + " " + toopResponse.getStatus().value());
+                return true;
+            }
+        };
+        final EnhetsregisterCache enhetsregisterCache = new EnhetsregisterCache() {
+            @Override
+            public Lookup lookupLocalEnhet(final String orgno) {
+                //Orgnos ending in 9 are answered as served stale, as when Enhetsregisteret is down
+                return new Lookup(new Enhet().organisasjonsnummer(orgno).navn("node " + nodeId), orgno.endsWith("9"));
+            }
+
+            @Override
+            public PreloadResult preloadLocalEnhet(final String orgno) {
+                return orgno.endsWith("0") ? PreloadResult.CACHED : PreloadResult.FETCHED;
+            }
+        };
+        final InternalApiImpl internalApi = new InternalApiImpl();
+        ReflectionTestUtils.setField(internalApi, "brregIncomingHandler", brregIncomingHandler);
+        ReflectionTestUtils.setField(internalApi, "enhetsregisterCache", enhetsregisterCache);
+        ReflectionTestUtils.setField(internalApi, "clusterPeers", clusterPeers);
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/internal/response/", exchange -> {
+            final String requestId = exchange.getRequestURI().getPath().substring("/internal/response/".length());
+            final ForwardedResponse forwardedResponse = OBJECT_MAPPER.readValue(exchange.getRequestBody(), ForwardedResponse.class);
+            reply(exchange, internalApi.forwardResponse(toServletRequest(exchange), new MockHttpServletResponse(), requestId, forwardedResponse));
+        });
+        server.createContext("/internal/enhet/", exchange -> {
+            final String orgno = exchange.getRequestURI().getPath().substring("/internal/enhet/".length());
+            final boolean preload = "preload=true".equals(exchange.getRequestURI().getQuery());
+            reply(exchange, internalApi.getPartitionedEnhet(toServletRequest(exchange), new MockHttpServletResponse(), orgno, preload));
+        });
+        server.start();
+        System.out.println("READY");
+    }
+
+    public static ClusterPeers createPeers(final String nodeId, final String peers, final String secret) {
+        final ClusterPeers clusterPeers = new ClusterPeers();
+        ReflectionTestUtils.setField(clusterPeers, "nodeId", nodeId);
+        ReflectionTestUtils.setField(clusterPeers, "peers", peers);
+        ReflectionTestUtils.setField(clusterPeers, "secret", secret);
+        clusterPeers.initialize();
+        return clusterPeers;
+    }
+
+    public static ClusterResponseCorrelator createCorrelator(final ClusterPeers clusterPeers) {
+        final ClusterResponseCorrelator correlator = new ClusterResponseCorrelator();
+        ReflectionTestUtils.setField(correlator, "clusterPeers", clusterPeers);
+        ReflectionTestUtils.setField(correlator, "loggerHandler", new LoggerHandler());
+        ReflectionTestUtils.setField(correlator, "meterRegistry", new SimpleMeterRegistry());
+        correlator.initialize();
+        return correlator;
+    }
+
+    public static EnhetCachePartitioner createPartitioner(final ClusterPeers clusterPeers) {
+        final EnhetCachePartitioner partitioner = new EnhetCachePartitioner();
+        ReflectionTestUtils.setField(partitioner, "isEnabled", true);
+        ReflectionTestUtils.setField(partitioner, "clusterPeers", clusterPeers);
+        ReflectionTestUtils.setField(partitioner, "loggerHandler", new LoggerHandler());
+        ReflectionTestUtils.setField(partitioner, "meterRegistry", new SimpleMeterRegistry());
+        partitioner.initialize();
+        return partitioner;
+    }
+
+    private static MockHttpServletRequest toServletRequest(final HttpExchange exchange) {
+        final MockHttpServletRequest request = new MockHttpServletRequest(exchange.getRequestMethod(), exchange.getRequestURI().getPath());
+        final String peerSecret = exchange.getRequestHeaders().getFirst(ClusterPeers.SECRET_HEADER);
+        if (peerSecret != null) {
+            request.addHeader(ClusterPeers.SECRET_HEADER, peerSecret);
+        }
+        return request;
+    }
+
+    private static void reply(final HttpExchange exchange, final ResponseEntity<?> responseEntity) throws IOException {
+        final byte[] body = responseEntity.getBody()==null ? new byte[0] : OBJECT_MAPPER.writeValueAsBytes(responseEntity.getBody());
+        exchange.getResponseHeaders().putAll(responseEntity.getHeaders());
+        exchange.getResponseHeaders().add("content-type", "application/json");
+        exchange.sendResponseHeaders(responseEntity.getStatusCodeValue(), body.length==0 ? -1 : body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    public static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts a node in a new JVM with the test classpath.
+     */
+    public static Handle start(final String... args) throws IOException {
+        final List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ClusterTestNode.class.getName());
+        command.addAll(Arrays.asList(args));
+        return new Handle(new ProcessBuilder(command).redirectErrorStream(true).start());
+    }
+
+    public static class Handle implements AutoCloseable {
+        private final Process process;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private final List<String> output = new ArrayList<>();
+
+        private Handle(final Process process) {
+            this.process = process;
+            final Thread reader = new Thread(() -> {
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        synchronized(output) {
+                            output.add(line);
+                        }
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    //The node was stopped
+                }
+            }, "cluster-test-node-output");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Returns the next line of output starting with prefix, or null if none is printed within the timeout.
+         */
+        public String awaitLine(final String prefix, final long timeoutSeconds) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                final String line = lines.poll(remaining, TimeUnit.NANOSECONDS);
+                if (line!=null && line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        public void awaitReady() throws InterruptedException {
+            if (awaitLine("READY", STARTUP_TIMEOUT_SECONDS) == null) {
+                throw new IllegalStateException("Cluster test node did not start: " + getOutput());
+            }
+        }
+
+        /**
+         * Waits for the node to exit and returns its exit code, or null if it is still running after the timeout.
+         */
+        public Integer awaitExit(final long timeoutSeconds) throws InterruptedException {
+            return process.waitFor(timeoutSeconds, TimeUnit.SECONDS) ? process.exitValue() : null;
+        }
+
+        public String getOutput() {
+            synchronized(output) {
+                return String.join("\n", output);
+            }
+        }
+
+        @Override
+        public void close() {
+            process.destroyForcibly();
+        }
+    }
+
+}
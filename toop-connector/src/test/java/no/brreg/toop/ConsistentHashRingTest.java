@@ -0,0 +1,85 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class ConsistentHashRingTest {
+    private static final int VIRTUAL_NODES = 100;
+    private static final int KEYS = 30000;
+
+
+    @Test
+    void emptyRingHasNoNodes() {
+        assertNull(new ConsistentHashRing(Collections.emptyList(), VIRTUAL_NODES).getNode("910000000"));
+    }
+
+    @Test
+    void ownersDoNotDependOnNodeOrder() {
+        final ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        final ConsistentHashRing reversed = new ConsistentHashRing(Arrays.asList("c", "b", "a"), VIRTUAL_NODES);
+        for (int i=0; i<1000; i++) {
+            final String orgno = getOrgno(i);
+            assertEquals(ring.getNode(orgno), reversed.getNode(orgno), orgno);
+        }
+    }
+
+    @Test
+    void spreadsKeysEvenly() {
+        final ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        final Map<String,Integer> counts = new HashMap<>();
+        for (int i=0; i<KEYS; i++) {
+            counts.merge(ring.getNode(getOrgno(i)), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+            final double share = (double) entry.getValue() / KEYS;
+            assertTrue(share > 0.23 && share < 0.43, "Node " + entry.getKey() + " owns " + share);
+        }
+    }
+
+    @Test
+    void addingNodeOnlyMovesKeysToIt() {
+        final ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        final ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), VIRTUAL_NODES);
+        int moved = 0;
+        for (int i=0; i<KEYS; i++) {
+            final String orgno = getOrgno(i);
+            final String owner = after.getNode(orgno);
+            if (!owner.equals(before.getNode(orgno))) {
+                assertEquals("d", owner, orgno);
+                moved++;
+            }
+        }
+        final double share = (double) moved / KEYS;
+        assertTrue(share > 0.15 && share < 0.35, "Moved " + share);
+    }
+
+    @Test
+    void removingNodeOnlyMovesItsKeys() {
+        final ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        final ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "c"), VIRTUAL_NODES);
+        for (int i=0; i<KEYS; i++) {
+            final String orgno = getOrgno(i);
+            final String owner = before.getNode(orgno);
+            if (!"b".equals(owner)) {
+                assertEquals(owner, after.getNode(orgno), orgno);
+            }
+        }
+    }
+
+    private static String getOrgno(final int i) {
+        return String.valueOf(910000000 + i);
+    }
+
+}
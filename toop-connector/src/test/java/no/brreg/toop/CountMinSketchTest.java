@@ -0,0 +1,61 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class CountMinSketchTest {
+    private static final int WIDTH = 2048;
+    private static final int DEPTH = 4;
+
+
+    @Test
+    void countsExactlyWithoutCollisions() {
+        final CountMinSketch sketch = new CountMinSketch(WIDTH, DEPTH);
+        assertEquals(0, sketch.estimate(hash(1)));
+        for (int i=1; i<=5; i++) {
+            assertEquals(i, sketch.add(hash(1)));
+        }
+        assertEquals(5, sketch.estimate(hash(1)));
+        assertEquals(0, sketch.estimate(hash(2)));
+    }
+
+    @Test
+    void neverUndercountsAndOvercountsWithinBound() {
+        final CountMinSketch sketch = new CountMinSketch(WIDTH, DEPTH);
+        final int keys = 1000;
+        final long[] actual = new long[keys];
+        long total = 0;
+        //Key k occurs (k % 20) + 1 times, and key 0 is a heavy hitter
+        for (int k=0; k<keys; k++) {
+            final int occurrences = k==0 ? 1000 : (k % 20) + 1;
+            for (int i=0; i<occurrences; i++) {
+                sketch.add(hash(k));
+            }
+            actual[k] = occurrences;
+            total += occurrences;
+        }
+
+        final long bound = 2 * total / WIDTH;
+        for (int k=0; k<keys; k++) {
+            final long estimate = sketch.estimate(hash(k));
+            assertTrue(estimate >= actual[k], "Undercounted key " + k);
+            assertTrue(estimate - actual[k] <= bound, "Key " + k + " overcounted by " + (estimate - actual[k]));
+        }
+    }
+
+    /**
+     * SplitMix64, a well mixed 64-bit hash of the key number.
+     */
+    static long hash(final long key) {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,101 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class CountryLatencyTrackerTest {
+    private CountryLatencyTracker countryLatencyTracker;
+    private SimpleMeterRegistry meterRegistry;
+
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        countryLatencyTracker = new CountryLatencyTracker();
+        ReflectionTestUtils.setField(countryLatencyTracker, "deadlineFactor", 2.0);
+        ReflectionTestUtils.setField(countryLatencyTracker, "minDeadlineMillis", 2000L);
+        ReflectionTestUtils.setField(countryLatencyTracker, "minSamples", 20);
+        ReflectionTestUtils.setField(countryLatencyTracker, "fastFailSuccessRate", 0.05);
+        ReflectionTestUtils.setField(countryLatencyTracker, "meterRegistry", meterRegistry);
+    }
+
+    @Test
+    void usesRequestTimeoutUntilEnoughSamples() {
+        assertEquals(BrregIncomingHandler.REQUEST_TIMEOUT, countryLatencyTracker.getDeadline("SE"));
+        record("SE", 19, 5000, CountryLatencyTracker.Outcome.SUCCESS);
+        assertEquals(BrregIncomingHandler.REQUEST_TIMEOUT, countryLatencyTracker.getDeadline("SE"));
+        record("SE", 1, 5000, CountryLatencyTracker.Outcome.SUCCESS);
+        assertTrue(countryLatencyTracker.getDeadline("SE").compareTo(BrregIncomingHandler.REQUEST_TIMEOUT) < 0);
+    }
+
+    @Test
+    void deadlineFollowsP99TimesFactor() {
+        record("SE", 99, 1000, CountryLatencyTracker.Outcome.SUCCESS);
+        record("SE", 1, 5000, CountryLatencyTracker.Outcome.SUCCESS);
+
+        //The p99 is the upper bound of its histogram bucket, which is at most 25% above the latency
+        final Duration deadline = countryLatencyTracker.getDeadline("SE");
+        assertTrue(deadline.toMillis() >= 2 * 1000 && deadline.toMillis() <= 2 * 1250, deadline.toString());
+        assertEquals(BrregIncomingHandler.REQUEST_TIMEOUT, countryLatencyTracker.getDeadline("DK"));
+    }
+
+    @Test
+    void deadlineIsClamped() {
+        record("SE", 100, 50, CountryLatencyTracker.Outcome.SUCCESS);
+        assertEquals(Duration.ofMillis(2000), countryLatencyTracker.getDeadline("SE"));
+
+        record("DK", 100, 20000, CountryLatencyTracker.Outcome.SUCCESS);
+        assertEquals(BrregIncomingHandler.REQUEST_TIMEOUT, countryLatencyTracker.getDeadline("DK"));
+    }
+
+    @Test
+    void manyTimeoutsKeepRequestTimeout() {
+        record("SE", 90, 1000, CountryLatencyTracker.Outcome.SUCCESS);
+        record("SE", 10, 0, CountryLatencyTracker.Outcome.TIMEOUT);
+        assertEquals(BrregIncomingHandler.REQUEST_TIMEOUT, countryLatencyTracker.getDeadline("SE"));
+    }
+
+    @Test
+    void failsFastButLetsOneProbeThrough() {
+        assertTrue(countryLatencyTracker.allowQuery("SE"));
+        record("SE", 20, 0, CountryLatencyTracker.Outcome.FAILED);
+        assertTrue(countryLatencyTracker.getHealth().get("SE").isFailingFast());
+
+        assertTrue(countryLatencyTracker.allowQuery("SE"), "Probe was not let through");
+        assertFalse(countryLatencyTracker.allowQuery("SE"));
+        assertFalse(countryLatencyTracker.allowQuery("SE"));
+        assertEquals(2, meterRegistry.counter("toop.dc.fast_fail", "country", "SE").count());
+
+        assertTrue(countryLatencyTracker.allowQuery("DK"));
+    }
+
+    @Test
+    void stopsFailingFastWhenCountryAnswers() {
+        record("SE", 20, 0, CountryLatencyTracker.Outcome.FAILED);
+        record("SE", 1, 1000, CountryLatencyTracker.Outcome.SUCCESS);
+        assertTrue(countryLatencyTracker.getHealth().get("SE").isFailingFast());
+
+        record("SE", 1, 1000, CountryLatencyTracker.Outcome.SUCCESS);
+        assertFalse(countryLatencyTracker.getHealth().get("SE").isFailingFast());
+        assertTrue(countryLatencyTracker.allowQuery("SE"));
+        assertTrue(countryLatencyTracker.allowQuery("SE"));
+    }
+
+    private void record(final String country, final int count, final long latencyMillis, final CountryLatencyTracker.Outcome outcome) {
+        for (int i=0; i<count; i++) {
+            countryLatencyTracker.record(country, latencyMillis, outcome);
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.error.EEDMExceptionType;
+import eu.toop.edm.error.EToopErrorOrigin;
+import no.brreg.toop.generated.model.Enhet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class DcResultCacheTest {
+    private static final String KEY = DcResultCache.getKey("SE", "5560000000", null, true);
+
+    private DcResultCache dcResultCache;
+    private AtomicInteger loads;
+
+
+    @BeforeEach
+    void setUp() {
+        dcResultCache = new DcResultCache();
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    void coalescesConcurrentQueriesForSameKey() throws Exception {
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> remote = new CompletableFuture<>();
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> first = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(remote));
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> second = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(new CompletableFuture<>()));
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> other = dcResultCache.get(DcResultCache.getKey("DK", "5560000000", null, true),
+                                                                                           DcResultCache.CacheControl.DEFAULT, () -> load(new CompletableFuture<>()));
+        assertEquals(2, loads.get());
+        assertEquals(1, dcResultCache.getCoalesced());
+        assertFalse(first.isDone());
+        assertFalse(other.isDone());
+
+        final BrregIncomingHandler.ToopResponse response = createFound();
+        remote.complete(response);
+        assertSame(response, first.get());
+        assertSame(response, second.get());
+    }
+
+    @Test
+    void answersFromCacheAfterCompletion() throws Exception {
+        final BrregIncomingHandler.ToopResponse response = createFound();
+        dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(CompletableFuture.completedFuture(response))).get();
+        assertSame(response, dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(new CompletableFuture<>())).get());
+        assertEquals(1, loads.get());
+        assertEquals(1, dcResultCache.getHits());
+        assertEquals(1, dcResultCache.getMisses());
+
+        //no-cache skips the cached answer, and joins the query in flight like any other caller
+        dcResultCache.get(KEY, DcResultCache.CacheControl.parse("no-cache"), () -> load(new CompletableFuture<>()));
+        dcResultCache.get(KEY, DcResultCache.CacheControl.parse("max-age=0"), () -> load(new CompletableFuture<>()));
+        assertEquals(2, loads.get());
+        assertEquals(1, dcResultCache.getCoalesced());
+    }
+
+    @Test
+    void cachesOnlyDefiniteAnswers() throws Exception {
+        dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT,
+                          () -> load(CompletableFuture.completedFuture(new BrregIncomingHandler.ToopResponse(HttpStatus.GATEWAY_TIMEOUT, "Request timed out")))).get();
+        dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT,
+                          () -> load(CompletableFuture.completedFuture(new BrregIncomingHandler.ToopResponse(HttpStatus.NOT_FOUND, "No route to country")))).get();
+        for (EEDMExceptionType exceptionType : new EEDMExceptionType[] {EEDMExceptionType.QUOTA_EXCEEDED, EEDMExceptionType.TIMEOUT,
+                                                                        EEDMExceptionType.INVALID_REQUEST}) {
+            dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT,
+                              () -> load(CompletableFuture.completedFuture(createErrorAnswer(exceptionType)))).get();
+        }
+        assertEquals(0, dcResultCache.size());
+
+        dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT,
+                          () -> load(CompletableFuture.completedFuture(createErrorAnswer(EEDMExceptionType.OBJECT_NOT_FOUND)))).get();
+        assertEquals(1, dcResultCache.size());
+        assertEquals(6, loads.get());
+    }
+
+    @Test
+    void noStoreIsNotCached() throws Exception {
+        dcResultCache.get(KEY, DcResultCache.CacheControl.parse("no-store"), () -> load(CompletableFuture.completedFuture(createFound()))).get();
+        assertEquals(0, dcResultCache.size());
+    }
+
+    @Test
+    void failedQueryIsSharedAndNotCached() {
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> remote = new CompletableFuture<>();
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> first = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(remote));
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> second = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(new CompletableFuture<>()));
+        remote.completeExceptionally(new IllegalStateException("send failed"));
+        assertThrows(ExecutionException.class, first::get);
+        assertThrows(ExecutionException.class, second::get);
+
+        //The failed query is no longer in flight, so the next caller starts a new one
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> third = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(new CompletableFuture<>()));
+        assertFalse(third.isDone());
+        assertEquals(2, loads.get());
+        assertEquals(0, dcResultCache.size());
+    }
+
+    @Test
+    void throwingLoaderFailsFutureAndClearsInFlight() {
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> failed = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> {
+            throw new IllegalStateException("no route");
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertFalse(dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, () -> load(new CompletableFuture<>())).isDone());
+    }
+
+    @Test
+    void interactiveCallerDoesNotJoinQueuedBulkQuery() throws Exception {
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> bulkRemote = new CompletableFuture<>();
+        final AtomicReference<Runnable> bulkSent = new AtomicReference<>();
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> bulk = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.BULK,
+                                                                                          onSent -> {
+                                                                                              bulkSent.set(onSent);
+                                                                                              return load(bulkRemote);
+                                                                                          });
+
+        //A bulk caller shares the queued bulk query, while an interactive caller sends its own
+        assertSame(bulk, dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.BULK, onSent -> load(new CompletableFuture<>())));
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> interactiveRemote = new CompletableFuture<>();
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> interactive = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.INTERACTIVE,
+                                                                                                 onSent -> load(interactiveRemote));
+        assertEquals(2, loads.get());
+
+        //Both classes now share the interactive query in flight
+        assertSame(interactive, dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.INTERACTIVE, onSent -> load(new CompletableFuture<>())));
+        assertSame(interactive, dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.BULK, onSent -> load(new CompletableFuture<>())));
+        assertEquals(2, loads.get());
+        assertEquals(3, dcResultCache.getCoalesced());
+
+        final BrregIncomingHandler.ToopResponse response = createFound();
+        interactiveRemote.complete(response);
+        assertSame(response, interactive.get());
+        assertFalse(bulk.isDone());
+    }
+
+    @Test
+    void interactiveCallerJoinsSentBulkQuery() throws Exception {
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> bulkRemote = new CompletableFuture<>();
+        final AtomicReference<Runnable> bulkSent = new AtomicReference<>();
+        final CompletableFuture<BrregIncomingHandler.ToopResponse> bulk = dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.BULK,
+                                                                                          onSent -> {
+                                                                                              bulkSent.set(onSent);
+                                                                                              return load(bulkRemote);
+                                                                                          });
+        bulkSent.get().run();
+
+        assertSame(bulk, dcResultCache.get(KEY, DcResultCache.CacheControl.DEFAULT, DcSendScheduler.Priority.INTERACTIVE, onSent -> load(new CompletableFuture<>())));
+        assertEquals(1, loads.get());
+
+        final BrregIncomingHandler.ToopResponse response = createFound();
+        bulkRemote.complete(response);
+        assertSame(response, bulk.get());
+    }
+
+    private CompletableFuture<BrregIncomingHandler.ToopResponse> load(final CompletableFuture<BrregIncomingHandler.ToopResponse> future) {
+        loads.incrementAndGet();
+        return future;
+    }
+
+    private static BrregIncomingHandler.ToopResponse createErrorAnswer(final EEDMExceptionType exceptionType) {
+        return BrregIncomingHandler.createErrorToopResponse(BrregIncomingHandler.createErrorResponse("req", exceptionType, EToopErrorOrigin.RESPONSE_CREATION,
+                                                                                                    "Remote error"));
+    }
+
+    private static BrregIncomingHandler.ToopResponse createFound() {
+        final BrregIncomingHandler.ToopResponse response = new BrregIncomingHandler.ToopResponse(HttpStatus.OK, null);
+        final Enhet enhet = new Enhet();
+        enhet.setOrganisasjonsnummer("5560000000");
+        response.setEnhet(enhet);
+        return response;
+    }
+
+}
@@ -0,0 +1,144 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class DcSendSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private DcSendScheduler dcSendScheduler;
+    private SimpleMeterRegistry meterRegistry;
+
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        dcSendScheduler = new DcSendScheduler();
+        ReflectionTestUtils.setField(dcSendScheduler, "sendConcurrency", 1);
+        ReflectionTestUtils.setField(dcSendScheduler, "interactiveWeight", 4);
+        ReflectionTestUtils.setField(dcSendScheduler, "maxQueueMillis", 10000L);
+        ReflectionTestUtils.setField(dcSendScheduler, "maxPendingInteractive", 1);
+        ReflectionTestUtils.setField(dcSendScheduler, "maxPendingBulk", 1);
+        ReflectionTestUtils.setField(dcSendScheduler, "meterRegistry", meterRegistry);
+        dcSendScheduler.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        dcSendScheduler.shutdown();
+    }
+
+    @Test
+    void parsesPriority() {
+        assertEquals(DcSendScheduler.Priority.BULK, DcSendScheduler.Priority.parse(" Bulk ", DcSendScheduler.Priority.INTERACTIVE));
+        assertEquals(DcSendScheduler.Priority.INTERACTIVE, DcSendScheduler.Priority.parse(null, DcSendScheduler.Priority.INTERACTIVE));
+        assertEquals(DcSendScheduler.Priority.BULK, DcSendScheduler.Priority.parse("", DcSendScheduler.Priority.BULK));
+        assertThrows(IllegalArgumentException.class, () -> DcSendScheduler.Priority.parse("urgent", DcSendScheduler.Priority.INTERACTIVE));
+    }
+
+    @Test
+    void interleavesClassesByWeight() throws Exception {
+        //Hold the only send thread, so the sends below queue up and are dispatched in scheduling order
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        assertTrue(dcSendScheduler.submit(DcSendScheduler.Priority.BULK, () -> {
+            blocked.countDown();
+            await(unblock);
+        }));
+        assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch done = new CountDownLatch(13);
+        for (int i=0; i<10; i++) {
+            dcSendScheduler.submit(DcSendScheduler.Priority.INTERACTIVE, () -> {
+                order.append('I');
+                done.countDown();
+            });
+        }
+        for (int i=0; i<3; i++) {
+            dcSendScheduler.submit(DcSendScheduler.Priority.BULK, () -> {
+                order.append('B');
+                done.countDown();
+            });
+        }
+        unblock.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("IIIIBIIIIBIIB", order.toString());
+    }
+
+    @Test
+    void onlyClassWaitingGetsAllCapacity() throws Exception {
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i=0; i<5; i++) {
+            dcSendScheduler.submit(DcSendScheduler.Priority.BULK, () -> {
+                order.append('B');
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("BBBBB", order.toString());
+    }
+
+    @Test
+    void rejectsSendsAfterShutdown() {
+        dcSendScheduler.shutdown();
+        assertFalse(dcSendScheduler.submit(DcSendScheduler.Priority.INTERACTIVE, () -> {}));
+    }
+
+    @Test
+    void pendingQuotaIsPerClass() throws Exception {
+        final DcSendScheduler.Permit interactive = dcSendScheduler.acquire(DcSendScheduler.Priority.INTERACTIVE, System.nanoTime());
+        assertNotNull(interactive);
+        assertNull(dcSendScheduler.acquire(DcSendScheduler.Priority.INTERACTIVE, System.nanoTime()));
+        assertEquals(1, meterRegistry.counter("toop.dc.pending.rejected", "priority", "interactive").count());
+
+        final DcSendScheduler.Permit bulk = dcSendScheduler.acquire(DcSendScheduler.Priority.BULK, System.nanoTime());
+        assertNotNull(bulk);
+
+        //A bulk caller waits for a slot until its deadline
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(bulk::release, 100, TimeUnit.MILLISECONDS);
+            final DcSendScheduler.Permit next = dcSendScheduler.acquire(DcSendScheduler.Priority.BULK, System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS));
+            assertNotNull(next);
+            next.release();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        //Releasing twice gives back only one slot
+        interactive.release();
+        interactive.release();
+        assertNotNull(dcSendScheduler.acquire(DcSendScheduler.Priority.INTERACTIVE, System.nanoTime()));
+        assertNull(dcSendScheduler.acquire(DcSendScheduler.Priority.INTERACTIVE, System.nanoTime()));
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
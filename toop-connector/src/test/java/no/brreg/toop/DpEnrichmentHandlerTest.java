@@ -0,0 +1,168 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class DpEnrichmentHandlerTest {
+    private static final String ORGNO = "974760673";
+    private static final long DEADLINE_MILLIS = 1000;
+    private static final Set<EToopConcept> CONCEPTS = Collections.unmodifiableSet(EnumSet.of(EToopConcept.COMPANY_NAME, EToopConcept.HAS_LEGAL_REPRESENTATIVE));
+
+    /**
+     * Answers its concepts after delayMillis, or fails if isFailing is set.
+     */
+    private static class StubSource {
+        private final String name;
+        private final EToopConcept concept;
+        private volatile long delayMillis = 0;
+        private volatile boolean isFailing = false;
+
+        private StubSource(final String name, final EToopConcept concept) {
+            this.name = name;
+            this.concept = concept;
+        }
+
+        private Map<EToopConcept,ConceptPojo.Builder> getConcepts(final Set<EToopConcept> concepts) throws GuardedDependency.UnavailableException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GuardedDependency.UnavailableException(name + " interrupted");
+            }
+            if (isFailing) {
+                throw new GuardedDependency.UnavailableException(name + " circuit is open");
+            }
+            final Map<EToopConcept,ConceptPojo.Builder> result = new EnumMap<>(EToopConcept.class);
+            if (concepts.contains(concept)) {
+                result.put(concept, ConceptPojo.builder().name(concept).valueText(name));
+            }
+            return result;
+        }
+    }
+
+    private final StubSource primary = new StubSource("enhet", EToopConcept.COMPANY_NAME);
+    private final StubSource secondary = new StubSource("roller", EToopConcept.HAS_LEGAL_REPRESENTATIVE);
+    private final RequestTracer requestTracer = new RequestTracer();
+    private DpEnrichmentHandler dpEnrichmentHandler;
+
+
+    @BeforeEach
+    void setUp() {
+        final EnhetDataSource enhetDataSource = new EnhetDataSource() {
+            @Override
+            public Map<EToopConcept,ConceptPojo.Builder> getConcepts(final String orgno, final Set<EToopConcept> concepts) throws GuardedDependency.UnavailableException {
+                return primary.getConcepts(concepts);
+            }
+        };
+        final DpDataSource rolleDataSource = new DpDataSource() {
+            @Override
+            public String getName() {
+                return secondary.name;
+            }
+
+            @Override
+            public Set<EToopConcept> getSupportedConcepts() {
+                return EnumSet.of(secondary.concept);
+            }
+
+            @Override
+            public Map<EToopConcept,ConceptPojo.Builder> getConcepts(final String orgno, final Set<EToopConcept> concepts) throws GuardedDependency.UnavailableException {
+                return secondary.getConcepts(concepts);
+            }
+        };
+
+        dpEnrichmentHandler = new DpEnrichmentHandler();
+        ReflectionTestUtils.setField(dpEnrichmentHandler, "deadlineMillis", DEADLINE_MILLIS);
+        ReflectionTestUtils.setField(dpEnrichmentHandler, "enhetDataSource", enhetDataSource);
+        ReflectionTestUtils.setField(dpEnrichmentHandler, "dataSources", Arrays.asList(enhetDataSource, rolleDataSource));
+        ReflectionTestUtils.setField(dpEnrichmentHandler, "meterRegistry", new SimpleMeterRegistry());
+
+        ReflectionTestUtils.setField(requestTracer, "meterRegistry", new SimpleMeterRegistry());
+        requestTracer.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        dpEnrichmentHandler.shutdown();
+        requestTracer.shutdown();
+    }
+
+    @Test
+    void asksSourcesConcurrently() {
+        primary.delayMillis = 600;
+        secondary.delayMillis = 600;
+
+        final long started = System.nanoTime();
+        final DpEnrichmentHandler.Result result = enrich();
+        assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(DEADLINE_MILLIS), "Sources were asked one after the other");
+        assertEquals(DpEnrichmentHandler.Status.FOUND, result.getStatus());
+        assertNotNull(result.getConcept(EToopConcept.COMPANY_NAME));
+        assertNotNull(result.getConcept(EToopConcept.HAS_LEGAL_REPRESENTATIVE));
+    }
+
+    @Test
+    void slowSecondarySourceMissesSharedDeadline() {
+        primary.delayMillis = 600;
+        secondary.delayMillis = 5000;
+
+        final long started = System.nanoTime();
+        final DpEnrichmentHandler.Result result = enrich();
+        //The deadline is shared, so the secondary source doesn't get a full deadline of its own after the primary has answered
+        assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(DEADLINE_MILLIS + 500));
+        assertEquals(DpEnrichmentHandler.Status.FOUND, result.getStatus());
+        assertNotNull(result.getConcept(EToopConcept.COMPANY_NAME));
+        assertNull(result.getConcept(EToopConcept.HAS_LEGAL_REPRESENTATIVE));
+    }
+
+    @Test
+    void failingSecondarySourceOnlyLeavesItsConcepts() {
+        secondary.isFailing = true;
+
+        final DpEnrichmentHandler.Result result = enrich();
+        assertEquals(DpEnrichmentHandler.Status.FOUND, result.getStatus());
+        assertNotNull(result.getConcept(EToopConcept.COMPANY_NAME));
+        assertNull(result.getConcept(EToopConcept.HAS_LEGAL_REPRESENTATIVE));
+    }
+
+    @Test
+    void failingPrimarySourceIsUnavailable() {
+        primary.isFailing = true;
+
+        final DpEnrichmentHandler.Result result = enrich();
+        assertEquals(DpEnrichmentHandler.Status.UNAVAILABLE, result.getStatus());
+        assertNotNull(result.getConcept(EToopConcept.HAS_LEGAL_REPRESENTATIVE));
+    }
+
+    @Test
+    void slowPrimarySourceIsUnavailable() {
+        primary.delayMillis = 5000;
+
+        assertEquals(DpEnrichmentHandler.Status.UNAVAILABLE, enrich().getStatus());
+    }
+
+    private DpEnrichmentHandler.Result enrich() {
+        return dpEnrichmentHandler.enrich(ORGNO, CONCEPTS, requestTracer.startTrace("dp"));
+    }
+
+}
@@ -0,0 +1,116 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+import eu.toop.commons.codelist.EPredefinedDocumentTypeIdentifier;
+import eu.toop.commons.codelist.EPredefinedProcessIdentifier;
+import eu.toop.connector.api.me.model.MEMessage;
+import eu.toop.connector.api.me.model.MEPayload;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class DpResponseStoreTest {
+    private static final String KEY = DpResponseStore.getKey("request-1", CountryCodeCache.COUNTRY_SCHEME, "SE");
+
+    private DpResponseStore dpResponseStore;
+    private SimpleMeterRegistry meterRegistry;
+
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        dpResponseStore = new DpResponseStore();
+        ReflectionTestUtils.setField(dpResponseStore, "meterRegistry", meterRegistry);
+    }
+
+    @Test
+    void duplicateOfRequestInProgressIsReported() {
+        assertNull(dpResponseStore.begin(KEY));
+        final DpResponseStore.Entry duplicate = dpResponseStore.begin(KEY);
+        assertNotNull(duplicate);
+        assertFalse(duplicate.isCompleted());
+        assertEquals(1, meterRegistry.counter("toop.dp.duplicates", "state", "in_progress").count());
+
+        assertNull(dpResponseStore.begin(DpResponseStore.getKey("request-1", CountryCodeCache.COUNTRY_SCHEME, "DK")));
+    }
+
+    @Test
+    void duplicateOfAnsweredRequestGetsStoredResponse() {
+        final MEMessage message = createMessage();
+        assertNull(dpResponseStore.begin(KEY));
+        dpResponseStore.complete(KEY, null, message);
+
+        final DpResponseStore.Entry duplicate = dpResponseStore.begin(KEY);
+        assertTrue(duplicate.isCompleted());
+        assertSame(message, duplicate.getMessage());
+        assertEquals(1, meterRegistry.counter("toop.dp.duplicates", "state", "completed").count());
+    }
+
+    @Test
+    void abandonedRequestIsProcessedAgain() {
+        assertNull(dpResponseStore.begin(KEY));
+        dpResponseStore.abandonIfIncomplete(KEY);
+        assertNull(dpResponseStore.begin(KEY));
+
+        //An answered request is kept
+        dpResponseStore.complete(KEY, null, createMessage());
+        dpResponseStore.abandonIfIncomplete(KEY);
+        assertNotNull(dpResponseStore.begin(KEY));
+    }
+
+    @Test
+    void expiredEntryIsProcessedAgain() {
+        assertNull(dpResponseStore.begin(KEY));
+        dpResponseStore.complete(KEY, null, createMessage());
+        setCreated(KEY, LocalDateTime.now().minus(Duration.ofMinutes(11)));
+
+        assertNull(dpResponseStore.begin(KEY));
+        assertFalse(dpResponseStore.begin(KEY).isCompleted());
+        assertEquals(1, dpResponseStore.size());
+    }
+
+    @Test
+    void keepsAtMostMaxEntries() {
+        for (int i=0; i<1500; i++) {
+            dpResponseStore.begin(DpResponseStore.getKey("request-" + i, CountryCodeCache.COUNTRY_SCHEME, "SE"));
+        }
+        assertEquals(1000, dpResponseStore.size());
+        assertNull(dpResponseStore.begin(DpResponseStore.getKey("request-0", CountryCodeCache.COUNTRY_SCHEME, "SE")));
+        assertNotNull(dpResponseStore.begin(DpResponseStore.getKey("request-1499", CountryCodeCache.COUNTRY_SCHEME, "SE")));
+    }
+
+    private void setCreated(final String key, final LocalDateTime created) {
+        final Map<?,?> entries = (Map<?,?>) ReflectionTestUtils.getField(dpResponseStore, "entries");
+        ReflectionTestUtils.setField(entries.get(key), "created", created);
+    }
+
+    private static MEMessage createMessage() {
+        return MEMessage.builder().senderID(SimpleIdentifierFactory.INSTANCE.createParticipantIdentifier(CountryCodeCache.COUNTRY_SCHEME, "NO"))
+                                  .receiverID(SimpleIdentifierFactory.INSTANCE.createParticipantIdentifier(CountryCodeCache.COUNTRY_SCHEME, "SE"))
+                                  .docTypeID(EPredefinedDocumentTypeIdentifier.QUERYRESPONSE_TOOP_EDM_V2_1)
+                                  .processID(EPredefinedProcessIdentifier.URN_EU_TOOP_PROCESS_DATAQUERY)
+                                  .payload(MEPayload.builder()
+                                                    .mimeTypeRegRep()
+                                                    .randomContentID()
+                                                    .data("<response/>".getBytes(StandardCharsets.UTF_8))
+                                                    .build())
+                                  .build();
+    }
+
+}
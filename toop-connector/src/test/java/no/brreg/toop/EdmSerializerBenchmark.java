@@ -0,0 +1,101 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.EDMErrorResponse;
+import eu.toop.edm.EDMRequest;
+import eu.toop.edm.EDMResponse;
+import eu.toop.edm.model.AgentPojo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time and allocation per EDM document, serialized through EdmSerializer's pooled buffers compared with the
+ * library's getAsBytes(), which the connector used before. Not run by the unit tests. Run it with
+ *
+ *   mvn test-compile exec:java -Dexec.mainClass=no.brreg.toop.EdmSerializerBenchmark -Dexec.classpathScope=test
+ *
+ * and compare gc.alloc.rate.norm (bytes allocated per document) and the average time of the pairs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EdmSerializerBenchmark {
+    private EdmSerializer edmSerializer;
+    private EDMRequest edmRequest;
+    private EDMResponse edmResponse;
+    private EDMErrorResponse edmErrorResponse;
+
+
+    @Setup
+    public void setUp() {
+        edmSerializer = new EdmSerializer();
+        ReflectionTestUtils.setField(edmSerializer, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(edmSerializer, "loggerHandler", new LoggerHandler());
+
+        final AgentPojo agent = EdmSerializer.createWarmUpAgent();
+        edmRequest = EdmSerializer.createWarmUpRequest(agent);
+        edmResponse = EdmSerializer.createWarmUpResponse(agent);
+        edmErrorResponse = EdmSerializer.createWarmUpErrorResponse(agent);
+    }
+
+    @Benchmark
+    public byte[] requestPooled() {
+        return edmSerializer.serialize(edmRequest);
+    }
+
+    @Benchmark
+    public byte[] requestGetAsBytes() {
+        return edmRequest.getWriter().getAsBytes();
+    }
+
+    @Benchmark
+    public byte[] responsePooled() {
+        return edmSerializer.serialize(edmResponse);
+    }
+
+    @Benchmark
+    public byte[] responseGetAsBytes() {
+        return edmResponse.getWriter().getAsBytes();
+    }
+
+    @Benchmark
+    public byte[] errorResponsePooled() {
+        return edmSerializer.serialize(edmErrorResponse);
+    }
+
+    @Benchmark
+    public byte[] errorResponseGetAsBytes() {
+        return edmErrorResponse.getWriter().getAsBytes();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(EdmSerializerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,102 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import eu.toop.edm.CToopEDM;
+import eu.toop.edm.EDMErrorResponse;
+import eu.toop.edm.EDMRequest;
+import eu.toop.edm.EDMResponse;
+import eu.toop.edm.model.AgentPojo;
+import eu.toop.edm.model.ConceptPojo;
+import eu.toop.edm.pilot.gbm.EToopConcept;
+import eu.toop.regrep.ERegRepResponseStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class EdmSerializerTest {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private EdmSerializer edmSerializer;
+    private AgentPojo agent;
+
+
+    @BeforeEach
+    void setUp() {
+        edmSerializer = new EdmSerializer();
+        ReflectionTestUtils.setField(edmSerializer, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(edmSerializer, "loggerHandler", new LoggerHandler());
+        agent = EdmSerializer.createWarmUpAgent();
+    }
+
+    @Test
+    void serializesLikeTheLibraryWriter() {
+        final EDMRequest edmRequest = EdmSerializer.createWarmUpRequest(agent);
+        final EDMResponse edmResponse = EdmSerializer.createWarmUpResponse(agent);
+        final EDMErrorResponse edmErrorResponse = EdmSerializer.createWarmUpErrorResponse(agent);
+
+        assertArrayEquals(edmRequest.getWriter().getAsBytes(), edmSerializer.serialize(edmRequest));
+        assertArrayEquals(edmResponse.getWriter().getAsBytes(), edmSerializer.serialize(edmResponse));
+        assertArrayEquals(edmErrorResponse.getWriter().getAsBytes(), edmSerializer.serialize(edmErrorResponse));
+    }
+
+    @Test
+    void reusesBufferForOrdinaryDocuments() {
+        edmSerializer.serialize(EdmSerializer.createWarmUpResponse(agent));
+        final ByteArrayOutputStream buffer = getPooledBuffer();
+        edmSerializer.serialize(EdmSerializer.createWarmUpResponse(agent));
+        assertSame(buffer, getPooledBuffer());
+    }
+
+    @Test
+    void dropsBufferGrownByLargeDocument() {
+        edmSerializer.serialize(EdmSerializer.createWarmUpResponse(agent));
+        final ByteArrayOutputStream buffer = getPooledBuffer();
+
+        final byte[] serialized = edmSerializer.serialize(createLargeResponse(256 * 1024));
+        assertTrue(serialized.length > 256 * 1024);
+
+        final ByteArrayOutputStream newBuffer = getPooledBuffer();
+        assertNotSame(buffer, newBuffer);
+        assertEquals(INITIAL_BUFFER_SIZE, ((byte[]) ReflectionTestUtils.getField(newBuffer, "buf")).length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ByteArrayOutputStream getPooledBuffer() {
+        return ((ThreadLocal<ByteArrayOutputStream>) ReflectionTestUtils.getField(edmSerializer, "buffers")).get();
+    }
+
+    private EDMResponse createLargeResponse(final int nameLength) {
+        final char[] name = new char[nameLength];
+        Arrays.fill(name, 'x');
+        return EDMResponse.builderConcept()
+                .concept(ConceptPojo.builder()
+                                    .randomID()
+                                    .name(EToopConcept.REGISTERED_ORGANIZATION)
+                                    .addChild(ConceptPojo.builder()
+                                                         .randomID()
+                                                         .name(EToopConcept.COMPANY_NAME)
+                                                         .valueText(new String(name))
+                                                         .build())
+                                    .build())
+                .requestID(UUID.randomUUID().toString())
+                .dataProvider(agent)
+                .issueDateTimeNow()
+                .specificationIdentifier(CToopEDM.SPECIFICATION_IDENTIFIER_TOOP_EDM_V21)
+                .responseStatus(ERegRepResponseStatus.SUCCESS)
+                .build();
+    }
+
+}
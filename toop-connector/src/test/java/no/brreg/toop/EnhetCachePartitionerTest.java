@@ -0,0 +1,161 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import kong.unirest.HttpResponse;
+import kong.unirest.Unirest;
+import no.brreg.toop.generated.model.Enhet;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * The partitioned Enhet cache across connector nodes running in separate JVMs. This JVM is node a, and
+ * nodes b and c are started by ClusterTestNode.
+ */
+class EnhetCachePartitionerTest {
+    private static final String SECRET = "partition-test-secret";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static String peers;
+    private static ClusterTestNode.Handle nodeB;
+    private static ClusterTestNode.Handle nodeC;
+    private static EnhetCachePartitioner partitionerA;
+
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        Application.initializeUnirestObjectMapper();
+        peers = "a=http://localhost:" + ClusterTestNode.getFreePort() +
+                ",b=http://localhost:" + ClusterTestNode.getFreePort() +
+                ",c=http://localhost:" + ClusterTestNode.getFreePort();
+        nodeB = ClusterTestNode.start("b", getPort("b"), peers, SECRET);
+        nodeC = ClusterTestNode.start("c", getPort("c"), peers, SECRET);
+        nodeB.awaitReady();
+        nodeC.awaitReady();
+        partitionerA = ClusterTestNode.createPartitioner(ClusterTestNode.createPeers("a", peers, SECRET));
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        if (nodeB != null) {
+            nodeB.close();
+        }
+        if (nodeC != null) {
+            nodeC.close();
+        }
+    }
+
+    @Test
+    void fetchesEnhetFromOwningNode() throws Exception {
+        final Set<String> remoteOwners = new HashSet<>();
+        for (int i=0; i<50; i++) {
+            final String orgno = String.valueOf(910000000 + i);
+            final String owner = partitionerA.getRemoteOwner(orgno);
+            if (owner == null) {
+                continue;
+            }
+            remoteOwners.add(owner);
+
+            final EnhetsregisterCache.Lookup lookup = partitionerA.getFromOwner(owner, orgno);
+            assertNotNull(lookup);
+            final Enhet enhet = lookup.getEnhet();
+            assertEquals(orgno, enhet.getOrganisasjonsnummer());
+            assertEquals("node " + owner, enhet.getNavn());
+            assertEquals(orgno.endsWith("9"), lookup.isStale(), orgno);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")), remoteOwners);
+    }
+
+    @Test
+    void staleAnswersAreFlaggedAndNotNearCached() throws Exception {
+        int stale = 0;
+        for (int i=0; i<50; i++) {
+            final String orgno = String.valueOf(940000000 + i*10 + 9);
+            final String owner = partitionerA.getRemoteOwner(orgno);
+            if (owner == null) {
+                continue;
+            }
+            stale++;
+            final int nearCacheSize = partitionerA.getNearCacheSize();
+            assertTrue(partitionerA.getFromOwner(owner, orgno).isStale(), orgno);
+            assertTrue(partitionerA.getFromOwner(owner, orgno).isStale(), orgno);
+            assertEquals(nearCacheSize, partitionerA.getNearCacheSize());
+
+            final HttpResponse<String> response = Unirest.get("http://localhost:" + getPort(owner) + "/internal/enhet/" + orgno)
+                    .header(ClusterPeers.SECRET_HEADER, SECRET)
+                    .asString();
+            assertEquals(GuardedDependency.STALE_WARNING, response.getHeaders().getFirst("Warning"));
+        }
+        assertTrue(stale > 0);
+    }
+
+    @Test
+    void preloadsOnOwningNodeAndReportsAlreadyCached() throws Exception {
+        int remote = 0;
+        for (int i=0; i<50; i++) {
+            final String orgno = String.valueOf(930000000 + i);
+            final String owner = partitionerA.getRemoteOwner(orgno);
+            if (owner == null) {
+                continue;
+            }
+            remote++;
+            assertEquals(orgno.endsWith("0") ? EnhetsregisterCache.PreloadResult.CACHED : EnhetsregisterCache.PreloadResult.FETCHED,
+                         partitionerA.preloadOnOwner(owner, orgno), orgno);
+        }
+        assertTrue(remote > 0);
+    }
+
+    @Test
+    void ownersAgreeAcrossNodes() {
+        final EnhetCachePartitioner partitionerB = ClusterTestNode.createPartitioner(ClusterTestNode.createPeers("b", peers, SECRET));
+        for (int i=0; i<50; i++) {
+            final String orgno = String.valueOf(920000000 + i);
+            final String ownerSeenByA = partitionerA.getRemoteOwner(orgno);
+            final String ownerSeenByB = partitionerB.getRemoteOwner(orgno);
+            assertEquals(ownerSeenByA==null ? "a" : ownerSeenByA, ownerSeenByB==null ? "b" : ownerSeenByB, orgno);
+        }
+    }
+
+    @Test
+    void rejectsEnhetLookupsWithoutClusterSecret() {
+        final String url = "http://localhost:" + getPort("c") + "/internal/enhet/910000000";
+        assertEquals(HttpStatus.FORBIDDEN.value(), Unirest.get(url).asString().getStatus());
+        assertEquals(HttpStatus.FORBIDDEN.value(), Unirest.get(url)
+                .header(ClusterPeers.SECRET_HEADER, "wrong-secret")
+                .asString().getStatus());
+        assertEquals(HttpStatus.OK.value(), Unirest.get(url)
+                .header(ClusterPeers.SECRET_HEADER, SECRET)
+                .asString().getStatus());
+    }
+
+    @Test
+    void partitioningWithoutClusterSecretFailsToStart() throws Exception {
+        assertThrows(IllegalStateException.class, () -> ClusterTestNode.createPartitioner(ClusterTestNode.createPeers("a", peers, "")));
+
+        try (ClusterTestNode.Handle node = ClusterTestNode.start("b", String.valueOf(ClusterTestNode.getFreePort()), peers, "", "single")) {
+            final Integer exitCode = node.awaitExit(TIMEOUT_SECONDS);
+            assertNotNull(exitCode, "Node without secret is still running");
+            assertNotEquals(0, exitCode.intValue());
+            assertTrue(node.getOutput().contains("toop.cluster.secret must be set when toop.cluster.enhet-partitioning = true"), node.getOutput());
+        }
+    }
+
+    private static String getPort(final String nodeId) {
+        final String url = ClusterTestNode.createPeers("a", peers, SECRET).getPeerUrls().get(nodeId);
+        return url.substring(url.lastIndexOf(':')+1);
+    }
+
+}
@@ -0,0 +1,76 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.generated.model.Adresse;
+import no.brreg.toop.generated.model.Enhet;
+import no.brreg.toop.generated.model.Organisasjonsform;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class EnhetDictionaryTest {
+
+    @Test
+    void sharesEqualValues() {
+        final EnhetDictionary dictionary = new EnhetDictionary();
+        final Enhet first = dictionary.canonicalize(createEnhet("910000000"));
+        final Enhet second = dictionary.canonicalize(createEnhet("910000001"));
+        assertSame(first.getOrganisasjonsform().getBeskrivelse(), second.getOrganisasjonsform().getBeskrivelse());
+        assertSame(first.getForretningsadresse().getPoststed(), second.getForretningsadresse().getPoststed());
+        assertEquals(1, (int) dictionary.getSizes().get(EnhetDictionary.Field.ORGANISASJONSFORM_BESKRIVELSE.getName()));
+    }
+
+    @Test
+    void measuresOnlyLiveEntries() {
+        final EnhetDictionary dictionary = new EnhetDictionary();
+        final List<Enhet> cached = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            cached.add(dictionary.canonicalize(createEnhet(String.valueOf(910000000 + i))));
+        }
+
+        //Three entries share four values, so each value is held once instead of three times
+        final long perEntry = EnhetDictionary.getStringBytes("AS") + EnhetDictionary.getStringBytes("Aksjeselskap")
+                              + EnhetDictionary.getStringBytes("NO") + EnhetDictionary.getStringBytes("OSLO");
+        final EnhetDictionary.Savings savings = dictionary.measure(cached);
+        assertEquals(2 * 4, savings.getDeduplicated());
+        assertEquals(2 * perEntry, savings.getBytesSaved());
+
+        //Evicted entries no longer count
+        final EnhetDictionary.Savings afterEviction = dictionary.measure(cached.subList(0, 1));
+        assertEquals(0, afterEviction.getDeduplicated());
+        assertEquals(0, afterEviction.getBytesSaved());
+        assertEquals(0, dictionary.measure(Collections.emptyList()).getBytesSaved());
+    }
+
+    @Test
+    void estimatesStringSizes() {
+        //20 characters outside Latin-1 always take two bytes each: 24 + 16 + 40 bytes
+        assertEquals(80, EnhetDictionary.getStringBytes("ĀĀĀĀĀĀĀĀĀĀĀĀĀĀĀĀĀĀĀĀ"));
+        //Latin-1 takes one byte each with compact strings (24 + 16 + 20, padded), else two
+        final long latin1 = EnhetDictionary.getStringBytes("ØØØØØØØØØØØØØØØØØØØØ");
+        assertTrue(latin1==64 || latin1==80, String.valueOf(latin1));
+    }
+
+    private static Enhet createEnhet(final String orgno) {
+        //Fresh string instances, as if each Enhet was deserialized separately
+        final Organisasjonsform organisasjonsform = new Organisasjonsform();
+        organisasjonsform.setKode(new String("AS"));
+        organisasjonsform.setBeskrivelse(new String("Aksjeselskap"));
+        final Adresse adresse = new Adresse();
+        adresse.setLandkode(new String("NO"));
+        adresse.setPoststed(new String("OSLO"));
+        final Enhet enhet = new Enhet().organisasjonsnummer(orgno).navn("Testfirma " + orgno);
+        enhet.setOrganisasjonsform(organisasjonsform);
+        enhet.setForretningsadresse(adresse);
+        return enhet;
+    }
+
+}
@@ -0,0 +1,39 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class EnhetPreloadHandlerTest {
+
+    @Test
+    void parsesOrgnosWithAnySeparator() {
+        assertEquals(Arrays.asList("910000000", "910000001", "910000002", "910000003", "910000004"),
+                     EnhetPreloadHandler.parseOrgnos("910000000\n910000001,910000002; 910000003\r\n\t910000004\n"));
+    }
+
+    @Test
+    void parsesJoinedJsonArray() {
+        //Actuator converts a JSON array to a comma separated string
+        assertEquals(Arrays.asList("910000000", "910000001"), EnhetPreloadHandler.parseOrgnos("910000000,910000001"));
+    }
+
+    @Test
+    void parsesEmptyInput() {
+        assertEquals(Collections.emptyList(), EnhetPreloadHandler.parseOrgnos(null));
+        assertEquals(Collections.emptyList(), EnhetPreloadHandler.parseOrgnos(""));
+        assertEquals(Collections.emptyList(), EnhetPreloadHandler.parseOrgnos(" ,;\n"));
+    }
+
+    @Test
+    void keepsMalformedOrgnosForStartToCount() {
+        assertEquals(Arrays.asList("91000000x", "123"), EnhetPreloadHandler.parseOrgnos("91000000x 123"));
+    }
+
+}
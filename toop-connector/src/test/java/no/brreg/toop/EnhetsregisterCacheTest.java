@@ -0,0 +1,83 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.brreg.toop.generated.model.Enhet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class EnhetsregisterCacheTest {
+    private static final String URL = "https://data.brreg.no/enhetsregisteret/api/enheter/";
+
+    private final AtomicInteger upstreamStatus = new AtomicInteger(200);
+    private EnhetsregisterCache enhetsregisterCache;
+
+
+    @BeforeEach
+    void setUp() {
+        //Enhetsregisteret answers with upstreamStatus, and with an Enhet named "fresh" when it is found
+        enhetsregisterCache = new EnhetsregisterCache() {
+            @Override
+            Enhet fetchEnhetOrUnderenhet(final String orgno) throws IOException {
+                return isFound(upstreamStatus.get(), URL + orgno) ? new Enhet().organisasjonsnummer(orgno).navn("fresh") : null;
+            }
+        };
+        ReflectionTestUtils.setField(enhetsregisterCache, "loggerHandler", new LoggerHandler());
+        ReflectionTestUtils.setField(enhetsregisterCache, "meterRegistry", new SimpleMeterRegistry());
+    }
+
+    @Test
+    void onlyGoneOrgnosAreNotFound() throws Exception {
+        assertTrue(EnhetsregisterCache.isFound(200, URL));
+        assertFalse(EnhetsregisterCache.isFound(404, URL));
+        assertFalse(EnhetsregisterCache.isFound(410, URL));
+        for (int status : new int[] {400, 403, 408, 429, 500, 503}) {
+            assertThrows(IOException.class, () -> EnhetsregisterCache.isFound(status, URL), Integer.toString(status));
+        }
+    }
+
+    @Test
+    void rateLimitedUpstreamServesStaleEntry() throws Exception {
+        final String orgno = "974760001";
+        assertTrue(enhetsregisterCache.restoreEnhet(new Enhet().organisasjonsnummer(orgno).navn("stale"), LocalDateTime.now().minusDays(2)));
+
+        upstreamStatus.set(429);
+        for (int i=0; i<2; i++) {
+            //The entry is kept, so it is served again rather than removed as not found
+            final EnhetsregisterCache.Lookup lookup = enhetsregisterCache.lookupLocalEnhet(orgno);
+            assertNotNull(lookup);
+            assertTrue(lookup.isStale());
+            assertEquals("stale", lookup.getEnhet().getNavn());
+        }
+
+        upstreamStatus.set(200);
+        final EnhetsregisterCache.Lookup lookup = enhetsregisterCache.lookupLocalEnhet(orgno);
+        assertFalse(lookup.isStale());
+        assertEquals("fresh", lookup.getEnhet().getNavn());
+    }
+
+    @Test
+    void goneOrgnoIsRemoved() throws Exception {
+        final String orgno = "974760002";
+        assertTrue(enhetsregisterCache.restoreEnhet(new Enhet().organisasjonsnummer(orgno).navn("stale"), LocalDateTime.now().minusDays(2)));
+
+        upstreamStatus.set(410);
+        assertNull(enhetsregisterCache.lookupLocalEnhet(orgno));
+        assertTrue(enhetsregisterCache.restoreEnhet(new Enhet().organisasjonsnummer(orgno).navn("restored"), LocalDateTime.now()));
+    }
+
+}
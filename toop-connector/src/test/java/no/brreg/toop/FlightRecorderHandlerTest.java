@@ -0,0 +1,60 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class FlightRecorderHandlerTest {
+
+    @Test
+    void keepsOnlyNewestDumps(@TempDir final Path directory) throws Exception {
+        for (String name : Arrays.asList("toop-20260101-120000.jfr", "toop-20260101-130000.jfr", "toop-20260102-080000.jfr", "toop-20260103-000000.jfr")) {
+            Files.createFile(directory.resolve(name));
+        }
+        final Path other = Files.createFile(directory.resolve("other.jfr"));
+
+        final List<Path> deleted = FlightRecorderHandler.deleteOldDumps(directory, 2);
+        assertEquals(Arrays.asList(directory.resolve("toop-20260101-120000.jfr"), directory.resolve("toop-20260101-130000.jfr")), deleted);
+        assertTrue(Files.exists(directory.resolve("toop-20260102-080000.jfr")));
+        assertTrue(Files.exists(directory.resolve("toop-20260103-000000.jfr")));
+        assertTrue(Files.exists(other));
+
+        assertTrue(FlightRecorderHandler.deleteOldDumps(directory, 2).isEmpty());
+    }
+
+    @Test
+    void alwaysKeepsNewestDump(@TempDir final Path directory) throws Exception {
+        Files.createFile(directory.resolve("toop-20260101-120000.jfr"));
+        Files.createFile(directory.resolve("toop-20260101-130000.jfr"));
+
+        assertEquals(1, FlightRecorderHandler.deleteOldDumps(directory, 0).size());
+        assertFalse(Files.exists(directory.resolve("toop-20260101-120000.jfr")));
+        assertTrue(Files.exists(directory.resolve("toop-20260101-130000.jfr")));
+    }
+
+    @Test
+    void rejectsUnboundedRecordings() {
+        final FlightRecorderHandler flightRecorderHandler = new FlightRecorderHandler();
+        ReflectionTestUtils.setField(flightRecorderHandler, "loggerHandler", new LoggerHandler());
+
+        assertThrows(IllegalArgumentException.class, () -> flightRecorderHandler.start(FlightRecorderHandler.MAX_MAX_AGE.plusMinutes(1), FlightRecorderHandler.DEFAULT_MAX_SIZE_MB));
+        assertThrows(IllegalArgumentException.class, () -> flightRecorderHandler.start(Duration.ZERO, FlightRecorderHandler.DEFAULT_MAX_SIZE_MB));
+        assertThrows(IllegalArgumentException.class, () -> flightRecorderHandler.start(FlightRecorderHandler.DEFAULT_MAX_AGE, FlightRecorderHandler.MAX_MAX_SIZE_MB + 1));
+        assertThrows(IllegalArgumentException.class, () -> flightRecorderHandler.start(FlightRecorderHandler.DEFAULT_MAX_AGE, 0));
+    }
+
+}
@@ -0,0 +1,49 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class HyperLogLogTest {
+    private static final int PRECISION = 12;
+
+
+    @Test
+    void emptyEstimatesZero() {
+        assertEquals(0, new HyperLogLog(PRECISION).estimate());
+    }
+
+    @Test
+    void estimatesSmallCardinalities() {
+        final HyperLogLog hyperLogLog = new HyperLogLog(PRECISION);
+        for (int k=0; k<100; k++) {
+            hyperLogLog.add(CountMinSketchTest.hash(k));
+        }
+        assertEquals(100, hyperLogLog.estimate(), 5);
+    }
+
+    @Test
+    void estimatesLargeCardinalitiesWithinError() {
+        final HyperLogLog hyperLogLog = new HyperLogLog(PRECISION);
+        for (int k=0; k<100000; k++) {
+            hyperLogLog.add(CountMinSketchTest.hash(k));
+        }
+        //Standard error is 1.6% at precision 12
+        assertEquals(100000, hyperLogLog.estimate(), 5000);
+    }
+
+    @Test
+    void ignoresDuplicates() {
+        final HyperLogLog hyperLogLog = new HyperLogLog(PRECISION);
+        for (int round=0; round<10; round++) {
+            for (int k=0; k<1000; k++) {
+                hyperLogLog.add(CountMinSketchTest.hash(k));
+            }
+        }
+        assertEquals(1000, hyperLogLog.estimate(), 50);
+    }
+
+}
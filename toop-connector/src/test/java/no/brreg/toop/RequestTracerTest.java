@@ -0,0 +1,116 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class RequestTracerTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RequestTracer requestTracer = new RequestTracer();
+
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(requestTracer, "logThresholdMillis", 5000L);
+        ReflectionTestUtils.setField(requestTracer, "meterRegistry", meterRegistry);
+        requestTracer.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        requestTracer.shutdown();
+    }
+
+    @Test
+    void recordsStagesOfFinishedTrace() throws Exception {
+        final RequestTracer.Trace trace = requestTracer.startTrace("dc");
+        trace.setAttribute("country", "SE");
+        try (RequestTracer.Span span = trace.startSpan("edm-build")) {
+            Thread.sleep(20);
+        }
+        try (RequestTracer.Span span = trace.startSpan("as4-send")) {
+            Thread.sleep(20);
+        }
+        assertTrue(requestTracer.getSlowestTraces(null, 10).isEmpty());
+        requestTracer.finish(trace, "OK");
+
+        final List<SlowTraceProcessor.FinishedTrace> traces = requestTracer.getSlowestTraces(null, 10);
+        assertEquals(1, traces.size());
+        final SlowTraceProcessor.FinishedTrace finishedTrace = traces.get(0);
+        assertEquals(trace.getTraceId(), finishedTrace.getTraceId());
+        assertEquals("dc", finishedTrace.getKind());
+        assertEquals("OK", finishedTrace.getStatus());
+        assertEquals("SE", finishedTrace.getAttributes().get("country"));
+        assertFalse(finishedTrace.getAttributes().containsKey("toop.kind"));
+        assertEquals(2, finishedTrace.getStages().size());
+        assertEquals("edm-build", finishedTrace.getStages().get(0).getName());
+        assertEquals("as4-send", finishedTrace.getStages().get(1).getName());
+        assertTrue(finishedTrace.getStages().get(1).getStartOffsetMillis() >= 20);
+        assertTrue(finishedTrace.getDurationMillis() >= 40);
+
+        final Timer timer = meterRegistry.find("toop.trace.stage").tags("kind", "dc", "stage", "as4-send").timer();
+        assertNotNull(timer);
+        assertEquals(1, timer.count());
+    }
+
+    @Test
+    void returnsSlowestTracesOfKindFirst() throws Exception {
+        for (long sleepMillis : new long[] {10, 60, 30}) {
+            final RequestTracer.Trace trace = requestTracer.startTrace("dc");
+            trace.setAttribute("sleep", Long.toString(sleepMillis));
+            Thread.sleep(sleepMillis);
+            requestTracer.finish(trace, "OK");
+        }
+        requestTracer.finish(requestTracer.startTrace("dp"), "OK");
+
+        final List<SlowTraceProcessor.FinishedTrace> traces = requestTracer.getSlowestTraces("dc", 2);
+        assertEquals(2, traces.size());
+        assertEquals("60", traces.get(0).getAttributes().get("sleep"));
+        assertEquals("30", traces.get(1).getAttributes().get("sleep"));
+        assertEquals(4, requestTracer.getSlowestTraces(null, 10).size());
+        assertEquals(1, requestTracer.getSlowestTraces("DP", 10).size());
+    }
+
+    @Test
+    void finishClosesOpenSpans() {
+        final RequestTracer.Trace trace = requestTracer.startTrace("dc");
+        trace.startSpan("await-response");
+        requestTracer.finish(trace, "TIMEOUT");
+        //Finishing twice is a no-op
+        requestTracer.finish(trace, "OK");
+
+        final List<SlowTraceProcessor.FinishedTrace> traces = requestTracer.getSlowestTraces(null, 10);
+        assertEquals(1, traces.size());
+        assertEquals("TIMEOUT", traces.get(0).getStatus());
+        assertEquals(1, traces.get(0).getStages().size());
+        assertEquals("await-response", traces.get(0).getStages().get(0).getName());
+    }
+
+    @Test
+    void activeTraceIsFoundByRequestIdUntilFinished() {
+        final RequestTracer.Trace trace = requestTracer.startTrace("dc");
+        requestTracer.bindRequestId(trace, "request-1");
+        assertSame(trace, requestTracer.getActiveTrace("request-1"));
+        assertNull(requestTracer.getActiveTrace(null));
+
+        requestTracer.finish(trace, "OK");
+        assertNull(requestTracer.getActiveTrace("request-1"));
+        assertEquals("request-1", requestTracer.getSlowestTraces("dc", 1).get(0).getRequestId());
+    }
+
+}
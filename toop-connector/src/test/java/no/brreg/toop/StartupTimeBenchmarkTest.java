@@ -0,0 +1,120 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+
+/**
+ * Time from launching the connector JVM to its first 200 from GET /query, started cold (no snapshot) and
+ * warm (from the snapshot the cold run wrote at shutdown). Each round runs one cold and one warm start.
+ *
+ * It starts the real application, so it needs the keystores and network access of a deployed connector,
+ * and only runs with -Dtoop.startup-benchmark=true. Extra application arguments, e.g. config locations,
+ * go in toop.startup-benchmark.args, and the number of rounds in toop.startup-benchmark.rounds (default 3):
+ *
+ *   mvn test -Dtest=StartupTimeBenchmarkTest -Dtoop.startup-benchmark=true -Dtoop.startup-benchmark.args="--spring.config.additional-location=..."
+ */
+@EnabledIfSystemProperty(named = "toop.startup-benchmark", matches = "true")
+class StartupTimeBenchmarkTest {
+    private static final long STARTUP_TIMEOUT_SECONDS = 300;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+    private static final long POLL_INTERVAL_MILLIS = 50;
+
+
+    @Test
+    void measuresTimeToFirstQuery(@TempDir final Path directory) throws Exception {
+        final int rounds = Integer.getInteger("toop.startup-benchmark.rounds", 3);
+        final Path snapshot = directory.resolve("snapshot.json.gz");
+        final List<Long> coldMillis = new ArrayList<>();
+        final List<Long> warmMillis = new ArrayList<>();
+
+        for (int round=0; round<rounds; round++) {
+            Files.deleteIfExists(snapshot);
+            coldMillis.add(timeToFirstQuery(directory, snapshot, "cold-" + round));
+            assertTrue(Files.exists(snapshot), "The cold start wrote no snapshot at shutdown");
+            warmMillis.add(timeToFirstQuery(directory, snapshot, "warm-" + round));
+        }
+
+        System.out.println("Time to first /query 200, cold: " + coldMillis + " ms (median " + median(coldMillis) + " ms)");
+        System.out.println("Time to first /query 200, warm: " + warmMillis + " ms (median " + median(warmMillis) + " ms)");
+    }
+
+    private long timeToFirstQuery(final Path directory, final Path snapshot, final String name) throws Exception {
+        final int port = ClusterTestNode.getFreePort();
+        final List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Application.class.getName());
+        command.add("--server.port=" + port);
+        command.add("--toop.snapshot.path=" + snapshot);
+        final String extraArgs = System.getProperty("toop.startup-benchmark.args", "").trim();
+        if (!extraArgs.isEmpty()) {
+            command.addAll(Arrays.asList(extraArgs.split("\\s+")));
+        }
+
+        final File log = directory.resolve(name + ".log").toFile();
+        final long started = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        try {
+            final long deadline = started + TimeUnit.SECONDS.toNanos(STARTUP_TIMEOUT_SECONDS);
+            while (System.nanoTime() < deadline) {
+                if (!process.isAlive()) {
+                    fail(name + " exited with " + process.exitValue() + ": " + new String(Files.readAllBytes(log.toPath())));
+                }
+                if (getStatus("http://localhost:" + port + "/query") == 200) {
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                }
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+            fail(name + " did not answer /query within " + STARTUP_TIMEOUT_SECONDS + " s. See " + log);
+            return -1;
+        } finally {
+            //A graceful stop, so the snapshot is written
+            process.destroy();
+            if (!process.waitFor(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static int getStatus(final String url) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(5000);
+            try {
+                return connection.getResponseCode();
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return -1; //Not listening yet
+        }
+    }
+
+    private static long median(final List<Long> values) {
+        final List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size()/2);
+    }
+
+}
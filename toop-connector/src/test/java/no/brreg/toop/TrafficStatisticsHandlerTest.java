@@ -0,0 +1,88 @@
+package no.brreg.toop;
+
+// This code is Public Domain. See LICENSE
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class TrafficStatisticsHandlerTest {
+    private TrafficStatisticsHandler trafficStatisticsHandler;
+
+
+    @BeforeEach
+    void setUp() {
+        //toop.traffic.window-minutes is 0, so windows only end on reset
+        trafficStatisticsHandler = new TrafficStatisticsHandler();
+    }
+
+    @Test
+    void findsHotKeysAmongManyColdOnes() {
+        //Hot keys first, interleaved with the cold ones, so they have to survive eviction from the candidates
+        for (int round=0; round<100; round++) {
+            for (int hot=0; hot<20; hot++) {
+                for (int i=0; i<20-hot; i++) {
+                    trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_ORGNO, "hot" + hot);
+                }
+            }
+            for (int cold=0; cold<100; cold++) {
+                trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_ORGNO, "cold" + round + "-" + cold);
+            }
+        }
+
+        final TrafficStatisticsHandler.DimensionStatistics statistics = getDimension(trafficStatisticsHandler.getStatistics(false, 10), TrafficStatisticsHandler.Dimension.DC_ORGNO);
+        final List<TrafficStatisticsHandler.KeyCount> top = statistics.getTop();
+        assertEquals(10, top.size());
+        for (int hot=0; hot<10; hot++) {
+            assertEquals("hot" + hot, top.get(hot).getKey());
+            assertTrue(top.get(hot).getCount() >= 100L * (20-hot), top.get(hot).getKey() + " undercounted");
+        }
+        assertEquals(100L * (210 + 100), statistics.getTotal());
+        assertEquals(20 + 100*100, statistics.getDistinct(), 500);
+    }
+
+    @Test
+    void keepsDimensionsApart() {
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DP_SENDER, "SE");
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DP_SENDER, "SE");
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_DESTINATION, "DK");
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_DESTINATION, null);
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DC_DESTINATION, "");
+
+        final TrafficStatisticsHandler.Statistics statistics = trafficStatisticsHandler.getStatistics(false, 10);
+        assertEquals(2, getDimension(statistics, TrafficStatisticsHandler.Dimension.DP_SENDER).getTotal());
+        assertEquals(1, getDimension(statistics, TrafficStatisticsHandler.Dimension.DP_SENDER).getDistinct());
+        assertEquals(1, getDimension(statistics, TrafficStatisticsHandler.Dimension.DC_DESTINATION).getTotal());
+        assertEquals(0, getDimension(statistics, TrafficStatisticsHandler.Dimension.DP_ORGNO).getTotal());
+    }
+
+    @Test
+    void resetStartsNewWindow() {
+        assertNull(trafficStatisticsHandler.getStatistics(true, 10));
+        trafficStatisticsHandler.record(TrafficStatisticsHandler.Dimension.DP_ORGNO, "910000000");
+
+        final TrafficStatisticsHandler.Statistics ended = trafficStatisticsHandler.reset(10);
+        assertNotNull(ended.getEnded());
+        assertEquals(1, getDimension(ended, TrafficStatisticsHandler.Dimension.DP_ORGNO).getTotal());
+
+        assertEquals(0, getDimension(trafficStatisticsHandler.getStatistics(false, 10), TrafficStatisticsHandler.Dimension.DP_ORGNO).getTotal());
+        assertEquals(1, getDimension(trafficStatisticsHandler.getStatistics(true, 10), TrafficStatisticsHandler.Dimension.DP_ORGNO).getTotal());
+    }
+
+    private static TrafficStatisticsHandler.DimensionStatistics getDimension(final TrafficStatisticsHandler.Statistics statistics, final TrafficStatisticsHandler.Dimension dimension) {
+        for (TrafficStatisticsHandler.DimensionStatistics dimensionStatistics : statistics.getDimensions()) {
+            if (dimensionStatistics.getDimension() == dimension) {
+                return dimensionStatistics;
+            }
+        }
+        throw new AssertionError("No statistics for " + dimension);
+    }
+
+}
@@ -0,0 +1,155 @@
+package no.brreg.toop.controller;
+
+// This code is Public Domain. See LICENSE
+
+import no.brreg.toop.CountryCodeCache;
+import no.brreg.toop.GuardedDependency;
+import no.brreg.toop.StartupReadinessIndicator;
+import no.brreg.toop.generated.model.CountryCode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class QueryApiImplTest {
+    private CountryCodeCache countryCodeCache;
+    private QueryApiImpl queryApi;
+
+
+    private static class StubStartupReadinessIndicator extends StartupReadinessIndicator {
+        @Override
+        public void markQueryServed() {
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        countryCodeCache = new CountryCodeCache();
+        queryApi = new QueryApiImpl();
+        ReflectionTestUtils.setField(queryApi, "countryCodeCache", countryCodeCache);
+        ReflectionTestUtils.setField(queryApi, "startupReadinessIndicator", new StubStartupReadinessIndicator());
+    }
+
+    @AfterEach
+    void tearDown() {
+        countryCodeCache.stopBackgroundRefresh();
+    }
+
+    @Test
+    void negotiatesGzip() {
+        assertTrue(QueryApiImpl.acceptsGzip("gzip"));
+        assertTrue(QueryApiImpl.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(QueryApiImpl.acceptsGzip("gzip;q=0.001"));
+        assertFalse(QueryApiImpl.acceptsGzip(null));
+        assertFalse(QueryApiImpl.acceptsGzip("br, deflate"));
+        assertFalse(QueryApiImpl.acceptsGzip("gzip;q=0"));
+        assertFalse(QueryApiImpl.acceptsGzip("gzip; q=0.000"));
+        assertFalse(QueryApiImpl.acceptsGzip("x-gzip"));
+    }
+
+    @Test
+    void noContentBeforeCountryTableIsLoaded() {
+        assertEquals(HttpStatus.NO_CONTENT, getCountryCodes(null, null).getStatusCode());
+    }
+
+    @Test
+    void servesPlainJsonWithETag() throws Exception {
+        restoreCountryCodes();
+        final ResponseEntity<Resource> response = getCountryCodes(null, null);
+        final CountryCodeCache.Listing listing = countryCodeCache.getSnapshot().getListing();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(listing.getETag(false), response.getHeaders().getETag());
+        assertEquals("no-cache", response.getHeaders().getCacheControl());
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaders().getFirst(HttpHeaders.VARY));
+        assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertArrayEquals(listing.getJson(), read(response.getBody()));
+        assertEquals(listing.getJson().length, response.getHeaders().getContentLength());
+    }
+
+    @Test
+    void servesGzippedJsonWithItsOwnETag() throws Exception {
+        restoreCountryCodes();
+        final ResponseEntity<Resource> response = getCountryCodes("gzip, deflate", null);
+        final CountryCodeCache.Listing listing = countryCodeCache.getSnapshot().getListing();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(listing.getETag(true), response.getHeaders().getETag());
+        assertNotEquals(listing.getETag(false), listing.getETag(true));
+        try (GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(read(response.getBody())))) {
+            assertArrayEquals(listing.getJson(), StreamUtils.copyToByteArray(gzipInputStream));
+        }
+    }
+
+    @Test
+    void notModifiedWhenETagMatches() throws Exception {
+        restoreCountryCodes();
+        final CountryCodeCache.Listing listing = countryCodeCache.getSnapshot().getListing();
+
+        //Either representation matches, also as a weak ETag
+        for (String ifNoneMatch : Arrays.asList(listing.getETag(false), "W/" + listing.getETag(true), "\"other\", " + listing.getETag(false), "*")) {
+            final ResponseEntity<Resource> response = getCountryCodes("gzip", ifNoneMatch);
+            assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode(), ifNoneMatch);
+            assertEquals(listing.getETag(true), response.getHeaders().getETag());
+            assertNull(response.getBody());
+        }
+        assertEquals(HttpStatus.OK, getCountryCodes("gzip", "\"other\"").getStatusCode());
+    }
+
+    @Test
+    void flagsStaleCountryTable() throws Exception {
+        restoreCountryCodes(LocalDateTime.now().minusDays(2));
+        final String eTag = countryCodeCache.getSnapshot().getListing().getETag(false);
+        assertEquals(GuardedDependency.STALE_WARNING, getCountryCodes(null, null).getHeaders().getFirst(HttpHeaders.WARNING));
+        assertEquals(GuardedDependency.STALE_WARNING, getCountryCodes(null, eTag).getHeaders().getFirst(HttpHeaders.WARNING));
+    }
+
+    private void restoreCountryCodes() {
+        restoreCountryCodes(LocalDateTime.now());
+        assertNull(getCountryCodes(null, null).getHeaders().getFirst(HttpHeaders.WARNING));
+    }
+
+    private void restoreCountryCodes(final LocalDateTime created) {
+        assertTrue(countryCodeCache.restore(Arrays.asList(new CountryCode().id("9914:se").code("SE").name("Sweden"),
+                                                          new CountryCode().id("9914:dk").code("DK").name("Denmark")),
+                                            created));
+    }
+
+    private ResponseEntity<Resource> getCountryCodes(final String acceptEncoding, final String ifNoneMatch) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/query");
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return queryApi.getCountryCodes(request, new MockHttpServletResponse());
+    }
+
+    private static byte[] read(final Resource resource) throws IOException {
+        return StreamUtils.copyToByteArray(resource.getInputStream());
+    }
+
+}